@@ -10,6 +10,10 @@ import java.rmi.registry.Registry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import suncertify.db.Data;
+import suncertify.db.ReplicationServer;
+import suncertify.db.ShardedURLyBirdData;
+import suncertify.db.URLyBirdDBAccess;
+import suncertify.db.URLyBirdData;
 
 /**
  * Class to handle local and network functionalities.
@@ -30,7 +34,11 @@ public class DBConnection {
         /**
          * For connections through a server.
          */
-        NETWORK
+        NETWORK,
+        /**
+         * For connections through the binary protocol server of a server.
+         */
+        NIO
     }
 
     /**
@@ -38,6 +46,30 @@ public class DBConnection {
      */
     public static final String REMOTE_NAME = "URLyBird";
 
+    /**
+     * Set this system property to "nio" to have network clients connect
+     * through the binary protocol instead of RMI.
+     */
+    public static final String PROTOCOL_PROPERTY = "suncertify.conn.protocol";
+
+    /**
+     * The prefix of a database location naming the replication server of a
+     * primary (replica:host:port), to serve a read replica of it.
+     */
+    public static final String REPLICA_PREFIX = "replica:";
+
+    /**
+     * The prefix of a database location naming the shard files of a sharded
+     * database and the key they are partitioned by
+     * (shards:location:file,file... or shards:month:file,file...).
+     */
+    public static final String SHARDS_PREFIX = "shards:";
+
+    /**
+     * The separator of the shard files in a sharded database location.
+     */
+    private static final String SHARD_SEPARATOR = ",";
+
     /**
      * Error value when the port is not an integer.
      */
@@ -71,6 +103,58 @@ public class DBConnection {
         return new Data(dbLocation);
     }
 
+    /**
+     * Opens a database for direct access, a single database file or, for a
+     * location starting with <code>SHARDS_PREFIX</code>, a sharded database.
+     *
+     * @param dbLocation the location of the database
+     * @return the database access object
+     * @throws IOException if a database file cannot be opened
+     * @throws IllegalArgumentException if the sharded location is not valid
+     */
+    public static URLyBirdDBAccess getDatabase(String dbLocation)
+            throws IOException, IllegalArgumentException {
+        if (dbLocation != null && dbLocation.startsWith(SHARDS_PREFIX)) {
+            return new ShardedURLyBirdData(getShardKey(dbLocation),
+                    getShardPaths(dbLocation));
+        }
+        return new URLyBirdData(dbLocation);
+    }
+
+    /**
+     * Get the key of a sharded database location.
+     *
+     * @param dbLocation the location, starting with <code>SHARDS_PREFIX</code>
+     * @return the key the occupancies are partitioned by
+     * @throws IllegalArgumentException if the key is not valid
+     */
+    private static ShardedURLyBirdData.ShardKey getShardKey(
+            String dbLocation) throws IllegalArgumentException {
+        String shards = dbLocation.substring(SHARDS_PREFIX.length());
+        int separator = shards.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException(" shard key not given");
+        }
+        return ShardedURLyBirdData.ShardKey.valueOf(
+                shards.substring(0, separator).trim().toUpperCase());
+    }
+
+    /**
+     * Get the shard files of a sharded database location.
+     *
+     * @param dbLocation the location, starting with <code>SHARDS_PREFIX</code>
+     * @return the paths to the shard files, in shard order
+     */
+    private static String[] getShardPaths(String dbLocation) {
+        String shards = dbLocation.substring(SHARDS_PREFIX.length());
+        String[] paths = shards.substring(shards.indexOf(':') + 1)
+                .split(SHARD_SEPARATOR);
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = paths[i].trim();
+        }
+        return paths;
+    }
+
     /**
      * Get the remote access object from the binding on the host name & port.
      *
@@ -107,14 +191,61 @@ public class DBConnection {
     }
 
     /**
-     * Register a remote access object on a port.
+     * Connects to the binary protocol server of a server.
+     *
+     * @param hostname the server host name
+     * @param portNumber the port the server serves the binary protocol on
+     * @return the database access object of the connection
+     * @throws IOException if the server cannot be reached
+     * @throws IllegalArgumentException if the port is not valid
+     */
+    public static NioClient getNio(String hostname, String portNumber)
+            throws IOException, IllegalArgumentException {
+        int port = validatePort(portNumber);
+        switch (port) {
+            case ERROR_PORT_VALUE:
+                throw new IllegalArgumentException(
+                        " port number not valid");
+            case ERROR_PORT_RANGE:
+                throw new IllegalArgumentException(
+                        " port number out of range (0..65535)");
+            default:
+                return new NioClient(hostname, port);
+        }
+    }
+
+    /**
+     * Get the type of connection network clients should use, set by the
+     * <code>PROTOCOL_PROPERTY</code> system property.
+     *
+     * @return <code>NIO</code> for the binary protocol, otherwise
+     * <code>NETWORK</code>
+     */
+    public static Type getNetworkType() {
+        return "nio".equalsIgnoreCase(System.getProperty(PROTOCOL_PROPERTY))
+                ? Type.NIO : Type.NETWORK;
+    }
+
+    /**
+     * Register a remote access object on a port. The object is bound as soon
+     * as the database file is open; its indexes are built in the background.
+     *
+     * A location starting with <code>REPLICA_PREFIX</code> registers a
+     * read-only replica of the primary server it names, and one starting with
+     * <code>SHARDS_PREFIX</code> a sharded database. Otherwise, if the
+     * <code>ReplicationServer.PORT_PROPERTY</code> system property is set,
+     * replicas are fed from that port. In every case, if the
+     * <code>NioServer.PORT_PROPERTY</code> system property is set, the
+     * database is also served over the binary protocol on that port, by the
+     * server the returned object's <code>getNioServer</code> gives.
      *
      * @param dbLocation the database file location
      * @param portNumber the port number to bind the object to
+     * @return the registered object, to follow its warm-up progress
      * @throws RemoteException
      * @throws IllegalArgumentException
      */
-    public static void register(String dbLocation, String portNumber)
+    public static RemoteData register(String dbLocation, String portNumber)
             throws RemoteException, IllegalArgumentException {
         int port = validatePort(portNumber);
         switch (port) {
@@ -126,9 +257,57 @@ public class DBConnection {
                         " port number out of range (0..65535)");
             default:
                 Registry r = LocateRegistry.createRegistry(port);
-                RemoteDBAccess rob = new RemoteData(dbLocation);
+                RemoteData rob;
+                if (dbLocation.startsWith(REPLICA_PREFIX)) {
+                    rob = newReplica(dbLocation.substring(
+                            REPLICA_PREFIX.length()));
+                } else if (dbLocation.startsWith(SHARDS_PREFIX)) {
+                    rob = new RemoteData(getShardKey(dbLocation),
+                            getShardPaths(dbLocation));
+                } else {
+                    rob = new RemoteData(dbLocation);
+                    Integer replicationPort
+                            = Integer.getInteger(ReplicationServer.PORT_PROPERTY);
+                    if (replicationPort != null) {
+                        try {
+                            rob.startReplication(replicationPort);
+                        } catch (IOException ex) {
+                            log.log(Level.SEVERE, "Could not serve replicas",
+                                    ex);
+                        }
+                    }
+                }
+                Integer nioPort = Integer.getInteger(NioServer.PORT_PROPERTY);
+                if (nioPort != null) {
+                    try {
+                        rob.startNioServer(nioPort);
+                    } catch (IOException ex) {
+                        log.log(Level.SEVERE,
+                                "Could not serve the binary protocol", ex);
+                    }
+                }
                 r.rebind(REMOTE_NAME, rob);
+                return rob;
+        }
+    }
+
+    /**
+     * Creates a read replica of a primary server.
+     *
+     * @param primary the replication server of the primary (host:port)
+     * @return the replica remote access object
+     * @throws RemoteException
+     * @throws IllegalArgumentException if the replication port is not valid
+     */
+    private static RemoteData newReplica(String primary)
+            throws RemoteException, IllegalArgumentException {
+        int separator = primary.lastIndexOf(':');
+        int port = validatePort(primary.substring(separator + 1));
+        if (separator < 0 || port < 0) {
+            throw new IllegalArgumentException(
+                    " replication port not valid");
         }
+        return new RemoteData(primary.substring(0, separator), port);
     }
 
     /**
@@ -0,0 +1,374 @@
+package suncertify.conn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import suncertify.db.OccupancyDelta;
+import suncertify.db.RequestExecutors;
+import suncertify.db.URLyBirdDBAccess;
+import suncertify.gui.Occupancy;
+
+/**
+ * Accesses a database served by a <code>NioServer</code>. Every request is
+ * sent on a single connection with its own id, and the responses are matched
+ * to the waiting callers by a reader thread, so any number of threads can
+ * use the client at once without waiting for each other's responses.
+ *
+ * @author Emmanuel
+ */
+public class NioClient implements URLyBirdDBAccess {
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.conn</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.conn");
+
+    /**
+     * The connection to the server.
+     */
+    private final Socket socket;
+
+    /**
+     * The output of the connection, guarded by itself.
+     */
+    private final OutputStream out;
+
+    /**
+     * The input of the connection, read by the reader thread.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The id of the last request sent.
+     */
+    private final AtomicInteger lastId;
+
+    /**
+     * The requests waiting for a response, by id.
+     */
+    private final Map<Integer, Call> calls;
+
+    /**
+     * The failure of the connection, once it has failed.
+     */
+    private volatile IOException failure;
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class Call {
+
+        /**
+         * The response frame without its length prefix.
+         */
+        private byte[] response;
+
+        /**
+         * The failure of the connection before the response came.
+         */
+        private IOException error;
+
+        /**
+         * True once the response or the failure is known.
+         */
+        private boolean done;
+
+        /**
+         * Completes the call and wakes the caller.
+         *
+         * @param response the response frame, or null
+         * @param error the failure of the connection, or null
+         */
+        synchronized void complete(byte[] response, IOException error) {
+            this.response = response;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the call to complete.
+         *
+         * @return the response frame
+         * @throws IOException if the connection failed or the wait was
+         * interrupted
+         */
+        synchronized byte[] await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted waiting for server");
+                }
+            }
+            if (error != null) {
+                throw new IOException(error.getMessage(), error);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Connects to a server.
+     *
+     * @param host the host of the server
+     * @param port the port the server serves the binary protocol on
+     * @throws IOException if the server cannot be reached
+     */
+    public NioClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        lastId = new AtomicInteger();
+        calls = new ConcurrentHashMap<>();
+        RequestExecutors.newDaemonThreadFactory("NIO client").newThread(
+                new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }).start();
+    }
+
+    /**
+     * Passes the responses of the server to the waiting callers until the
+     * connection fails or is closed.
+     */
+    private void receive() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < NioProtocol.HEADER_LENGTH
+                        || length > NioProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                Call call = calls.remove(NioProtocol.idOf(frame));
+                if (call != null) {
+                    call.complete(frame, null);
+                }
+            }
+        } catch (IOException ex) {
+            failure = new IOException("Connection to server lost", ex);
+            if (!socket.isClosed()) {
+                log.log(Level.WARNING, "Connection to server lost: {0}",
+                        ex.toString());
+            }
+            for (Integer id : calls.keySet()) {
+                Call call = calls.remove(id);
+                if (call != null) {
+                    call.complete(null, failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a request.
+     *
+     * @param operation the operation code
+     * @return the request frame, to write the arguments to
+     * @throws IOException if the frame cannot be created
+     */
+    private NioProtocol.FrameWriter request(byte operation)
+            throws IOException {
+        return new NioProtocol.FrameWriter(lastId.incrementAndGet(),
+                operation);
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param request the request frame, with its arguments written
+     * @return the result of the request
+     * @throws IOException if the connection fails, the request is longer than
+     * the server accepts or the request failed on the server
+     */
+    private NioProtocol.PayloadInput call(NioProtocol.FrameWriter request)
+            throws IOException {
+        ByteBuffer frame = request.toBuffer();
+        if (frame.limit() > NioServer.MAX_REQUEST_LENGTH) {
+            throw new IOException("Request too long: " + frame.limit());
+        }
+        int id = frame.getInt(NioProtocol.LENGTH_PREFIX);
+        Call call = new Call();
+        calls.put(id, call);
+        if (failure != null) {
+            calls.remove(id);
+            throw failure;
+        }
+        try {
+            synchronized (out) {
+                out.write(frame.array(), 0, frame.limit());
+                out.flush();
+            }
+        } catch (IOException ex) {
+            calls.remove(id);
+            throw ex;
+        }
+        byte[] response = call.await();
+        NioProtocol.PayloadInput result = NioProtocol.payloadOf(response);
+        if (NioProtocol.codeOf(response) == NioProtocol.ERROR) {
+            throw new IOException(NioProtocol.readString(result));
+        }
+        return result;
+    }
+
+    @Override
+    public Occupancy getOccupancy(long address) throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.GET_OCCUPANCY);
+        request.getOutput().writeLong(address);
+        return NioProtocol.readOccupancy(call(request));
+    }
+
+    @Override
+    public void setOccupancy(Occupancy occupancy, boolean append)
+            throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.SET_OCCUPANCY);
+        NioProtocol.writeOccupancy(request.getOutput(), occupancy);
+        request.getOutput().writeBoolean(append);
+        call(request);
+    }
+
+    @Override
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.SET_OCCUPANCIES);
+        NioProtocol.writeOccupancies(request.getOutput(), occupancies);
+        request.getOutput().writeBoolean(append);
+        call(request);
+    }
+
+    @Override
+    public void bookOccupancies(Collection<Long> addresses, String customerId)
+            throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.BOOK_OCCUPANCIES);
+        long[] values = new long[addresses.size()];
+        int i = 0;
+        for (long address : addresses) {
+            values[i++] = address;
+        }
+        NioProtocol.writeLongs(request.getOutput(), values);
+        NioProtocol.writeString(request.getOutput(), customerId);
+        call(request);
+    }
+
+    @Override
+    public boolean bookIfAvailable(long address, String customerId)
+            throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.BOOK_IF_AVAILABLE);
+        request.getOutput().writeLong(address);
+        NioProtocol.writeString(request.getOutput(), customerId);
+        return call(request).readBoolean();
+    }
+
+    @Override
+    public boolean releaseIfOwner(long address, String customerId)
+            throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.RELEASE_IF_OWNER);
+        request.getOutput().writeLong(address);
+        NioProtocol.writeString(request.getOutput(), customerId);
+        return call(request).readBoolean();
+    }
+
+    @Override
+    public Collection<Occupancy> getOccupancies() throws IOException {
+        return NioProtocol.readOccupancies(call(
+                request(NioProtocol.GET_OCCUPANCIES)));
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupancies(String... params)
+            throws IOException {
+        NioProtocol.FrameWriter request = request(NioProtocol.SEARCH);
+        NioProtocol.writeStrings(request.getOutput(), params);
+        return NioProtocol.readOccupancies(call(request));
+    }
+
+    @Override
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) throws IOException {
+        NioProtocol.FrameWriter request = request(NioProtocol.SEARCH_SINCE);
+        request.getOutput().writeLong(version);
+        NioProtocol.writeStrings(request.getOutput(), params);
+        return NioProtocol.readDelta(call(request));
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupanciesByRate(int minRate,
+            int maxRate, String... params) throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.SEARCH_BY_RATE);
+        ObjectOutput args = request.getOutput();
+        args.writeInt(minRate);
+        args.writeInt(maxRate);
+        NioProtocol.writeStrings(args, params);
+        return NioProtocol.readOccupancies(call(request));
+    }
+
+    @Override
+    public int[] getRateRange(String... params) throws IOException {
+        NioProtocol.FrameWriter request = request(NioProtocol.RATE_RANGE);
+        NioProtocol.writeStrings(request.getOutput(), params);
+        ObjectInput result = call(request);
+        if (!result.readBoolean()) {
+            return null;
+        }
+        return new int[]{result.readInt(), result.readInt()};
+    }
+
+    @Override
+    public int countAvailableByLocation(String location, String date)
+            throws IOException {
+        NioProtocol.FrameWriter request
+                = request(NioProtocol.COUNT_BY_LOCATION);
+        NioProtocol.writeString(request.getOutput(), location);
+        NioProtocol.writeString(request.getOutput(), date);
+        return call(request).readInt();
+    }
+
+    @Override
+    public int countAvailableByName(String name, String date)
+            throws IOException {
+        NioProtocol.FrameWriter request = request(NioProtocol.COUNT_BY_NAME);
+        NioProtocol.writeString(request.getOutput(), name);
+        NioProtocol.writeString(request.getOutput(), date);
+        return call(request).readInt();
+    }
+
+    /**
+     * Closes the connection. Requests waiting for a response fail.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Could not close connection", ex);
+        }
+    }
+
+}
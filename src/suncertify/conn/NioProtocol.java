@@ -0,0 +1,432 @@
+package suncertify.conn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import suncertify.db.OccupancyDelta;
+import suncertify.gui.Occupancy;
+import suncertify.gui.OccupancyList;
+
+/**
+ * The binary protocol spoken between a <code>NioServer</code> and a
+ * <code>NioClient</code>. Every message is a frame: the length of the rest of
+ * the frame, the request id, a code and the payload. A request carries an
+ * operation code and its arguments; the response carries the id of the
+ * request, a status code and the result, or the error message. Requests on
+ * one connection are run concurrently and the responses are sent back as
+ * they complete, so a slow request does not hold up the others.
+ *
+ * <p>
+ * Payloads are written with the primitive methods of object streams, and
+ * occupancies with their externalizable forms, so no class descriptors are
+ * sent. Collections of occupancies are sent as an
+ * <code>OccupancyList</code>.
+ *
+ * @author Emmanuel
+ */
+final class NioProtocol {
+
+    /**
+     * The length of the frame length prefix.
+     */
+    static final int LENGTH_PREFIX = 4;
+
+    /**
+     * The length of the frame header after the length prefix: the request id
+     * and the code.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * The longest frame accepted, after the length prefix.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 26;
+
+    /**
+     * Status of a response carrying a result.
+     */
+    static final byte OK = 0;
+
+    /**
+     * Status of a response carrying the message of an error.
+     */
+    static final byte ERROR = 1;
+
+    /**
+     * Operation <code>getOccupancy</code>.
+     */
+    static final byte GET_OCCUPANCY = 1;
+
+    /**
+     * Operation <code>setOccupancy</code>.
+     */
+    static final byte SET_OCCUPANCY = 2;
+
+    /**
+     * Operation <code>setOccupancies</code>.
+     */
+    static final byte SET_OCCUPANCIES = 3;
+
+    /**
+     * Operation <code>bookOccupancies</code>.
+     */
+    static final byte BOOK_OCCUPANCIES = 4;
+
+    /**
+     * Operation <code>bookIfAvailable</code>.
+     */
+    static final byte BOOK_IF_AVAILABLE = 5;
+
+    /**
+     * Operation <code>releaseIfOwner</code>.
+     */
+    static final byte RELEASE_IF_OWNER = 6;
+
+    /**
+     * Operation <code>getOccupancies</code>.
+     */
+    static final byte GET_OCCUPANCIES = 7;
+
+    /**
+     * Operation <code>searchOccupancies</code>.
+     */
+    static final byte SEARCH = 8;
+
+    /**
+     * Operation <code>searchOccupanciesSince</code>.
+     */
+    static final byte SEARCH_SINCE = 9;
+
+    /**
+     * Operation <code>searchOccupanciesByRate</code>.
+     */
+    static final byte SEARCH_BY_RATE = 10;
+
+    /**
+     * Operation <code>getRateRange</code>.
+     */
+    static final byte RATE_RANGE = 11;
+
+    /**
+     * Operation <code>countAvailableByLocation</code>.
+     */
+    static final byte COUNT_BY_LOCATION = 12;
+
+    /**
+     * Operation <code>countAvailableByName</code>.
+     */
+    static final byte COUNT_BY_NAME = 13;
+
+    /**
+     * This class should not be instantiated. Only its utility methods should be
+     * used.
+     */
+    private NioProtocol() {
+    }
+
+    /**
+     * Builds a frame. The payload is written to <code>getOutput</code>, then
+     * <code>toBuffer</code> gives the frame ready to be sent.
+     */
+    static final class FrameWriter extends ByteArrayOutputStream {
+
+        /**
+         * The output the payload is written to.
+         */
+        private final ObjectOutputStream output;
+
+        /**
+         * Starts a frame.
+         *
+         * @param id the request id
+         * @param code the operation or status code
+         * @throws IOException if the output cannot be created
+         */
+        FrameWriter(int id, byte code) throws IOException {
+            super(256);
+            ByteBuffer header = ByteBuffer.allocate(LENGTH_PREFIX
+                    + HEADER_LENGTH);
+            header.putInt(0).putInt(id).put(code);
+            write(header.array(), 0, header.capacity());
+            output = new ObjectOutputStream(this);
+        }
+
+        /**
+         * @return the output to write the payload to
+         */
+        ObjectOutput getOutput() {
+            return output;
+        }
+
+        /**
+         * Ends the frame.
+         *
+         * @return the frame, positioned at its start
+         * @throws IOException if the payload cannot be flushed or the frame
+         * is longer than <code>MAX_FRAME_LENGTH</code>
+         */
+        ByteBuffer toBuffer() throws IOException {
+            output.flush();
+            if (count - LENGTH_PREFIX > MAX_FRAME_LENGTH) {
+                throw new IOException("Message too long: " + count);
+            }
+            ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - LENGTH_PREFIX);
+            return frame;
+        }
+    }
+
+    /**
+     * The payload of a received frame. It knows the length of the payload,
+     * so counts read from it can be checked against the bytes actually
+     * received before anything is allocated for them.
+     */
+    static final class PayloadInput extends ObjectInputStream {
+
+        /**
+         * The length of the payload.
+         */
+        private final int length;
+
+        /**
+         * Opens the payload of a frame.
+         *
+         * @param frame the frame without its length prefix
+         * @throws IOException if the payload is not valid
+         */
+        PayloadInput(byte[] frame) throws IOException {
+            super(new ByteArrayInputStream(frame, HEADER_LENGTH,
+                    frame.length - HEADER_LENGTH));
+            length = frame.length - HEADER_LENGTH;
+        }
+
+        /**
+         * Reads the length of an array and checks that the payload can hold
+         * it.
+         *
+         * @param elementLength the fewest bytes an element is written in
+         * @return the length, or -1 for a null array
+         * @throws IOException if the input cannot be read or the length is
+         * not valid
+         */
+        int readLength(int elementLength) throws IOException {
+            int count = readInt();
+            if (count < -1 || count > length / elementLength) {
+                throw new IOException("Invalid array length: " + count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Get the request id of a frame.
+     *
+     * @param frame the frame without its length prefix
+     * @return the request id
+     */
+    static int idOf(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(0);
+    }
+
+    /**
+     * Get the operation or status code of a frame.
+     *
+     * @param frame the frame without its length prefix
+     * @return the code
+     */
+    static byte codeOf(byte[] frame) {
+        return frame[Integer.BYTES];
+    }
+
+    /**
+     * Opens the payload of a frame.
+     *
+     * @param frame the frame without its length prefix
+     * @return the input to read the payload from
+     * @throws IOException if the payload is not valid
+     */
+    static PayloadInput payloadOf(byte[] frame) throws IOException {
+        return new PayloadInput(frame);
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out the output to write to
+     * @param value the string, or null
+     * @throws IOException if the output cannot be written
+     */
+    static void writeString(ObjectOutput out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by <code>writeString</code>.
+     *
+     * @param in the input to read from
+     * @return the string, or null
+     * @throws IOException if the input cannot be read
+     */
+    static String readString(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes search parameters, which may be null or hold nulls.
+     *
+     * @param out the output to write to
+     * @param values the strings, or null
+     * @throws IOException if the output cannot be written
+     */
+    static void writeStrings(ObjectOutput out, String[] values)
+            throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        for (int i = 0; values != null && i < values.length; i++) {
+            writeString(out, values[i]);
+        }
+    }
+
+    /**
+     * Reads search parameters written by <code>writeStrings</code>.
+     *
+     * @param in the input to read from
+     * @return the strings, or null
+     * @throws IOException if the input cannot be read
+     */
+    static String[] readStrings(PayloadInput in) throws IOException {
+        // a string takes at least its null flag
+        int length = in.readLength(1);
+        if (length < 0) {
+            return null;
+        }
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    /**
+     * Writes an occupancy.
+     *
+     * @param out the output to write to
+     * @param occupancy the occupancy
+     * @throws IOException if the output cannot be written
+     */
+    static void writeOccupancy(ObjectOutput out, Occupancy occupancy)
+            throws IOException {
+        occupancy.writeExternal(out);
+    }
+
+    /**
+     * Reads an occupancy written by <code>writeOccupancy</code>.
+     *
+     * @param in the input to read from
+     * @return the occupancy
+     * @throws IOException if the input cannot be read
+     */
+    static Occupancy readOccupancy(ObjectInput in) throws IOException {
+        Occupancy occupancy = new Occupancy();
+        occupancy.readExternal(in);
+        return occupancy;
+    }
+
+    /**
+     * Writes a collection of occupancies, in its iteration order.
+     *
+     * @param out the output to write to
+     * @param occupancies the occupancies
+     * @throws IOException if the output cannot be written
+     */
+    static void writeOccupancies(ObjectOutput out,
+            Collection<Occupancy> occupancies) throws IOException {
+        new OccupancyList(occupancies).writeExternal(out);
+    }
+
+    /**
+     * Reads occupancies written by <code>writeOccupancies</code>.
+     *
+     * @param in the input to read from
+     * @return the occupancies
+     * @throws IOException if the input cannot be read
+     */
+    static OccupancyList readOccupancies(ObjectInput in) throws IOException {
+        OccupancyList occupancies = new OccupancyList();
+        occupancies.readExternal(in);
+        return occupancies;
+    }
+
+    /**
+     * Writes the result of a search made since a version.
+     *
+     * @param out the output to write to
+     * @param delta the search result
+     * @throws IOException if the output cannot be written
+     */
+    static void writeDelta(ObjectOutput out, OccupancyDelta delta)
+            throws IOException {
+        out.writeLong(delta.getVersion());
+        out.writeBoolean(delta.isFull());
+        writeOccupancies(out, delta.getChanged());
+        writeLongs(out, delta.getRemoved());
+    }
+
+    /**
+     * Reads a search result written by <code>writeDelta</code>.
+     *
+     * @param in the input to read from
+     * @return the search result
+     * @throws IOException if the input cannot be read
+     */
+    static OccupancyDelta readDelta(PayloadInput in) throws IOException {
+        long version = in.readLong();
+        boolean full = in.readBoolean();
+        OccupancyList changed = readOccupancies(in);
+        return new OccupancyDelta(version, full, changed, readLongs(in));
+    }
+
+    /**
+     * Writes an array of longs.
+     *
+     * @param out the output to write to
+     * @param values the values
+     * @throws IOException if the output cannot be written
+     */
+    static void writeLongs(ObjectOutput out, long[] values)
+            throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Reads an array written by <code>writeLongs</code>.
+     *
+     * @param in the input to read from
+     * @return the values
+     * @throws IOException if the input cannot be read
+     */
+    static long[] readLongs(PayloadInput in) throws IOException {
+        int length = in.readLength(Long.BYTES);
+        if (length < 0) {
+            throw new IOException("Invalid array length: " + length);
+        }
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,620 @@
+package suncertify.conn;
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import suncertify.db.RequestExecutors;
+import suncertify.db.URLyBirdDBAccess;
+import suncertify.gui.Occupancy;
+
+/**
+ * Serves a database to <code>NioClient</code>s over the binary protocol of
+ * <code>NioProtocol</code>, as an alternative to RMI for large numbers of
+ * clients. A single thread waits on a selector for the events of every
+ * connection, so an idle client costs no thread. Complete request frames are
+ * run on the request executor and their responses are queued on their
+ * connection, to be written by the selector thread as the socket accepts
+ * them.
+ *
+ * <p>
+ * A connection may have several requests running at once. A request counts
+ * until its response has been written to the socket, and when a connection
+ * has <code>MAX_IN_FLIGHT</code> of them no more are read from it, so a
+ * client cannot queue unbounded work on the server, nor unbounded responses
+ * by not reading them. The read buffer of a connection only grows as the
+ * bytes of a frame arrive, and never past <code>MAX_REQUEST_LENGTH</code>,
+ * so a length prefix alone reserves no memory.
+ *
+ * @author Emmanuel
+ */
+public class NioServer {
+
+    /**
+     * Set this system property to the port to serve the binary protocol on,
+     * to have the network server accept <code>NioClient</code>s as well as
+     * RMI clients.
+     */
+    public static final String PORT_PROPERTY = "suncertify.conn.nioPort";
+
+    /**
+     * The largest number of requests of one connection run at once.
+     */
+    public static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * The longest request frame accepted, with its length prefix. A client
+     * sending a longer one is disconnected.
+     */
+    public static final int MAX_REQUEST_LENGTH = 1 << 24;
+
+    /**
+     * The initial size of the read buffer of a connection. It doubles as the
+     * bytes of larger frames arrive.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * The most requests waiting for a thread of the request pool, on runtimes
+     * without virtual threads. Requests beyond it fail as the server is busy.
+     */
+    private static final int MAX_QUEUED = 4096;
+
+    /**
+     * The length of the queue of connections waiting to be accepted.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.conn</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.conn");
+
+    /**
+     * The database the requests are run on.
+     */
+    private final URLyBirdDBAccess database;
+
+    /**
+     * The socket the clients connect to.
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The selector of the server socket and of every connection.
+     */
+    private final Selector selector;
+
+    /**
+     * Runs the requests.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The connections with responses to send or reading to resume, handled
+     * by the selector thread when it wakes up.
+     */
+    private final Queue<Connection> ready;
+
+    /**
+     * The number of open connections.
+     */
+    private final AtomicInteger connectionCount;
+
+    /**
+     * True once the server is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Starts serving a database.
+     *
+     * @param database the database to serve
+     * @param port the port to listen to clients on, or 0 for any free port
+     * @throws IOException if the port cannot be listened on
+     */
+    public NioServer(URLyBirdDBAccess database, int port) throws IOException {
+        this.database = database;
+        ready = new ConcurrentLinkedQueue<>();
+        connectionCount = new AtomicInteger();
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(new InetSocketAddress(port), BACKLOG);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        executor = RequestExecutors.newBoundedRequestExecutor("NIO request",
+                MAX_QUEUED);
+        RequestExecutors.newDaemonThreadFactory("NIO selector").newThread(
+                new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }).start();
+        log.log(Level.INFO, "Serving the binary protocol on port {0}",
+                getPort());
+    }
+
+    /**
+     * Handles the events of the server socket and the connections until the
+     * server is closed. A connection that fails, even with an unexpected
+     * runtime exception, is closed without stopping the others.
+     */
+    private void select() {
+        while (!closed) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    connection.resume();
+                }
+                Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException ex) {
+                            log.log(Level.FINE, "Connection closed: {0}",
+                                    ex.getMessage());
+                            connection.close();
+                        } catch (RuntimeException ex) {
+                            // drop the connection, not the selector thread
+                            log.log(Level.WARNING, "Connection failed", ex);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Selector failed", ex);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not close server", ex);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Accepts the clients waiting to connect.
+     *
+     * @throws IOException if the server socket fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                new Connection(channel);
+                connectionCount.incrementAndGet();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not accept connection", ex);
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * The state of a client connection. Reading, writing and changes to the
+     * interest set are done by the selector thread; responses are queued by
+     * the request threads.
+     */
+    private class Connection {
+
+        /**
+         * The socket of the connection.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The registration of the socket with the selector.
+         */
+        private final SelectionKey key;
+
+        /**
+         * The responses waiting to be written, guarded by itself.
+         */
+        private final Deque<ByteBuffer> responses;
+
+        /**
+         * The number of requests read whose responses are not yet written.
+         */
+        private final AtomicInteger inFlight;
+
+        /**
+         * True while the connection is in the ready queue.
+         */
+        private final AtomicBoolean queued;
+
+        /**
+         * The bytes read and not yet dispatched, ready to be written to.
+         */
+        private ByteBuffer input;
+
+        /**
+         * True while reading is stopped because too many requests are in
+         * flight.
+         */
+        private boolean paused;
+
+        /**
+         * Registers a new connection with the selector.
+         *
+         * @param channel the socket of the connection
+         * @throws IOException if the socket cannot be registered
+         */
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            responses = new ArrayDeque<>();
+            inFlight = new AtomicInteger();
+            queued = new AtomicBoolean();
+            input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Reads what the socket has and dispatches the complete requests.
+         *
+         * @throws IOException if the socket fails or the client closed it
+         */
+        void read() throws IOException {
+            if (channel.read(input) < 0) {
+                throw new IOException("End of stream");
+            }
+            dispatch();
+        }
+
+        /**
+         * Starts the requests that have been read completely, up to the
+         * limit of requests in flight, and makes room for the next one.
+         *
+         * @throws IOException if a frame has an invalid length or is longer
+         * than <code>MAX_REQUEST_LENGTH</code>
+         */
+        void dispatch() throws IOException {
+            input.flip();
+            int needed = 0;
+            while (inFlight.get() < MAX_IN_FLIGHT
+                    && input.remaining() >= NioProtocol.LENGTH_PREFIX) {
+                int length = input.getInt(input.position());
+                if (length < NioProtocol.HEADER_LENGTH
+                        || length > NioProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (length > MAX_REQUEST_LENGTH - NioProtocol.LENGTH_PREFIX) {
+                    throw new IOException("Request too long: " + length);
+                }
+                if (input.remaining() < NioProtocol.LENGTH_PREFIX + length) {
+                    needed = NioProtocol.LENGTH_PREFIX + length;
+                    break;
+                }
+                input.position(input.position() + NioProtocol.LENGTH_PREFIX);
+                byte[] frame = new byte[length];
+                input.get(frame);
+                inFlight.incrementAndGet();
+                try {
+                    executor.execute(new Request(this, frame));
+                } catch (RejectedExecutionException ex) {
+                    send(error(NioProtocol.idOf(frame),
+                            new IOException("Server busy")));
+                }
+            }
+            if (!input.hasRemaining() && input.capacity() > READ_BUFFER_SIZE) {
+                // give back the memory of a large frame
+                input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            } else {
+                input.compact();
+            }
+            if (needed > input.capacity() && !input.hasRemaining()) {
+                // grow only once the bytes already sent fill the buffer
+                ByteBuffer larger = ByteBuffer.allocate(
+                        Math.min(needed, input.capacity() << 1));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            if (inFlight.get() >= MAX_IN_FLIGHT && !paused) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Writes as many of the queued responses as the socket accepts, and
+         * waits for the socket to accept more if some are left. Reading
+         * resumes once enough responses have been written.
+         *
+         * @throws IOException if the socket fails or a frame has an invalid
+         * length
+         */
+        void write() throws IOException {
+            boolean done;
+            int written = 0;
+            synchronized (responses) {
+                if (!responses.isEmpty()) {
+                    channel.write(responses.toArray(
+                            new ByteBuffer[responses.size()]));
+                    while (!responses.isEmpty()
+                            && !responses.peek().hasRemaining()) {
+                        responses.poll();
+                        written++;
+                    }
+                }
+                done = responses.isEmpty();
+            }
+            int ops = key.interestOps();
+            key.interestOps(done ? ops & ~SelectionKey.OP_WRITE
+                    : ops | SelectionKey.OP_WRITE);
+            if (inFlight.addAndGet(-written) < MAX_IN_FLIGHT && paused) {
+                paused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // requests may be waiting in the buffer
+                dispatch();
+            }
+        }
+
+        /**
+         * Queues the response of a request, to be written by the selector
+         * thread. The request stays in flight until it is written.
+         *
+         * @param response the response frame
+         */
+        void send(ByteBuffer response) {
+            synchronized (responses) {
+                responses.add(response);
+            }
+            if (queued.compareAndSet(false, true)) {
+                ready.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes the queued responses. Called by the selector thread.
+         */
+        void resume() {
+            queued.set(false);
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Connection closed: {0}", ex.getMessage());
+                close();
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Connection failed", ex);
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection. Responses of requests still running are
+         * dropped.
+         */
+        void close() {
+            if (key.isValid()) {
+                key.cancel();
+                connectionCount.decrementAndGet();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Could not close connection", ex);
+            }
+        }
+    }
+
+    /**
+     * A request read from a connection, run on the request executor.
+     */
+    private class Request implements Runnable {
+
+        /**
+         * The connection to answer on.
+         */
+        private final Connection connection;
+
+        /**
+         * The request frame without its length prefix.
+         */
+        private final byte[] frame;
+
+        /**
+         * Creates a request.
+         *
+         * @param connection the connection to answer on
+         * @param frame the request frame without its length prefix
+         */
+        Request(Connection connection, byte[] frame) {
+            this.connection = connection;
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            int id = NioProtocol.idOf(frame);
+            ByteBuffer response;
+            try {
+                NioProtocol.FrameWriter writer
+                        = new NioProtocol.FrameWriter(id, NioProtocol.OK);
+                handle(NioProtocol.codeOf(frame), NioProtocol.payloadOf(frame),
+                        writer.getOutput());
+                response = writer.toBuffer();
+            } catch (IOException ex) {
+                response = error(id, ex);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Request failed", ex);
+                response = error(id, ex);
+            }
+            connection.send(response);
+        }
+    }
+
+    /**
+     * Builds the response reporting the failure of a request.
+     *
+     * @param id the request id
+     * @param ex the failure
+     * @return the response frame
+     */
+    private static ByteBuffer error(int id, Exception ex) {
+        String message = ex.getMessage() != null ? ex.getMessage()
+                : ex.toString();
+        try {
+            NioProtocol.FrameWriter writer
+                    = new NioProtocol.FrameWriter(id, NioProtocol.ERROR);
+            NioProtocol.writeString(writer.getOutput(), message);
+            return writer.toBuffer();
+        } catch (IOException iex) {
+            // only written to memory
+            throw new IllegalStateException(iex);
+        }
+    }
+
+    /**
+     * Runs a request on the database and writes its result.
+     *
+     * @param operation the operation code
+     * @param in the arguments of the request
+     * @param out the output to write the result to
+     * @throws IOException if the request is not valid or the database fails
+     */
+    private void handle(byte operation, NioProtocol.PayloadInput in,
+            ObjectOutput out)
+            throws IOException {
+        switch (operation) {
+            case NioProtocol.GET_OCCUPANCY:
+                NioProtocol.writeOccupancy(out,
+                        database.getOccupancy(in.readLong()));
+                break;
+            case NioProtocol.SET_OCCUPANCY:
+                Occupancy occupancy = NioProtocol.readOccupancy(in);
+                database.setOccupancy(occupancy, in.readBoolean());
+                break;
+            case NioProtocol.SET_OCCUPANCIES:
+                List<Occupancy> occupancies = NioProtocol.readOccupancies(in);
+                database.setOccupancies(occupancies, in.readBoolean());
+                break;
+            case NioProtocol.BOOK_OCCUPANCIES:
+                List<Long> addresses = new ArrayList<>();
+                for (long address : NioProtocol.readLongs(in)) {
+                    addresses.add(address);
+                }
+                database.bookOccupancies(addresses,
+                        NioProtocol.readString(in));
+                break;
+            case NioProtocol.BOOK_IF_AVAILABLE:
+                out.writeBoolean(database.bookIfAvailable(in.readLong(),
+                        NioProtocol.readString(in)));
+                break;
+            case NioProtocol.RELEASE_IF_OWNER:
+                out.writeBoolean(database.releaseIfOwner(in.readLong(),
+                        NioProtocol.readString(in)));
+                break;
+            case NioProtocol.GET_OCCUPANCIES:
+                NioProtocol.writeOccupancies(out, database.getOccupancies());
+                break;
+            case NioProtocol.SEARCH:
+                NioProtocol.writeOccupancies(out, database.searchOccupancies(
+                        NioProtocol.readStrings(in)));
+                break;
+            case NioProtocol.SEARCH_SINCE:
+                NioProtocol.writeDelta(out, database.searchOccupanciesSince(
+                        in.readLong(), NioProtocol.readStrings(in)));
+                break;
+            case NioProtocol.SEARCH_BY_RATE:
+                int minRate = in.readInt();
+                int maxRate = in.readInt();
+                NioProtocol.writeOccupancies(out,
+                        database.searchOccupanciesByRate(minRate, maxRate,
+                                NioProtocol.readStrings(in)));
+                break;
+            case NioProtocol.RATE_RANGE:
+                int[] range = database.getRateRange(
+                        NioProtocol.readStrings(in));
+                out.writeBoolean(range != null);
+                if (range != null) {
+                    out.writeInt(range[0]);
+                    out.writeInt(range[1]);
+                }
+                break;
+            case NioProtocol.COUNT_BY_LOCATION:
+                out.writeInt(database.countAvailableByLocation(
+                        NioProtocol.readString(in),
+                        NioProtocol.readString(in)));
+                break;
+            case NioProtocol.COUNT_BY_NAME:
+                out.writeInt(database.countAvailableByName(
+                        NioProtocol.readString(in),
+                        NioProtocol.readString(in)));
+                break;
+            default:
+                throw new IOException("Unknown operation: " + operation);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of clients connected
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Stops serving. The connections are closed and running requests are
+     * left to complete.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+}
@@ -9,23 +9,38 @@ import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Collection;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import suncertify.gui.Occupancy;
+import suncertify.gui.OccupancyList;
+import suncertify.db.OccupancyDelta;
+import suncertify.db.ReplicaData;
+import suncertify.db.ReplicationServer;
+import suncertify.db.ShardedURLyBirdData;
 import suncertify.db.URLyBirdDBAccess;
 import suncertify.db.URLyBirdData;
 
 /**
- * For client to remotely access database.
+ * For client to remotely access database. Collections of occupancies are
+ * returned as an <code>OccupancyList</code>, which is much smaller to send.
+ * Calls run on the threads of the RMI runtime; clients that need many
+ * concurrent connections should use the <code>NioServer</code> instead.
  *
  * @author Emmanuel
  */
 public class RemoteData extends UnicastRemoteObject implements RemoteDBAccess {
 
     /**
-     * The database access object being wrapped.
+     * The database access object being wrapped, a primary database or a
+     * read replica.
      */
     private final URLyBirdDBAccess database;
 
+    /**
+     * The server of the binary protocol, once started.
+     */
+    private NioServer nioServer;
+
     /**
      * The Logger instance. All log messages from this class are routed through
      * this member. The Logger namespace is <code>suncertify.db</code>.
@@ -46,6 +61,100 @@ public class RemoteData extends UnicastRemoteObject implements RemoteDBAccess {
         }
     }
 
+    /**
+     * Instantiates access to a sharded database, partitioning the occupancies
+     * across several database files.
+     *
+     * @param key the key the occupancies are partitioned by
+     * @param shardPaths the locations of the shard database files, in shard
+     * order
+     * @throws RemoteException
+     */
+    public RemoteData(ShardedURLyBirdData.ShardKey key, String... shardPaths)
+            throws RemoteException {
+        try {
+            database = new ShardedURLyBirdData(key, shardPaths);
+        } catch (IOException ex) {
+            throw new RemoteException("Unable to access database file.");
+        }
+    }
+
+    /**
+     * Instantiates a read replica of a primary database, serving searches
+     * from a copy kept current by the primary's replication server. Writes
+     * are refused.
+     *
+     * @param primaryHost the host of the primary's replication server
+     * @param replicationPort the port of the primary's replication server
+     * @throws RemoteException
+     */
+    public RemoteData(String primaryHost, int replicationPort)
+            throws RemoteException {
+        database = new ReplicaData(primaryHost, replicationPort);
+    }
+
+    /**
+     * Starts feeding read replicas with the changes of the database. Only
+     * available to the server hosting this object.
+     *
+     * @param port the port to listen to replicas on
+     * @return the replication server
+     * @throws IOException if the port cannot be listened on
+     * @throws IllegalStateException if this object is a replica or a
+     * sharded database
+     */
+    public ReplicationServer startReplication(int port) throws IOException {
+        if (!(database instanceof URLyBirdData)) {
+            throw new IllegalStateException(
+                    "Only a single database file can be replicated");
+        }
+        return new ReplicationServer((URLyBirdData) database, port);
+    }
+
+    /**
+     * Starts serving the database over the binary protocol, to
+     * <code>NioClient</code>s. Only available to the server hosting this
+     * object.
+     *
+     * @param port the port to listen to clients on
+     * @return the binary protocol server
+     * @throws IOException if the port cannot be listened on
+     * @throws IllegalStateException if the binary protocol is already served
+     */
+    public synchronized NioServer startNioServer(int port)
+            throws IOException {
+        if (nioServer != null) {
+            throw new IllegalStateException(
+                    "The binary protocol is already served");
+        }
+        nioServer = new NioServer(database, port);
+        return nioServer;
+    }
+
+    /**
+     * Get the server of the binary protocol, to follow or close it. Only
+     * available to the server hosting this object.
+     *
+     * @return the binary protocol server, or null if it was not started
+     */
+    public synchronized NioServer getNioServer() {
+        return nioServer;
+    }
+
+    /**
+     * Get how far a read replica is behind its primary. Only available to the
+     * server hosting this object.
+     *
+     * @return the lag in milliseconds, 0 for a primary and -1 for a replica
+     * that has not loaded its first snapshot
+     */
+    public long getReplicationLag() {
+        if (database instanceof ReplicaData) {
+            return ((ReplicaData) database).getLagMillis();
+        }
+        return 0;
+    }
+
     @Override
     public Occupancy getOccupancy(long address)
             throws RemoteException, IOException {
@@ -58,16 +167,91 @@ public class RemoteData extends UnicastRemoteObject implements RemoteDBAccess {
         database.setOccupancy(occupancy, append);
     }
 
+    @Override
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws RemoteException, IOException {
+        database.setOccupancies(occupancies, append);
+    }
+
+    @Override
+    public void bookOccupancies(Collection<Long> addresses, String customerId)
+            throws RemoteException, IOException {
+        database.bookOccupancies(addresses, customerId);
+    }
+
+    @Override
+    public boolean bookIfAvailable(long address, String customerId)
+            throws RemoteException, IOException {
+        return database.bookIfAvailable(address, customerId);
+    }
+
+    @Override
+    public boolean releaseIfOwner(long address, String customerId)
+            throws RemoteException, IOException {
+        return database.releaseIfOwner(address, customerId);
+    }
+
     @Override
     public Collection<Occupancy> getOccupancies()
             throws RemoteException, IOException {
-        return database.getOccupancies();
+        return new OccupancyList(database.getOccupancies());
     }
 
     @Override
     public Collection<Occupancy> searchOccupancies(String... params)
             throws RemoteException, IOException {
-        return database.searchOccupancies(params);
+        return new OccupancyList(database.searchOccupancies(params));
+    }
+
+    @Override
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) throws RemoteException, IOException {
+        OccupancyDelta delta
+                = database.searchOccupanciesSince(version, params);
+        return new OccupancyDelta(delta.getVersion(), delta.isFull(),
+                new OccupancyList(delta.getChanged()), delta.getRemoved());
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupanciesByRate(int minRate,
+            int maxRate, String... params)
+            throws RemoteException, IOException {
+        return new OccupancyList(database.searchOccupanciesByRate(minRate,
+                maxRate, params));
+    }
+
+    @Override
+    public int[] getRateRange(String... params)
+            throws RemoteException, IOException {
+        return database.getRateRange(params);
+    }
+
+    @Override
+    public int countAvailableByLocation(String location, String date)
+            throws RemoteException, IOException {
+        return database.countAvailableByLocation(location, date);
+    }
+
+    @Override
+    public int countAvailableByName(String name, String date)
+            throws RemoteException, IOException {
+        return database.countAvailableByName(name, date);
+    }
+
+    /**
+     * Get how far the database has got building its indexes in the
+     * background. Only available to the server hosting this object.
+     *
+     * @return the percentage of the work done, 100 when ready
+     */
+    public int getWarmupProgress() {
+        if (database instanceof ReplicaData) {
+            // a replica is ready once it has loaded a snapshot
+            return ((ReplicaData) database).isSynchronized() ? 100 : 0;
+        } else if (database instanceof ShardedURLyBirdData) {
+            return ((ShardedURLyBirdData) database).getWarmupProgress();
+        }
+        return ((URLyBirdData) database).getWarmupProgress();
     }
 
 }
@@ -0,0 +1,346 @@
+package suncertify.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Moves the records of past dates out of a database file into a compressed
+ * archive file next to it. Past nights are never booked again, so keeping
+ * them in the database only makes every scan and search slower. The archive
+ * can still be searched explicitly.
+ *
+ * <p>
+ * The archive is append-only: each batch of archived records is written as a
+ * new GZIP member at its end and forced to disk before the records are
+ * deleted from the database, so a record is never lost. A crash between the
+ * two leaves the record in both files; it is archived again by the next run
+ * and archive searches leave out the copies. After archiving, the deleted
+ * slots at the end of the database file are trimmed off; the others are
+ * reused by new records.
+ *
+ * <p>
+ * Each archived record is written as its record number and the time it was
+ * archived, followed by the number of fields and the field values without
+ * their padding.
+ *
+ * @author Emmanuel
+ */
+public class Archiver {
+
+    /**
+     * The extension appended to the database path to name the archive.
+     */
+    public static final String ARCHIVE_FILE_EXTENSION = ".archive";
+
+    /**
+     * The number of records locked, archived and deleted together.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * The length of a date as stored in the database (yyyy/mm/dd).
+     */
+    private static final int DATE_LENGTH = 10;
+
+    /**
+     * The logger for the class.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The database to archive records of.
+     */
+    private final Data database;
+
+    /**
+     * The path to the archive file.
+     */
+    private final String archivePath;
+
+    /**
+     * The position of the date field in the records.
+     */
+    private final int dateIdx;
+
+    /**
+     * The length of each field, used to pad archived values.
+     */
+    private final int[] fieldLengths;
+
+    /**
+     * Creates an archiver for a database.
+     *
+     * @param database the database to archive records of
+     * @throws IllegalArgumentException if the database has no date field
+     */
+    public Archiver(Data database) {
+        this.database = database;
+        this.archivePath = database.getDBFilePath() + ARCHIVE_FILE_EXTENSION;
+        Map<?, ?> fields = database.getFields();
+        List<Object> names = new ArrayList<Object>(fields.keySet());
+        dateIdx = names.indexOf(AvailabilityView.DATE_FIELD);
+        if (dateIdx < 0) {
+            throw new IllegalArgumentException("No field named "
+                    + AvailabilityView.DATE_FIELD);
+        }
+        fieldLengths = new int[fields.size()];
+        int i = 0;
+        for (Object length : fields.values()) {
+            fieldLengths[i++] = ((Number) length).intValue();
+        }
+    }
+
+    /**
+     * Moves the records dated before a day to the archive. Records that are
+     * locked are left for the next run.
+     *
+     * @param cutoff the first day to keep, as stored in the database
+     * (yyyy/mm/dd)
+     * @return the number of records archived
+     * @throws IOException if the database or the archive cannot be read or
+     * written
+     * @throws IllegalArgumentException if the cutoff is not a date
+     */
+    public synchronized int archiveBefore(final String cutoff)
+            throws IOException {
+        if (cutoff == null || cutoff.length() != DATE_LENGTH) {
+            throw new IllegalArgumentException("Invalid cutoff date: "
+                    + cutoff);
+        }
+        final List<Long> candidates = new ArrayList<>();
+        database.scan(new Data.RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] record) {
+                if (isBefore(record, cutoff)) {
+                    candidates.add(recNo);
+                }
+            }
+        });
+        int archived = 0;
+        for (int i = 0; i < candidates.size(); i += BATCH_SIZE) {
+            archived += archiveBatch(candidates.subList(i,
+                    Math.min(candidates.size(), i + BATCH_SIZE)), cutoff);
+        }
+        database.trimFreeSlots();
+        log.log(Level.INFO, "Archived {0} records dated before {1}",
+                new Object[]{archived, cutoff});
+        return archived;
+    }
+
+    /**
+     * Checks if a record is dated before a day.
+     *
+     * @param record the record fields
+     * @param cutoff the day (yyyy/mm/dd)
+     * @return true if the record date is earlier
+     */
+    private boolean isBefore(String[] record, String cutoff) {
+        return record[dateIdx].trim().compareTo(cutoff) < 0;
+    }
+
+    /**
+     * Locks a batch of records, appends them to the archive and deletes them.
+     *
+     * @param recNos the records to archive
+     * @param cutoff the first day to keep
+     * @return the number of records archived
+     * @throws IOException if the archive cannot be written
+     */
+    private int archiveBatch(List<Long> recNos, String cutoff)
+            throws IOException {
+        List<Long> locked = new ArrayList<>(recNos.size());
+        List<Long> cookies = new ArrayList<>(recNos.size());
+        List<String[]> records = new ArrayList<>(recNos.size());
+        try {
+            for (long recNo : recNos) {
+                try {
+                    Long cookie = database.tryLockRecord(recNo);
+                    if (cookie == null) {
+                        continue;
+                    }
+                    locked.add(recNo);
+                    cookies.add(cookie);
+                    // the record may have changed since the scan
+                    String[] record = database.readLockedRecord(recNo, cookie);
+                    if (isBefore(record, cutoff)) {
+                        records.add(record);
+                    } else {
+                        records.add(null);
+                    }
+                } catch (RecordNotFoundException ex) {
+                    records.add(null);
+                }
+            }
+            append(locked, records);
+            int archived = 0;
+            for (int i = 0; i < locked.size(); i++) {
+                if (records.get(i) != null) {
+                    try {
+                        database.deleteRecord(locked.get(i), cookies.get(i));
+                        archived++;
+                    } catch (RecordNotFoundException ex) {
+                        log.log(Level.WARNING, "Archived record not deleted: "
+                                + "{0}", locked.get(i));
+                    }
+                }
+            }
+            return archived;
+        } finally {
+            for (int i = 0; i < locked.size(); i++) {
+                database.unlock(locked.get(i), cookies.get(i));
+            }
+        }
+    }
+
+    /**
+     * Appends records to the archive as a new GZIP member, and forces it to
+     * disk.
+     *
+     * @param recNos the record numbers
+     * @param records the record fields, null for the records to leave out
+     * @throws IOException if the archive cannot be written
+     */
+    private void append(List<Long> recNos, List<String[]> records)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        try (FileOutputStream file = new FileOutputStream(archivePath, true)) {
+            GZIPOutputStream zip = new GZIPOutputStream(
+                    new BufferedOutputStream(file));
+            DataOutputStream out = new DataOutputStream(zip);
+            for (int i = 0; i < recNos.size(); i++) {
+                String[] record = records.get(i);
+                if (record == null) {
+                    continue;
+                }
+                out.writeLong(recNos.get(i));
+                out.writeLong(now);
+                out.writeShort(record.length);
+                for (String field : record) {
+                    out.writeUTF(trim(field));
+                }
+            }
+            zip.finish();
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Removes the padding at the end of a field value.
+     *
+     * @param field the field value
+     * @return the value without trailing spaces
+     */
+    private static String trim(String field) {
+        int end = field.length();
+        while (end > 0 && field.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return field.substring(0, end);
+    }
+
+    /**
+     * Searches the archive. The criteria work the same way as in
+     * <code>Data.findByCriteria</code>, and the records are returned with
+     * their fields padded as in the database file, in the order they were
+     * archived. A record archived twice from the same record number is
+     * returned once.
+     *
+     * @param params the search criteria, with record fields in matching order
+     * @return the archived records that match
+     * @throws IOException if the archive cannot be read
+     */
+    public List<String[]> search(String... params) throws IOException {
+        String[] criteria = Data.swapNulls(params.clone(), "");
+        List<String[]> found = new ArrayList<>();
+        if (!new File(archivePath).exists()) {
+            return found;
+        }
+        Set<List<Object>> seen = new HashSet<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(archivePath))))) {
+            while (true) {
+                long recNo = in.readLong();
+                in.readLong(); // the archive time
+                String[] record = new String[in.readShort()];
+                for (int i = 0; i < record.length; i++) {
+                    record[i] = pad(in.readUTF(), i);
+                }
+                if (Data.matchRecord(criteria, record) > 0
+                        && seen.add(Arrays.<Object>asList(recNo,
+                                Arrays.asList(record)))) {
+                    found.add(record);
+                }
+            }
+        } catch (EOFException ex) {
+            // end of the archive, or of a member cut short by a crash
+        } catch (ZipException ex) {
+            log.log(Level.WARNING, "Archive damaged after {0} records",
+                    found.size());
+        }
+        return found;
+    }
+
+    /**
+     * Pads a field value to the length of its field.
+     *
+     * @param value the value without padding
+     * @param field the position of the field
+     * @return the padded value
+     */
+    private String pad(String value, int field) {
+        if (field >= fieldLengths.length) {
+            return value;
+        }
+        StringBuilder padded = new StringBuilder(fieldLengths[field]);
+        padded.append(value);
+        while (padded.length() < fieldLengths[field]) {
+            padded.append(' ');
+        }
+        return padded.toString();
+    }
+
+    /**
+     * @return the path to the archive file
+     */
+    public String getArchivePath() {
+        return archivePath;
+    }
+
+    /**
+     * Archives the records of a database dated before a day.
+     *
+     * @param args the database path and the first day to keep (yyyy/mm/dd)
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: Archiver database yyyy/mm/dd");
+            return;
+        }
+        try {
+            new Archiver(new Data(args[0])).archiveBefore(args[1]);
+            System.exit(0);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+}
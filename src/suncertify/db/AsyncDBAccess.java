@@ -0,0 +1,86 @@
+package suncertify.db;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous version of the <code>DBAccess</code> operations. Every method
+ * returns at once with a future that completes with the result of the
+ * operation, or exceptionally with the exception the blocking operation would
+ * have thrown. No thread is kept waiting while a record lock is held by
+ * someone else.
+ *
+ * @author Emmanuel
+ */
+public interface AsyncDBAccess {
+
+    /**
+     * Reads a record from the file.
+     *
+     * @param recNo the record number
+     * @return a future of the record fields, failing with
+     * <code>RecordNotFoundException</code> if the record does not exist or is
+     * deleted
+     */
+    public CompletableFuture<String[]> readRecord(long recNo);
+
+    /**
+     * Modifies the fields of a record.
+     *
+     * @param recNo the record number
+     * @param data the new field values
+     * @param lockCookie the cookie returned when the record was locked
+     * @return a future completing when the record is written, failing with
+     * <code>RecordNotFoundException</code> or <code>SecurityException</code>
+     */
+    public CompletableFuture<Void> updateRecord(long recNo, String[] data,
+            long lockCookie);
+
+    /**
+     * Deletes a record, making the record number and associated disk storage
+     * available for reuse.
+     *
+     * @param recNo the record number
+     * @param lockCookie the cookie returned when the record was locked
+     * @return a future completing when the record is deleted, failing with
+     * <code>RecordNotFoundException</code> or <code>SecurityException</code>
+     */
+    public CompletableFuture<Void> deleteRecord(long recNo, long lockCookie);
+
+    /**
+     * Finds the records matching the criteria, the same way as
+     * <code>DBAccess.findByCriteria</code>.
+     *
+     * @param criteria the field values to match
+     * @return a future of the matching record numbers
+     */
+    public CompletableFuture<long[]> findByCriteria(String[] criteria);
+
+    /**
+     * Creates a new record.
+     *
+     * @param data the field values of the record
+     * @return a future of the record number, failing with
+     * <code>DuplicateKeyException</code> if the record already exists
+     */
+    public CompletableFuture<Long> createRecord(String[] data);
+
+    /**
+     * Locks a record. While the record is locked by someone else no thread is
+     * blocked: the future completes when the lock is granted.
+     *
+     * @param recNo the record number
+     * @return a future of the lock cookie
+     */
+    public CompletableFuture<Long> lockRecord(long recNo);
+
+    /**
+     * Releases the lock on a record.
+     *
+     * @param recNo the record number
+     * @param cookie the cookie returned when the record was locked
+     * @return a future completing when the record is unlocked, failing with
+     * <code>SecurityException</code> if the cookie does not match
+     */
+    public CompletableFuture<Void> unlock(long recNo, long cookie);
+
+}
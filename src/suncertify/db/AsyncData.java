@@ -0,0 +1,244 @@
+package suncertify.db;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous access to a database, running the blocking operations of
+ * <code>Data</code> on a dedicated I/O executor, of virtual threads where
+ * the runtime has them. A lock request on a record
+ * that is already locked does not hold a thread: it is queued with the
+ * database and retried when the record is unlocked, or polled when the lock
+ * is held by another process.
+ *
+ * @author Emmanuel
+ */
+public class AsyncData implements AsyncDBAccess {
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * How often a lock held by another process is tried again.
+     */
+    private static final long PROCESS_LOCK_POLL_MILLIS
+            = Data.PROCESS_LOCK_POLL_MILLIS;
+
+    /**
+     * The database the operations are run on.
+     */
+    private final Data database;
+
+    /**
+     * The executor the operations are run on.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The timer polling locks held by other processes.
+     */
+    private final ScheduledExecutorService poller;
+
+    /**
+     * Creates an asynchronous facade with its own I/O executor, from
+     * <code>RequestExecutors</code>.
+     *
+     * @param database the database to run the operations on
+     */
+    public AsyncData(Data database) {
+        this(database, RequestExecutors.newRequestExecutor("Database I/O"));
+    }
+
+    /**
+     * Creates an asynchronous facade running the operations on an executor.
+     *
+     * @param database the database to run the operations on
+     * @param executor the executor to run the blocking operations on
+     */
+    public AsyncData(Data database, ExecutorService executor) {
+        this.database = database;
+        this.executor = executor;
+        this.poller = Executors.newSingleThreadScheduledExecutor(
+                RequestExecutors.newDaemonThreadFactory("Database lock poll"));
+    }
+
+    /**
+     * Runs an operation on the executor.
+     *
+     * @param <T> the type of the result
+     * @param operation the operation to run
+     * @return a future of the result of the operation
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(operation.call());
+                } catch (Exception ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<String[]> readRecord(final long recNo) {
+        return submit(new Callable<String[]>() {
+            @Override
+            public String[] call() throws RecordNotFoundException {
+                return database.readRecord(recNo);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateRecord(final long recNo,
+            final String[] data, final long lockCookie) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws RecordNotFoundException {
+                database.updateRecord(recNo, data, lockCookie);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRecord(final long recNo,
+            final long lockCookie) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws RecordNotFoundException {
+                database.deleteRecord(recNo, lockCookie);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<long[]> findByCriteria(final String[] criteria) {
+        return submit(new Callable<long[]>() {
+            @Override
+            public long[] call() {
+                return database.findByCriteria(criteria);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> createRecord(final String[] data) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() throws DuplicateKeyException {
+                return database.createRecord(data);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> lockRecord(long recNo) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        executor.execute(new LockAttempt(recNo, future));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> unlock(final long recNo, final long cookie) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                database.unlock(recNo, cookie);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops the executor once the operations already submitted are done.
+     * Lock requests still waiting are not granted.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        poller.shutdown();
+    }
+
+    /**
+     * One attempt to lock a record for a pending lock request. If the record
+     * is locked the attempt queues itself to run again when it is unlocked,
+     * instead of waiting.
+     */
+    private class LockAttempt implements Runnable {
+
+        /**
+         * The record to lock.
+         */
+        private final long recNo;
+
+        /**
+         * The future of the lock request.
+         */
+        private final CompletableFuture<Long> future;
+
+        /**
+         * Creates an attempt for a lock request.
+         *
+         * @param recNo the record to lock
+         * @param future the future to complete with the lock cookie
+         */
+        LockAttempt(long recNo, CompletableFuture<Long> future) {
+            this.recNo = recNo;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                // cancelled while queued
+                return;
+            }
+            Long cookie;
+            try {
+                cookie = database.tryLockRecord(recNo);
+            } catch (RecordNotFoundException ex) {
+                future.completeExceptionally(ex);
+                return;
+            }
+            if (cookie != null) {
+                if (!future.complete(cookie)) {
+                    database.unlock(recNo, cookie);
+                }
+                return;
+            }
+            // runs on the unlocking or polling thread, which must not fail
+            Runnable retry = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(LockAttempt.this);
+                    } catch (RejectedExecutionException ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            };
+            if (!database.whenUnlocked(recNo, retry)) {
+                // held by another process, which cannot tell us
+                log.fine("Record locked by another process, polling");
+                poller.schedule(retry, PROCESS_LOCK_POLL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+package suncertify.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Materialized view of the number of free (unowned) rooms per location and
+ * date, and per hotel name and date. The counts are kept current by the record
+ * changes of the database, each change costing a constant number of map
+ * updates, so queries never have to scan the database file. The existing
+ * records are added in the background; until that is done queries are
+ * answered by scanning the file.
+ *
+ * @author Emmanuel
+ */
+public class AvailabilityView implements DataListener {
+
+    /**
+     * The name of the field holding the hotel name.
+     */
+    public static final String NAME_FIELD = "name";
+
+    /**
+     * The name of the field holding the hotel city.
+     */
+    public static final String LOCATION_FIELD = "location";
+
+    /**
+     * The name of the field holding the date of the occupancy.
+     */
+    public static final String DATE_FIELD = "date";
+
+    /**
+     * The name of the field holding the customer id.
+     */
+    public static final String OWNER_FIELD = "owner";
+
+    /**
+     * Character used to join the parts of a composite key.
+     */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /**
+     * The free room counts keyed by location and date. Guarded by this view.
+     */
+    private Map<String, Integer> byLocation;
+
+    /**
+     * The free room counts keyed by hotel name and date. Guarded by this
+     * view.
+     */
+    private Map<String, Integer> byName;
+
+    /**
+     * The database the view is maintained for.
+     */
+    private final Data database;
+
+    /**
+     * The positions of the fields used by the view in each record.
+     */
+    private final int nameIdx, locationIdx, dateIdx, ownerIdx;
+
+    /**
+     * Creates the view and registers it with the database, which fills it with
+     * the records currently in the file on a background thread.
+     *
+     * @param database the database to maintain the view for
+     * @throws IllegalArgumentException if the database has no field needed by
+     * the view
+     */
+    public AvailabilityView(Data database) {
+        Map<?, ?> fields = database.getFields();
+        List<Object> names = new ArrayList<Object>(fields.keySet());
+        nameIdx = indexOf(names, NAME_FIELD);
+        locationIdx = indexOf(names, LOCATION_FIELD);
+        dateIdx = indexOf(names, DATE_FIELD);
+        ownerIdx = indexOf(names, OWNER_FIELD);
+        byLocation = new HashMap<>();
+        byName = new HashMap<>();
+        this.database = database;
+        database.addDataListener(this, true);
+    }
+
+    /**
+     * Finds the position of a field in the record.
+     *
+     * @param names the field names in record order
+     * @param field the field to find
+     * @return the position of the field
+     * @throws IllegalArgumentException if the field does not exist
+     */
+    private static int indexOf(List<Object> names, String field) {
+        int idx = names.indexOf(field);
+        if (idx < 0) {
+            throw new IllegalArgumentException("No field named " + field);
+        }
+        return idx;
+    }
+
+    /**
+     * Builds the key of a count from its parts.
+     *
+     * @param value the location or hotel name
+     * @param date the date as stored in the database
+     * @return the composite key
+     */
+    private static String key(String value, String date) {
+        return value.trim() + KEY_SEPARATOR + date.trim();
+    }
+
+    /**
+     * Adds a value to a count, removing the count when it reaches zero.
+     *
+     * @param counts the counts to change
+     * @param key the key of the count
+     * @param delta the value to add
+     */
+    private static void add(Map<String, Integer> counts, String key,
+            int delta) {
+        Integer count = counts.get(key);
+        int value = (count == null ? 0 : count) + delta;
+        if (value == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, value);
+        }
+    }
+
+    /**
+     * Adds or removes the contribution of a record to the counts.
+     *
+     * @param record the record fields
+     * @param delta 1 to add the record, -1 to remove it
+     */
+    private synchronized void count(String[] record, int delta) {
+        count(byLocation, byName, record, delta);
+    }
+
+    /**
+     * Adds or removes the contribution of a record to a set of counts.
+     *
+     * @param locations the counts by location and date
+     * @param names the counts by hotel name and date
+     * @param record the record fields
+     * @param delta 1 to add the record, -1 to remove it
+     */
+    private void count(Map<String, Integer> locations,
+            Map<String, Integer> names, String[] record, int delta) {
+        if (record[ownerIdx].trim().isEmpty()) {
+            add(locations, key(record[locationIdx], record[dateIdx]), delta);
+            add(names, key(record[nameIdx], record[dateIdx]), delta);
+        }
+    }
+
+    @Override
+    public void recordCreated(long recNo, String[] record) {
+        count(record, 1);
+    }
+
+    @Override
+    public void recordUpdated(long recNo, String[] before, String[] after) {
+        count(before, -1);
+        count(after, 1);
+    }
+
+    @Override
+    public void recordDeleted(long recNo, String[] before) {
+        count(before, -1);
+    }
+
+    @Override
+    public void dataReloaded() throws IOException {
+        // built aside and swapped in whole, so queries meanwhile get the old
+        // counts, not partial ones; no record changes under the write lock
+        final Map<String, Integer> locations = new HashMap<>();
+        final Map<String, Integer> names = new HashMap<>();
+        database.scan(new Data.RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] record) {
+                count(locations, names, record, 1);
+            }
+        });
+        synchronized (this) {
+            byLocation = locations;
+            byName = names;
+        }
+    }
+
+    /**
+     * Counts the free rooms with a field value on a date by scanning the
+     * database file, for use while the view is still being filled.
+     *
+     * @param field the position of the field to check
+     * @param value the field value
+     * @param date the date as stored in the database (yyyy/mm/dd)
+     * @return the number of rooms without an owner
+     * @throws IOException if the database file cannot be read
+     */
+    private int countByScan(final int field, String value, String date)
+            throws IOException {
+        final String match = key(value, date);
+        final int[] count = {0};
+        database.scan(new Data.RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] record) {
+                if (record[ownerIdx].trim().isEmpty()
+                        && match.equals(key(record[field], record[dateIdx]))) {
+                    count[0]++;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Get the number of free rooms in a location on a date.
+     *
+     * @param location the hotel city
+     * @param date the date as stored in the database (yyyy/mm/dd)
+     * @return the number of rooms without an owner
+     * @throws IOException if the view is still being filled and the database
+     * file cannot be read
+     */
+    public int getFreeByLocation(String location, String date)
+            throws IOException {
+        if (database.isReplaying(this)) {
+            return countByScan(locationIdx, location, date);
+        }
+        synchronized (this) {
+            Integer count = byLocation.get(key(location, date));
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * Get the number of free rooms in a hotel on a date.
+     *
+     * @param name the hotel name
+     * @param date the date as stored in the database (yyyy/mm/dd)
+     * @return the number of rooms without an owner
+     * @throws IOException if the view is still being filled and the database
+     * file cannot be read
+     */
+    public int getFreeByName(String name, String date) throws IOException {
+        if (database.isReplaying(this)) {
+            return countByScan(nameIdx, name, date);
+        }
+        synchronized (this) {
+            Integer count = byName.get(key(name, date));
+            return count == null ? 0 : count;
+        }
+    }
+
+}
@@ -0,0 +1,745 @@
+package suncertify.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of the pages of a database file. The records are grouped into
+ * fixed-size pages of whole records, counted from the first record, and up to
+ * a memory budget of pages is kept in off-heap frames of a
+ * <code>RecordArena</code>. When the pool is full, a page is evicted using the
+ * clock algorithm, so pages read often stay resident while pages touched once
+ * are paged out.
+ *
+ * <p>
+ * Writes to records inside the file are made to the pages and written back
+ * when the page is evicted or the pool is flushed. The owner must flush the
+ * pool before releasing the file to other instances or processes, and before
+ * forcing the file to disk. Writes past the end of the file, which grow it,
+ * are written through. Full scans only admit pages into free frames, so a
+ * scan of cold history does not evict the hot pages.
+ *
+ * <p>
+ * Readers holding the shared database lock use the pool concurrently. The
+ * page table and the frame state are guarded by a lock held only for
+ * bookkeeping and copying from memory, never across file I/O: a reader
+ * loads a missing page holding only the lock of the page's stripe, so
+ * readers of other pages go on, and pins its frame until the record is
+ * copied, so it is not evicted meanwhile. Locks
+ * are used rather than monitors, so a virtual thread waiting for the disk
+ * does not pin its carrier thread. Readers only evict clean pages; when
+ * every frame is dirty they read from the file, which holds every page that
+ * is not resident. Writing, flushing, truncating and clearing are done only
+ * by the holder of the exclusive database lock, while no reader uses the
+ * pool.
+ *
+ * @author Emmanuel
+ */
+class BufferPool {
+
+    /**
+     * The number of locks the loading of pages is striped over.
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * The database file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The location of the first record in the file.
+     */
+    private final long dataOffset;
+
+    /**
+     * The length (in bytes) of each record.
+     */
+    private final int recordLength;
+
+    /**
+     * The number of records in each page.
+     */
+    private final int pageRecords;
+
+    /**
+     * The length (in bytes) of each page.
+     */
+    private final int pageSize;
+
+    /**
+     * The frames holding the resident pages.
+     */
+    private final RecordArena frames;
+
+    /**
+     * The number of frames.
+     */
+    private final int numFrames;
+
+    /**
+     * The frame holding each resident page, by page number.
+     */
+    private final LongLongMap pageTable;
+
+    /**
+     * The page held by each frame, -1 for free frames.
+     */
+    private final long[] framePages;
+
+    /**
+     * The number of bytes of the file held by each frame, less than the page
+     * size for the last page of the file.
+     */
+    private final int[] frameLengths;
+
+    /**
+     * The frames read or written since the clock hand last passed them.
+     */
+    private final BitSet referenced;
+
+    /**
+     * The frames changed since they were last written back.
+     */
+    private final BitSet dirty;
+
+    /**
+     * The number of readers copying from each frame. A pinned frame is not
+     * evicted.
+     */
+    private final int[] pins;
+
+    /**
+     * The reusable buffer used to move whole pages by the holder of the
+     * exclusive database lock.
+     */
+    private final byte[] pageBuffer;
+
+    /**
+     * Guards the page table, the frame state, the clock hand and the number of
+     * frames in use.
+     */
+    private final ReentrantLock mutex;
+
+    /**
+     * The locks serializing the loading of the pages of each stripe, so a
+     * page is read from the file once.
+     */
+    private final ReentrantLock[] stripes;
+
+    /**
+     * The reusable buffer of each stripe used to load pages, allocated on
+     * first use. Guarded by the lock of the stripe.
+     */
+    private final byte[][] loadBuffers;
+
+    /**
+     * The next frame the clock hand looks at.
+     */
+    private int hand;
+
+    /**
+     * The number of frames in use.
+     */
+    private int used;
+
+    /**
+     * Creates an empty pool. No memory is allocated until pages are loaded.
+     *
+     * @param channel the database file
+     * @param dataOffset the location of the first record in the file
+     * @param recordLength the length (in bytes) of each record
+     * @param pageSize the length (in bytes) of each page, rounded down to
+     * whole records, at least one record
+     * @param maxBytes the most off-heap memory (in bytes) the pool may use
+     */
+    BufferPool(FileChannel channel, long dataOffset, int recordLength,
+            int pageSize, long maxBytes) {
+        this.channel = channel;
+        this.dataOffset = dataOffset;
+        this.recordLength = recordLength;
+        this.pageRecords = Math.max(1, pageSize / recordLength);
+        this.pageSize = pageRecords * recordLength;
+        this.frames = new RecordArena(this.pageSize, maxBytes);
+        this.numFrames = frames.getCapacity();
+        this.pageTable = new LongLongMap(-1);
+        this.framePages = new long[numFrames];
+        this.frameLengths = new int[numFrames];
+        this.referenced = new BitSet(numFrames);
+        this.dirty = new BitSet(numFrames);
+        this.pins = new int[numFrames];
+        this.pageBuffer = new byte[this.pageSize];
+        this.mutex = new ReentrantLock();
+        this.stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.loadBuffers = new byte[STRIPES][];
+        Arrays.fill(framePages, -1);
+    }
+
+    /**
+     * Get the location in the file of a page.
+     *
+     * @param page the page number
+     * @return the location of the first record of the page
+     */
+    private long pagePosition(long page) {
+        return dataOffset + page * pageSize;
+    }
+
+    /**
+     * Pins the frame of a resident page. The caller holds the mutex.
+     *
+     * @param page the page number
+     * @param reference true to mark the page referenced for the clock
+     * @return the pinned frame, or -1 if the page is not resident
+     */
+    private int pin(long page, boolean reference) {
+        int frame = (int) pageTable.get(page);
+        if (frame >= 0) {
+            pins[frame]++;
+            if (reference) {
+                referenced.set(frame);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Releases a frame pinned by <code>pin</code> or <code>load</code>.
+     *
+     * @param frame the frame
+     */
+    private void unpin(int frame) {
+        mutex.lock();
+        try {
+            pins[frame]--;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Pins the frame of a page, loading the page if it is not resident. The
+     * page is read from the file holding only the lock of its stripe, not the
+     * mutex.
+     *
+     * @param page the page number
+     * @param evict true to evict a clean page if no frame is free
+     * @param reference true to mark the page referenced for the clock
+     * @param size the length of the file
+     * @return the pinned frame, or -1 if the page is not resident and could
+     * not be loaded
+     * @throws IOException if the page cannot be read
+     */
+    private int load(long page, boolean evict, boolean reference, long size)
+            throws IOException {
+        long position = pagePosition(page);
+        if (position >= size) {
+            return -1;
+        }
+        int frame;
+        int stripe = (int) (page % STRIPES);
+        stripes[stripe].lock();
+        try {
+            mutex.lock();
+            try {
+                // another reader may have loaded it meanwhile
+                frame = pin(page, reference);
+                if (frame >= 0) {
+                    return frame;
+                }
+                frame = reserve(evict);
+                if (frame < 0) {
+                    return -1;
+                }
+            } finally {
+                mutex.unlock();
+            }
+            byte[] buffer = loadBuffers[stripe];
+            if (buffer == null) {
+                buffer = new byte[pageSize];
+                loadBuffers[stripe] = buffer;
+            }
+            int length = (int) Math.min(pageSize, size - position);
+            ByteBuffer buf = ByteBuffer.wrap(buffer, 0, length);
+            try {
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position()) < 0) {
+                        break;
+                    }
+                }
+                frames.put(frame, buffer);
+            } catch (IOException ex) {
+                // leave the frame free for the clock to hand out again
+                unpin(frame);
+                throw ex;
+            }
+            mutex.lock();
+            try {
+                framePages[frame] = page;
+                frameLengths[frame] = buf.position();
+                if (reference) {
+                    referenced.set(frame);
+                }
+                pageTable.put(page, frame);
+            } finally {
+                mutex.unlock();
+            }
+            return frame;
+        } finally {
+            stripes[stripe].unlock();
+        }
+    }
+
+    /**
+     * Reserves a free frame, pinned and holding no page, evicting a clean
+     * page if the pool is full. The caller holds the mutex.
+     *
+     * @param evict true to evict a page if no frame is free
+     * @return the frame, or -1 if no frame could be freed
+     */
+    private int reserve(boolean evict) {
+        int frame;
+        if (used < numFrames) {
+            frame = used++;
+        } else if (evict && numFrames > 0) {
+            frame = evict();
+            if (frame < 0) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+        pins[frame] = 1;
+        frameLengths[frame] = 0;
+        return frame;
+    }
+
+    /**
+     * Moves the clock hand to an unpinned, clean frame whose page was not
+     * referenced since the hand last passed, and frees the frame. Dirty pages
+     * are left for the next flush, so eviction never writes to the file. The
+     * caller holds the mutex.
+     *
+     * @return the free frame, or -1 if every frame is pinned or dirty
+     */
+    private int evict() {
+        // two turns clear every reference bit on the way
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int frame = hand;
+            hand = (hand + 1) % numFrames;
+            if (pins[frame] > 0 || dirty.get(frame)) {
+                continue;
+            }
+            if (referenced.get(frame)) {
+                referenced.clear(frame);
+                continue;
+            }
+            pageTable.remove(framePages[frame]);
+            framePages[frame] = -1;
+            return frame;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a frame back to the file if it is dirty. Only called by the
+     * holder of the exclusive database lock.
+     *
+     * @param frame the frame
+     * @throws IOException if the file cannot be written
+     */
+    private void writeBack(int frame) throws IOException {
+        int length;
+        long position;
+        mutex.lock();
+        try {
+            if (!dirty.get(frame)) {
+                return;
+            }
+            length = frameLengths[frame];
+            position = pagePosition(framePages[frame]);
+        } finally {
+            mutex.unlock();
+        }
+        frames.get(frame, 0, pageBuffer, 0, length);
+        ByteBuffer buf = ByteBuffer.wrap(pageBuffer, 0, length);
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        mutex.lock();
+        try {
+            dirty.clear(frame);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Reads a record, loading its page if it is not resident.
+     *
+     * @param ordinal the record ordinal
+     * @param dst the array to copy the record into, a record long
+     * @return false if the record is not in the file or the pool has no room,
+     * in which case it must be read from the file
+     * @throws IOException if a page cannot be read or written back
+     */
+    boolean read(int ordinal, byte[] dst) throws IOException {
+        if (ordinal < 0) {
+            return false;
+        }
+        long page = ordinal / pageRecords;
+        int position = (ordinal % pageRecords) * recordLength;
+        mutex.lock();
+        try {
+            int frame = (int) pageTable.get(page);
+            if (frame >= 0) {
+                referenced.set(frame);
+                return copy(frame, position, dst);
+            }
+        } finally {
+            mutex.unlock();
+        }
+        int frame = load(page, true, true, channel.size());
+        if (frame < 0) {
+            return false;
+        }
+        try {
+            return copy(frame, position, dst);
+        } finally {
+            unpin(frame);
+        }
+    }
+
+    /**
+     * Copies a record out of a frame. The caller holds the mutex or has the
+     * frame pinned.
+     *
+     * @param frame the frame
+     * @param position the location of the record in the frame
+     * @param dst the array to copy the record into, a record long
+     * @return false if the frame does not hold the whole record
+     */
+    private boolean copy(int frame, int position, byte[] dst) {
+        if (position + recordLength > frameLengths[frame]) {
+            return false;
+        }
+        frames.get(frame, position, dst, 0, recordLength);
+        return true;
+    }
+
+    /**
+     * Reads a run of whole records into a buffer, which must have room for
+     * them. Resident pages are copied; other pages are loaded into free
+     * frames, or read straight from the file once the pool is full, so a
+     * scan never evicts a page.
+     *
+     * @param ordinal the first record ordinal
+     * @param count the number of records, all of them in the file
+     * @param dst the buffer to copy the records into
+     * @throws IOException if the file cannot be read
+     */
+    void readRun(int ordinal, int count, ByteBuffer dst) throws IOException {
+        long size = channel.size();
+        while (count > 0) {
+            long page = ordinal / pageRecords;
+            int first = ordinal % pageRecords;
+            int run = Math.min(count, pageRecords - first);
+            int position = first * recordLength;
+            int length = run * recordLength;
+            boolean copied = false;
+            int frame;
+            mutex.lock();
+            try {
+                frame = (int) pageTable.get(page);
+                if (frame >= 0) {
+                    copied = copy(frame, position, length, dst);
+                }
+            } finally {
+                mutex.unlock();
+            }
+            if (frame < 0) {
+                frame = load(page, false, false, size);
+                if (frame >= 0) {
+                    try {
+                        copied = copy(frame, position, length, dst);
+                    } finally {
+                        unpin(frame);
+                    }
+                }
+            }
+            if (!copied) {
+                int limit = dst.limit();
+                dst.limit(dst.position() + length);
+                long start = pagePosition(page) + position;
+                while (dst.hasRemaining() && channel.read(dst,
+                        start + length - dst.remaining()) >= 0) {
+                    // keep reading until the run is complete
+                }
+                dst.limit(limit);
+            }
+            ordinal += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Copies a run of records out of a frame into a buffer. The caller holds
+     * the mutex or has the frame pinned.
+     *
+     * @param frame the frame
+     * @param position the location of the run in the frame
+     * @param length the length (in bytes) of the run
+     * @param dst the buffer to copy the run into
+     * @return false if the frame does not hold the whole run
+     */
+    private boolean copy(int frame, int position, int length, ByteBuffer dst) {
+        if (position + length > frameLengths[frame]) {
+            return false;
+        }
+        frames.get(frame, position, length, dst);
+        return true;
+    }
+
+    /**
+     * Writes bytes to the file. Bytes inside the file are written to their
+     * pages, loading them if needed, and marked dirty. Writes that grow the
+     * file, or that the pool has no clean frame for, are written through,
+     * updating any resident page they cover. Only called by the holder of the
+     * exclusive database lock.
+     *
+     * @param position the location in the file to write to
+     * @param src the bytes to write
+     * @throws IOException if the file cannot be read or written
+     */
+    void write(long position, byte[] src) throws IOException {
+        long size = channel.size();
+        if (position < dataOffset || position + src.length > size
+                || numFrames == 0) {
+            writeThrough(position, src);
+            return;
+        }
+        int written = 0;
+        while (written < src.length) {
+            long offset = position + written - dataOffset;
+            long page = offset / pageSize;
+            int start = (int) (offset % pageSize);
+            int length = Math.min(pageSize - start, src.length - written);
+            int frame = load(page, true, true, size);
+            if (frame < 0) {
+                writeThrough(position + written,
+                        Arrays.copyOfRange(src, written, written + length));
+            } else {
+                frames.update(frame, start, src, written, length);
+                mutex.lock();
+                try {
+                    dirty.set(frame);
+                    pins[frame]--;
+                } finally {
+                    mutex.unlock();
+                }
+            }
+            written += length;
+        }
+    }
+
+    /**
+     * Writes bytes straight to the file and applies them to the resident
+     * pages they cover. A page the bytes would leave with a gap is dropped.
+     *
+     * @param position the location in the file to write to
+     * @param src the bytes to write
+     * @throws IOException if the file cannot be written
+     */
+    private void writeThrough(long position, byte[] src) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        mutex.lock();
+        try {
+            update(position, src);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Applies bytes written straight to the file to the resident pages they
+     * cover. The caller holds the mutex.
+     *
+     * @param position the location in the file the bytes were written to
+     * @param src the bytes written
+     * @throws IOException if a dropped page cannot be written back
+     */
+    private void update(long position, byte[] src) throws IOException {
+        int written = 0;
+        while (written < src.length) {
+            long offset = position + written - dataOffset;
+            if (offset < 0) {
+                // header bytes are not paged
+                written += (int) Math.min(-offset, src.length - written);
+                continue;
+            }
+            long page = offset / pageSize;
+            int start = (int) (offset % pageSize);
+            int length = Math.min(pageSize - start, src.length - written);
+            int frame = (int) pageTable.get(page);
+            if (frame >= 0) {
+                if (start <= frameLengths[frame]) {
+                    frames.update(frame, start, src, written, length);
+                    frameLengths[frame]
+                            = Math.max(frameLengths[frame], start + length);
+                } else {
+                    writeBack(frame);
+                    drop(frame);
+                }
+            }
+            written += length;
+        }
+    }
+
+    /**
+     * Frees a frame without writing it back.
+     *
+     * @param frame the frame
+     */
+    private void drop(int frame) {
+        pageTable.remove(framePages[frame]);
+        framePages[frame] = -1;
+        referenced.clear(frame);
+        dirty.clear(frame);
+        // keep the used frames contiguous by moving the last one down
+        int last = used - 1;
+        if (frame != last) {
+            frames.get(last, 0, pageBuffer, 0, frameLengths[last]);
+            frames.put(frame, pageBuffer);
+            framePages[frame] = framePages[last];
+            frameLengths[frame] = frameLengths[last];
+            referenced.set(frame, referenced.get(last));
+            dirty.set(frame, dirty.get(last));
+            pageTable.put(framePages[frame], frame);
+            framePages[last] = -1;
+            referenced.clear(last);
+            dirty.clear(last);
+        }
+        used--;
+        hand = used == 0 ? 0 : hand % used;
+    }
+
+    /**
+     * Writes every dirty page back to the file, in file order. Only called by
+     * the holder of the exclusive database lock.
+     *
+     * @throws IOException if the file cannot be written, in which case the
+     * pages left are still dirty
+     */
+    void flush() throws IOException {
+        int[] dirtyFrames;
+        mutex.lock();
+        try {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            long[] pages = new long[dirty.cardinality()];
+            int n = 0;
+            for (int f = dirty.nextSetBit(0); f >= 0;
+                    f = dirty.nextSetBit(f + 1)) {
+                pages[n++] = framePages[f];
+            }
+            Arrays.sort(pages);
+            dirtyFrames = new int[n];
+            for (int i = 0; i < n; i++) {
+                dirtyFrames[i] = (int) pageTable.get(pages[i]);
+            }
+        } finally {
+            mutex.unlock();
+        }
+        for (int frame : dirtyFrames) {
+            writeBack(frame);
+        }
+    }
+
+    /**
+     * Drops the pages past the end of the file and shortens the page holding
+     * the end, after the file was truncated. Pages should be flushed before
+     * the file is truncated. Only called by the holder of the exclusive
+     * database lock.
+     *
+     * @param length the new length of the file
+     */
+    void truncate(long length) {
+        mutex.lock();
+        try {
+            // dropping a frame moves the last one down, which was checked
+            for (int f = used - 1; f >= 0; f--) {
+                long start = pagePosition(framePages[f]);
+                if (start >= length) {
+                    drop(f);
+                } else if (start + frameLengths[f] > length) {
+                    frameLengths[f] = (int) (length - start);
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * @return true if pages have changes that were not written back
+     */
+    boolean isDirty() {
+        mutex.lock();
+        try {
+            return !dirty.isEmpty();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Drops every page without writing it back, after the file was changed
+     * by another process. The memory is kept for reuse.
+     */
+    void clear() {
+        mutex.lock();
+        try {
+            pageTable.clear();
+            Arrays.fill(framePages, -1);
+            Arrays.fill(pins, 0);
+            referenced.clear();
+            dirty.clear();
+            frames.clear();
+            used = 0;
+            hand = 0;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * @return the number of pages currently resident
+     */
+    int getResidentPages() {
+        mutex.lock();
+        try {
+            return used;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * @return the most pages the pool can hold
+     */
+    int getCapacity() {
+        return numFrames;
+    }
+
+}
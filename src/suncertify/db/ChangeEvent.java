@@ -0,0 +1,214 @@
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A change made to the records of a database file, as published by a
+ * <code>ChangeStream</code>. Events are numbered in the order the changes
+ * were made, and carry the record before and after the change.
+ *
+ * @author Emmanuel
+ */
+public class ChangeEvent {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Type {
+
+        /**
+         * A record was written into a new or reused location.
+         */
+        CREATE,
+        /**
+         * The fields of an existing record were overwritten.
+         */
+        UPDATE,
+        /**
+         * A record was flagged as deleted.
+         */
+        DELETE,
+        /**
+         * The file was changed by another process, or another instance, so
+         * changes may have been missed and consumers should resynchronize.
+         */
+        RELOAD
+    }
+
+    /**
+     * The kind of change.
+     */
+    private final Type type;
+
+    /**
+     * The position of the change in the stream, starting at 1.
+     */
+    private final long sequence;
+
+    /**
+     * When the change was published, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * The location of the record in the db file, -1 for a reload.
+     */
+    private final long recNo;
+
+    /**
+     * The record fields before the change, null for a creation or reload.
+     */
+    private final String[] before;
+
+    /**
+     * The record fields after the change, null for a deletion or reload.
+     */
+    private final String[] after;
+
+    /**
+     * Creates an event.
+     *
+     * @param type the kind of change
+     * @param sequence the position of the change in the stream
+     * @param timestamp when the change was published
+     * @param recNo the location of the record in the db file
+     * @param before the record fields before the change, or null
+     * @param after the record fields after the change, or null
+     */
+    public ChangeEvent(Type type, long sequence, long timestamp, long recNo,
+            String[] before, String[] after) {
+        this.type = type;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.recNo = recNo;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the kind of change
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the position of the change in the stream, starting at 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return when the change was published, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the location of the record in the db file, -1 for a reload
+     */
+    public long getRecNo() {
+        return recNo;
+    }
+
+    /**
+     * @return the record fields before the change, null for a creation or
+     * reload
+     */
+    public String[] getBefore() {
+        return before == null ? null : before.clone();
+    }
+
+    /**
+     * @return the record fields after the change, null for a deletion or
+     * reload
+     */
+    public String[] getAfter() {
+        return after == null ? null : after.clone();
+    }
+
+    /**
+     * Writes the event in its compact binary form. Field values are written
+     * without their trailing padding.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeLong(sequence);
+        out.writeLong(timestamp);
+        out.writeLong(recNo);
+        writeRecord(out, before);
+        writeRecord(out, after);
+    }
+
+    /**
+     * Reads an event written by <code>writeTo</code>.
+     *
+     * @param in the input to read from
+     * @return the event
+     * @throws IOException if the input cannot be read
+     */
+    public static ChangeEvent readFrom(DataInput in) throws IOException {
+        Type type = Type.values()[in.readUnsignedByte()];
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        long recNo = in.readLong();
+        String[] before = readRecord(in);
+        String[] after = readRecord(in);
+        return new ChangeEvent(type, sequence, timestamp, recNo, before, after);
+    }
+
+    /**
+     * Writes the fields of a record, or a marker for no record.
+     *
+     * @param out the output to write to
+     * @param record the record fields, or null
+     * @throws IOException if the output cannot be written
+     */
+    private static void writeRecord(DataOutput out, String[] record)
+            throws IOException {
+        if (record == null) {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(record.length);
+        for (String field : record) {
+            int end = field.length();
+            while (end > 0 && field.charAt(end - 1) == ' ') {
+                end--;
+            }
+            out.writeUTF(field.substring(0, end));
+        }
+    }
+
+    /**
+     * Reads the fields of a record written by <code>writeRecord</code>.
+     *
+     * @param in the input to read from
+     * @return the record fields, or null
+     * @throws IOException if the input cannot be read
+     */
+    private static String[] readRecord(DataInput in) throws IOException {
+        int length = in.readShort();
+        if (length < 0) {
+            return null;
+        }
+        String[] record = new String[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = in.readUTF();
+        }
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        return type + " #" + sequence + " @" + recNo;
+    }
+
+}
@@ -0,0 +1,168 @@
+package suncertify.db;
+
+import suncertify.gui.Occupancy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounded history of the latest record changes, kept in memory so a client
+ * that has already searched can be sent only the occupancies changed since,
+ * instead of the whole result again. Every change moves the history to a new
+ * version; a version too old for the history, or from before a reload, is
+ * answered with <code>null</code> and the caller must search again.
+ *
+ * <p>
+ * Versions are opaque to the clients. The high bits hold an epoch picked at
+ * random when the history starts and every time it is reset, so a version
+ * handed out by another process, or before a reload, is never taken for a
+ * current one. Version 0 is never handed out.
+ *
+ * @author Emmanuel
+ */
+class ChangeHistory implements ChangeSubscriber {
+
+    /**
+     * The system property that can be used to override the default history
+     * size.
+     */
+    public static final String SIZE_PROPERTY = "suncertify.db.changeHistorySize";
+
+    /**
+     * The default number of changes kept.
+     */
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * The number of low bits of a version holding the change count.
+     */
+    private static final int EPOCH_SHIFT = 40;
+
+    /**
+     * The number of different epochs.
+     */
+    private static final int EPOCHS = 1 << 23;
+
+    /**
+     * The addresses of the changed records, in a ring.
+     */
+    private final long[] addresses;
+
+    /**
+     * The records after each change, null for a deletion, in a ring.
+     */
+    private final String[][] records;
+
+    /**
+     * The epoch of the versions handed out, never 0.
+     */
+    private long epoch;
+
+    /**
+     * The number of changes recorded since the last reset.
+     */
+    private long count;
+
+    /**
+     * Creates an empty history.
+     *
+     * @param size the number of changes kept
+     */
+    ChangeHistory(int size) {
+        addresses = new long[Math.max(1, size)];
+        records = new String[addresses.length][];
+        reset();
+    }
+
+    /**
+     * Forgets every change and starts a new epoch, so searches made before
+     * have to be repeated in full.
+     */
+    synchronized void reset() {
+        long previous = epoch;
+        do {
+            epoch = 1 + ThreadLocalRandom.current().nextInt(EPOCHS - 1);
+        } while (epoch == previous);
+        count = 0;
+        for (int i = 0; i < records.length; i++) {
+            records[i] = null;
+        }
+    }
+
+    /**
+     * Records a change, dropping the oldest change if the history is full.
+     *
+     * @param address the address of the changed record
+     * @param record the record after the change, or null if it was deleted
+     */
+    synchronized void record(long address, String[] record) {
+        int slot = (int) (count % addresses.length);
+        addresses[slot] = address;
+        records[slot] = record;
+        count++;
+    }
+
+    @Override
+    public void changed(ChangeEvent event) {
+        if (event.getType() == ChangeEvent.Type.RELOAD) {
+            reset();
+        } else {
+            record(event.getRecNo(), event.getAfter());
+        }
+    }
+
+    /**
+     * Get the current version. A search made after reading it sees at least
+     * every change up to the version.
+     *
+     * @return the version of the latest change
+     */
+    synchronized long getVersion() {
+        return epoch << EPOCH_SHIFT | count;
+    }
+
+    /**
+     * Finds the occupancies changed since a version. The latest state of each
+     * changed record is returned if it matches the search parameters; the
+     * address of a changed record that no longer matches, or was deleted, is
+     * returned as removed.
+     *
+     * @param version the version the client last saw
+     * @param params the search criteria, with record fields in matching order
+     * @return the changes since the version, or null if the history does not
+     * go back that far
+     */
+    synchronized OccupancyDelta since(long version, String[] params) {
+        long seen = version & ((1L << EPOCH_SHIFT) - 1);
+        if (version >>> EPOCH_SHIFT != epoch || seen > count
+                || count - seen > addresses.length) {
+            return null;
+        }
+        // the latest change of each record, in the order last changed
+        Map<Long, String[]> latest = new LinkedHashMap<>();
+        for (long c = seen; c < count; c++) {
+            int slot = (int) (c % addresses.length);
+            latest.remove(addresses[slot]);
+            latest.put(addresses[slot], records[slot]);
+        }
+        // the same criteria as Data.findByCriteria
+        String[] criteria = Data.swapNulls(params.clone(), "");
+        List<Occupancy> changed = new ArrayList<>();
+        long[] removed = new long[latest.size()];
+        int numRemoved = 0;
+        for (Map.Entry<Long, String[]> change : latest.entrySet()) {
+            String[] record = change.getValue();
+            if (record != null && Data.matchRecord(criteria, record) > 0) {
+                changed.add(new Occupancy(change.getKey(), record));
+            } else {
+                removed[numRemoved++] = change.getKey();
+            }
+        }
+        return new OccupancyDelta(getVersion(), false, changed,
+                Arrays.copyOf(removed, numRemoved));
+    }
+
+}
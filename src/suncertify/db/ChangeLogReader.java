@@ -0,0 +1,130 @@
+package suncertify.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Follows the change log written by a <code>ChangeStream</code>, possibly
+ * while another process is still appending to it. Events are returned in
+ * sequence order; an event that has not been completely written yet is left
+ * for a later call.
+ *
+ * @author Emmanuel
+ */
+public class ChangeLogReader implements AutoCloseable {
+
+    /**
+     * The change log.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The length prefix of the next event.
+     */
+    private final ByteBuffer header;
+
+    /**
+     * The position of the next event in the log.
+     */
+    private long position;
+
+    /**
+     * The sequence number events must follow to be returned.
+     */
+    private final long after;
+
+    /**
+     * Opens the change log of a database file, to read it from the start.
+     *
+     * @param dbPath the path to the database file
+     * @throws IOException if the change log cannot be opened
+     */
+    public ChangeLogReader(String dbPath) throws IOException {
+        this(dbPath, 0);
+    }
+
+    /**
+     * Opens the change log of a database file, to read the events following a
+     * sequence number, for a consumer that has already seen the earlier ones.
+     *
+     * @param dbPath the path to the database file
+     * @param after the sequence number of the last event already seen
+     * @throws IOException if the change log cannot be opened
+     */
+    public ChangeLogReader(String dbPath, long after) throws IOException {
+        channel = new RandomAccessFile(
+                dbPath + ChangeStream.LOG_FILE_EXTENSION, "r").getChannel();
+        header = ByteBuffer.allocate(ChangeStream.FRAME_HEADER_LENGTH);
+        this.after = after;
+    }
+
+    /**
+     * Reads the next complete event in the log.
+     *
+     * @return the event, or null if no more complete events have been written
+     * @throws IOException if the log cannot be read
+     */
+    public ChangeEvent next() throws IOException {
+        while (true) {
+            long size = channel.size();
+            if (position + header.capacity() > size) {
+                return null;
+            }
+            header.clear();
+            while (header.hasRemaining() && channel.read(header,
+                    position + header.position()) >= 0) {
+                // keep reading until the prefix is complete
+            }
+            int length = header.getInt(0);
+            long start = position + header.capacity();
+            if (length < 0 || start + length > size) {
+                return null;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(length);
+            while (frame.hasRemaining() && channel.read(frame,
+                    start + frame.position()) >= 0) {
+                // keep reading until the event is complete
+            }
+            position = start + length;
+            ChangeEvent event = ChangeEvent.readFrom(new DataInputStream(
+                    new ByteArrayInputStream(frame.array())));
+            if (event.getSequence() > after) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next event to be written to the log.
+     *
+     * @param pollMillis how long to wait (in milliseconds) between checks of
+     * the log
+     * @return the event
+     * @throws IOException if the log cannot be read
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ChangeEvent take(long pollMillis)
+            throws IOException, InterruptedException {
+        ChangeEvent event = next();
+        while (event == null) {
+            Thread.sleep(pollMillis);
+            event = next();
+        }
+        return event;
+    }
+
+    /**
+     * Closes the change log.
+     *
+     * @throws IOException if the log cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,407 @@
+package suncertify.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ordered stream of the record changes made through a database instance. Every
+ * create, update and delete becomes a numbered <code>ChangeEvent</code>
+ * carrying the record before and after the change, which is passed to the
+ * subscribers in the order the changes were made. The events can also be
+ * appended to a compact binary log file next to the database file, so other
+ * processes can follow the changes with a <code>ChangeLogReader</code>.
+ *
+ * <p>
+ * Each event in the log is written as its length followed by the bytes of
+ * <code>ChangeEvent.writeTo</code>. Every instance and process changing the
+ * database appends to the same log: each append takes an exclusive lock on
+ * the log, reads the events other writers appended since, and numbers the
+ * new event after the last of them, so the log stays in sequence order. A
+ * partly written event at the end of the log, left by a writer that stopped,
+ * is removed. Streams of one process share the open log. The log is not
+ * forced to disk after every event, so the last events before a crash of the
+ * machine may be lost; a RELOAD event is published when the stream starts,
+ * telling consumers to resynchronize.
+ *
+ * @author Emmanuel
+ */
+public class ChangeStream implements DataListener {
+
+    /**
+     * Set this system property to true to have <code>URLyBirdData</code> keep
+     * a change log for its database.
+     */
+    public static final String LOG_PROPERTY = "suncertify.db.changeLog";
+
+    /**
+     * The extension appended to the database path to name the change log.
+     */
+    public static final String LOG_FILE_EXTENSION = ".cdc";
+
+    /**
+     * The length of the length prefix of each event in the log.
+     */
+    static final int FRAME_HEADER_LENGTH = 4;
+
+    /**
+     * The logger for the class.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The database the changes are taken from.
+     */
+    private final Data database;
+
+    /**
+     * The in-process consumers of the events.
+     */
+    private final List<ChangeSubscriber> subscribers;
+
+    /**
+     * The open change logs of the process, by database path. Guarded by
+     * itself.
+     */
+    private static final Map<String, LogFile> openLogs = new HashMap<>();
+
+    /**
+     * The change log, or null if the events are not logged.
+     */
+    private LogFile logFile;
+
+    /**
+     * The sequence number of the last event published.
+     */
+    private long sequence;
+
+    /**
+     * Creates a stream and registers it with the database. Changes made
+     * before the stream was created are not published.
+     *
+     * @param database the database to publish the changes of
+     * @param logged true to append the events to the change log of the
+     * database
+     * @throws IOException if the change log cannot be opened
+     */
+    public ChangeStream(Data database, boolean logged) throws IOException {
+        this.database = database;
+        subscribers = new CopyOnWriteArrayList<>();
+        if (logged) {
+            logFile = LogFile.open(database.getDBFilePath()
+                    + LOG_FILE_EXTENSION);
+        }
+        publish(ChangeEvent.Type.RELOAD, -1, null, null);
+        database.addDataListener(this, false);
+    }
+
+    /**
+     * Numbers an event, appends it to the log and passes it to the
+     * subscribers. A logged event is numbered after the last event in the
+     * log, which may have been written by another process. An event that
+     * cannot be logged is still passed on.
+     *
+     * @param type the kind of change
+     * @param recNo the location of the record in the db file
+     * @param before the record fields before the change, or null
+     * @param after the record fields after the change, or null
+     */
+    private synchronized void publish(ChangeEvent.Type type, long recNo,
+            String[] before, String[] after) {
+        ChangeEvent event = null;
+        long timestamp = System.currentTimeMillis();
+        if (logFile != null) {
+            try {
+                event = logFile.append(sequence, type, timestamp, recNo,
+                        before, after);
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not write change log", ex);
+            }
+        }
+        if (event == null) {
+            event = new ChangeEvent(type, sequence + 1, timestamp, recNo,
+                    before, after);
+        }
+        sequence = event.getSequence();
+        for (ChangeSubscriber subscriber : subscribers) {
+            subscriber.changed(event);
+        }
+    }
+
+    /**
+     * Starts passing the events to an in-process consumer.
+     *
+     * @param subscriber the consumer to add
+     */
+    public void subscribe(ChangeSubscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Stops passing the events to an in-process consumer.
+     *
+     * @param subscriber the consumer to remove
+     */
+    public void unsubscribe(ChangeSubscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return the sequence number of the last event published
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Stops publishing the changes of the database and closes the log.
+     */
+    public synchronized void close() {
+        database.removeDataListener(this);
+        if (logFile != null) {
+            logFile.release();
+            logFile = null;
+        }
+    }
+
+    /**
+     * A change log opened by the process, shared by its streams on the same
+     * database.
+     */
+    private static final class LogFile {
+
+        /**
+         * The path to the change log, its key in <code>openLogs</code>.
+         */
+        private final String path;
+
+        /**
+         * The change log.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Serializes the appends of the process. A lock rather than a
+         * monitor, since taking the file lock can block on another process,
+         * and a blocked virtual thread must not pin its carrier thread.
+         */
+        private final ReentrantLock mutex;
+
+        /**
+         * The length of the log as last read or written by this process.
+         * Guarded by <code>mutex</code>.
+         */
+        private long end;
+
+        /**
+         * The sequence number of the last event in the log, up to
+         * <code>end</code>. Guarded by <code>mutex</code>.
+         */
+        private long sequence;
+
+        /**
+         * The number of streams using the log. Guarded by
+         * <code>openLogs</code>.
+         */
+        private int users;
+
+        /**
+         * Opens a change log and reads it to its end.
+         *
+         * @param path the path to the change log
+         * @throws IOException if the log cannot be opened or read
+         */
+        private LogFile(String path) throws IOException {
+            this.path = path;
+            channel = new RandomAccessFile(path, "rw").getChannel();
+            mutex = new ReentrantLock();
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    catchUp();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Gets the open change log of the process at a path, opening it if
+         * needed. Every call must be matched by a call to
+         * <code>release</code>.
+         *
+         * @param path the path to the change log
+         * @return the change log
+         * @throws IOException if the log cannot be opened or read
+         */
+        static LogFile open(String path) throws IOException {
+            synchronized (openLogs) {
+                LogFile logFile = openLogs.get(path);
+                if (logFile == null) {
+                    logFile = new LogFile(path);
+                    openLogs.put(path, logFile);
+                }
+                logFile.users++;
+                return logFile;
+            }
+        }
+
+        /**
+         * Stops using the log, closing it when no stream of the process uses
+         * it any more.
+         */
+        void release() {
+            synchronized (openLogs) {
+                if (--users > 0) {
+                    return;
+                }
+                openLogs.remove(path);
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not close change log", ex);
+            }
+        }
+
+        /**
+         * Numbers an event after the last one in the log, and appends it.
+         *
+         * @param last the sequence number the event must also follow, the
+         * last one published by the stream
+         * @param type the kind of change
+         * @param timestamp the time of the change
+         * @param recNo the location of the record in the db file
+         * @param before the record fields before the change, or null
+         * @param after the record fields after the change, or null
+         * @return the event as logged
+         * @throws IOException if the log cannot be locked, read or written
+         */
+        ChangeEvent append(long last, ChangeEvent.Type type, long timestamp,
+                long recNo, String[] before, String[] after)
+                throws IOException {
+            mutex.lock();
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    return write(last, type, timestamp, recNo, before, after);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        /**
+         * Numbers an event after the last one in the log, and writes it at
+         * the end of the log. Callers must hold <code>mutex</code> and the
+         * file lock.
+         *
+         * @param last the sequence number the event must also follow
+         * @param type the kind of change
+         * @param timestamp the time of the change
+         * @param recNo the location of the record in the db file
+         * @param before the record fields before the change, or null
+         * @param after the record fields after the change, or null
+         * @return the event as logged
+         * @throws IOException if the log cannot be read or written
+         */
+        private ChangeEvent write(long last, ChangeEvent.Type type,
+                long timestamp, long recNo, String[] before, String[] after)
+                throws IOException {
+            catchUp();
+            ChangeEvent event = new ChangeEvent(type,
+                    Math.max(sequence, last) + 1, timestamp, recNo, before,
+                    after);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            event.writeTo(out);
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            buf.putInt(0, buf.capacity() - FRAME_HEADER_LENGTH);
+            while (buf.hasRemaining()) {
+                channel.write(buf, end + buf.position());
+            }
+            end += buf.capacity();
+            sequence = event.getSequence();
+            return event;
+        }
+
+        /**
+         * Reads the events appended to the log since it was last read or
+         * written by this process, to learn the last sequence number, and
+         * drops a partly written event at its end. Callers must hold the
+         * file lock, and <code>mutex</code> once the log is open.
+         *
+         * @throws IOException if the log cannot be read
+         */
+        private void catchUp() throws IOException {
+            long size = channel.size();
+            if (size < end) {
+                // the log was replaced, read it again
+                end = 0;
+            }
+            if (size == end) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(end))));
+            while (end + FRAME_HEADER_LENGTH <= size) {
+                int length = in.readInt();
+                if (length < 0 || end + FRAME_HEADER_LENGTH + length > size) {
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                sequence = ChangeEvent.readFrom(new DataInputStream(
+                        new ByteArrayInputStream(frame))).getSequence();
+                end += FRAME_HEADER_LENGTH + length;
+            }
+            if (end < size) {
+                log.log(Level.WARNING, "Dropping incomplete change log entry"
+                        + "\nLog: {0}\nOffset: {1}", new Object[]{path, end});
+                channel.truncate(end);
+            }
+        }
+    }
+
+    @Override
+    public void recordCreated(long recNo, String[] record) {
+        publish(ChangeEvent.Type.CREATE, recNo, null, record);
+    }
+
+    @Override
+    public void recordUpdated(long recNo, String[] before, String[] after) {
+        publish(ChangeEvent.Type.UPDATE, recNo, before, after);
+    }
+
+    @Override
+    public void recordDeleted(long recNo, String[] before) {
+        publish(ChangeEvent.Type.DELETE, recNo, before, null);
+    }
+
+    @Override
+    public void dataReloaded() {
+        publish(ChangeEvent.Type.RELOAD, -1, null, null);
+    }
+
+}
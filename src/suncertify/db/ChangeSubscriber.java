@@ -0,0 +1,19 @@
+package suncertify.db;
+
+/**
+ * Interface for in-process consumers of a <code>ChangeStream</code>.
+ * Subscribers are called while the database write lock is held, in sequence
+ * order, so they should return quickly.
+ *
+ * @author Emmanuel
+ */
+public interface ChangeSubscriber {
+
+    /**
+     * Called once for every change, in sequence order.
+     *
+     * @param event the change
+     */
+    public void changed(ChangeEvent event);
+
+}
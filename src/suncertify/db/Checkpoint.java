@@ -0,0 +1,166 @@
+package suncertify.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The derived index state of a database file, saved in a sidecar file so it
+ * can be loaded when the database is opened instead of being rebuilt with a
+ * full scan. The checkpoint records the generation and length of the database
+ * file it was taken from, and is only valid while both are unchanged.
+ *
+ * @author Emmanuel
+ */
+class Checkpoint {
+
+    /**
+     * The extension appended to the database path to name the checkpoint
+     * file.
+     */
+    public static final String CHECKPOINT_FILE_EXTENSION = ".idx";
+
+    /**
+     * Identifies a checkpoint file and its layout version.
+     */
+    private static final int MAGIC_COOKIE = 0x55424901;
+
+    /**
+     * The generation of the database file the state reflects.
+     */
+    final long generation;
+
+    /**
+     * The length (in bytes) of the database file the state reflects.
+     */
+    final long fileLength;
+
+    /**
+     * The offset of the first record, used to check the file layout.
+     */
+    final long dataOffset;
+
+    /**
+     * The length (in bytes) of each record, used to check the file layout.
+     */
+    final int recordLength;
+
+    /**
+     * The prefix filters by field position, with null entries for the fields
+     * that are not filtered.
+     */
+    final PrefixBloomFilter[] filters;
+
+    /**
+     * The free slot and duplicate key index.
+     */
+    final RecordIndex index;
+
+    /**
+     * Creates a checkpoint of index state.
+     *
+     * @param generation the generation of the database file
+     * @param fileLength the length of the database file
+     * @param dataOffset the offset of the first record
+     * @param recordLength the length of each record
+     * @param filters the prefix filters by field position
+     * @param index the free slot and duplicate key index
+     */
+    Checkpoint(long generation, long fileLength, long dataOffset,
+            int recordLength, PrefixBloomFilter[] filters, RecordIndex index) {
+        this.generation = generation;
+        this.fileLength = fileLength;
+        this.dataOffset = dataOffset;
+        this.recordLength = recordLength;
+        this.filters = filters;
+        this.index = index;
+    }
+
+    /**
+     * Get the checkpoint file of a database file.
+     *
+     * @param dbPath the location of the database file
+     * @return the checkpoint file
+     */
+    private static File file(String dbPath) {
+        return new File(dbPath + CHECKPOINT_FILE_EXTENSION);
+    }
+
+    /**
+     * Loads the checkpoint of a database file.
+     *
+     * @param dbPath the location of the database file
+     * @return the checkpoint, or null if there is none
+     * @throws IOException if the checkpoint file exists but cannot be read
+     */
+    static Checkpoint load(String dbPath) throws IOException {
+        File file = file(dbPath);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC_COOKIE) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long generation = in.readLong();
+            long fileLength = in.readLong();
+            long dataOffset = in.readLong();
+            int recordLength = in.readInt();
+            PrefixBloomFilter[] filters = new PrefixBloomFilter[in.readInt()];
+            for (int i = 0; i < filters.length; i++) {
+                if (in.readBoolean()) {
+                    filters[i] = PrefixBloomFilter.readFrom(in);
+                }
+            }
+            RecordIndex index = RecordIndex.readFrom(in);
+            return new Checkpoint(generation, fileLength, dataOffset,
+                    recordLength, filters, index);
+        }
+    }
+
+    /**
+     * Saves the checkpoint, replacing the previous one. The checkpoint is
+     * written to a temporary file first so a crash never leaves a partial
+     * checkpoint behind.
+     *
+     * @param dbPath the location of the database file
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void save(String dbPath) throws IOException {
+        File file = file(dbPath);
+        File tmp = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC_COOKIE);
+                out.writeLong(generation);
+                out.writeLong(fileLength);
+                out.writeLong(dataOffset);
+                out.writeInt(recordLength);
+                out.writeInt(filters.length);
+                for (PrefixBloomFilter filter : filters) {
+                    out.writeBoolean(filter != null);
+                    if (filter != null) {
+                        filter.writeTo(out);
+                    }
+                }
+                index.writeTo(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+}
@@ -1,7 +1,12 @@
 package suncertify.db;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,25 +20,63 @@ public class DBClient {
     private static final Logger log = Logger.getLogger("suncertify.db");
 
     /**
-     * Main entry.
-     * 
+     * Main entry. Exports the records of a database file.
+     * <br>Usage: <code>DBClient database [csv|json] [output] [criteria...]</code>
+     * <br>The format defaults to csv and the output to the standard output,
+     * also chosen with "-". Criteria are matched the same way as by
+     * <code>Data.findByCriteria</code>.
+     *
      * @param args the initial command line arguments
      */
     public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: DBClient database [csv|json] [output]"
+                    + " [criteria...]");
+            return;
+        }
+        DataExporter.Format format = DataExporter.Format.CSV;
+        if (args.length > 1 && "json".equalsIgnoreCase(args[1])) {
+            format = DataExporter.Format.JSON_LINES;
+        }
+        String output = args.length > 2 ? args[2] : "-";
+        String[] criteria = args.length > 3
+                ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
         try {
-            Data database = new Data("C:\\Users\\Emmanuel\\Documents\\Training\\Koenig\\jd\\Project\\instructions-121\\db-1x1.db");
-            Collection<String[]> data = database.search(new String[]{null}).values();
-            String results = "";
-            for (String[] record : data) {
-                results += "\n" + toArrayString(record);
+            Data database = new Data(args[0]);
+            if ("-".equals(output)) {
+                // the standard output is flushed but left open
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        System.out, StandardCharsets.UTF_8));
+                export(database, format, out, criteria);
+                out.flush();
+            } else {
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(output),
+                        StandardCharsets.UTF_8))) {
+                    export(database, format, out, criteria);
+                }
             }
-            log.info(results);
         } catch (IOException ex) {
             log.log(Level.SEVERE, null, ex);
         }
 
     }
 
+    /**
+     * Exports the records of a database matching criteria.
+     *
+     * @param database the database to export
+     * @param format the format to write the records in
+     * @param out the writer to write the records to
+     * @param criteria the criteria the records must match
+     * @throws IOException if the database or the output fails
+     */
+    private static void export(Data database, DataExporter.Format format,
+            Writer out, String[] criteria) throws IOException {
+        long count = new DataExporter(database, format).export(out, criteria);
+        log.log(Level.INFO, "Exported {0} records", count);
+    }
+
     /**
      * Take an array and returns a string formatted for printing.
      *
@@ -41,11 +84,12 @@ public class DBClient {
      * @return a string representation of the array
      */
     public static String toArrayString(Object[] array) {
-        String as = "";
+        StringBuilder as = new StringBuilder();
         for (Object o : array) {
-            as += "[" + o.toString() + "](" + o.toString().length() + ") ";
+            as.append('[').append(o).append("](")
+                    .append(o.toString().length()).append(") ");
         }
-        return as;
+        return as.toString();
     }
 
 }
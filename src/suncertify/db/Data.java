@@ -2,13 +2,31 @@ package suncertify.db;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,20 +65,139 @@ public class Data implements DBAccess {
     public static final short FIELD_LENGTH_BYTES = 2;
 
     /**
-     * The random file access mode.
+     * The length (in bytes) of the data that tells if each field is stored as
+     * dictionary codes, in format v2 files.
      */
-    private static final String accessMode = "rw";
+    public static final short FIELD_ENCODING_BYTES = 1;
 
     /**
-     * The read write lock used to maintain database operations concurrency.
+     * The magic cookie of format v2 files. The schema gives every field a
+     * flag telling if its values are stored as codes into a dictionary, and
+     * the dictionaries follow the schema in the header.
      */
-    private static final ReentrantReadWriteLock dbRWLock
-            = new ReentrantReadWriteLock(true);
+    public static final int FORMAT_V2_MAGIC_COOKIE = 0x00000201;
 
     /**
-     * The map used to lock and unlock records
+     * The fields whose values are indexed by prefix bloom filters, so that
+     * searches for values that are not in the file do not have to scan it.
      */
-    private static final Map<Long, Long> lockCookies = new LinkedHashMap<>();
+    private static final String[] FILTERED_FIELDS = {"name", "location"};
+
+
+    /**
+     * The time (in milliseconds) to wait between attempts to lock a record that
+     * is locked by another process.
+     */
+    static final long PROCESS_LOCK_POLL_MILLIS = 50;
+
+    /**
+     * The default size (in bytes) of the blocks read by full file scans.
+     */
+    public static final int DEFAULT_SCAN_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The system property that can be used to override the default scan
+     * block size.
+     */
+    public static final String SCAN_BUFFER_PROPERTY
+            = "suncertify.db.scanBufferSize";
+
+    /**
+     * The most scan block buffers in use at once, by all the threads of the
+     * process. A scan waits for a buffer when they are all in use.
+     */
+    static final int MAX_SCAN_BUFFERS = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The scan block buffers not in use.
+     */
+    private static final BlockingQueue<ByteBuffer> scanBuffers
+            = new ArrayBlockingQueue<>(MAX_SCAN_BUFFERS);
+
+    /**
+     * The permits to use a scan block buffer, one per buffer.
+     */
+    private static final Semaphore scanBufferPermits
+            = new Semaphore(MAX_SCAN_BUFFERS);
+
+    /**
+     * The size (in bytes) of the blocks read by full file scans.
+     */
+    private static volatile int scanBufferSize = Integer.getInteger(
+            SCAN_BUFFER_PROPERTY, DEFAULT_SCAN_BUFFER_SIZE);
+
+    /**
+     * The default most off-heap memory (in bytes) used by the buffer pool.
+     */
+    public static final long DEFAULT_ARENA_SIZE = 64L << 20;
+
+    /**
+     * The system property that can be used to override the default buffer
+     * pool memory budget.
+     */
+    public static final String ARENA_SIZE_PROPERTY
+            = "suncertify.db.arenaSize";
+
+    /**
+     * The most off-heap memory (in bytes) used by each instance to keep pages
+     * of records.
+     */
+    private static volatile long arenaSize = Long.getLong(
+            ARENA_SIZE_PROPERTY, DEFAULT_ARENA_SIZE);
+
+    /**
+     * The default size (in bytes) of the pages of the buffer pool.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 8192;
+
+    /**
+     * The system property that can be used to override the default page
+     * size.
+     */
+    public static final String PAGE_SIZE_PROPERTY = "suncertify.db.pageSize";
+
+    /**
+     * The size (in bytes) of the pages of the buffer pool, rounded down to
+     * whole records.
+     */
+    private static volatile int pageSize = Integer.getInteger(
+            PAGE_SIZE_PROPERTY, DEFAULT_PAGE_SIZE);
+
+    /**
+     * The longest time (in milliseconds) to wait for the database to be free
+     * when saving an index checkpoint.
+     */
+    private static final long CHECKPOINT_LOCK_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The instances that have not been garbage collected, which save an index
+     * checkpoint when the JVM exits.
+     */
+    private static final Set<Data> openInstances
+            = Collections.synchronizedSet(Collections.newSetFromMap(
+                    new WeakHashMap<Data, Boolean>()));
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("Index checkpoint") {
+            @Override
+            public void run() {
+                List<Data> instances;
+                synchronized (openInstances) {
+                    instances = new ArrayList<>(openInstances);
+                }
+                for (Data instance : instances) {
+                    try {
+                        instance.checkpoint();
+                    } catch (IOException ex) {
+                        log.log(Level.WARNING,
+                                "Could not save index checkpoint", ex);
+                    }
+                }
+            }
+        });
+    }
+
 
     /**
      * The Logger instance. All log messages from this class are routed through
@@ -71,12 +208,57 @@ public class Data implements DBAccess {
     /**
      * The location where the database file is stored.
      */
-    private static String dbPath = null;
+    private final String dbPath;
 
     /**
      * The physical file on disk containing our data.
      */
-    private static RandomAccessFile dbFile = null;
+    private final RandomAccessFile dbFile;
+
+    /**
+     * Coordinates access to the database file with other processes.
+     */
+    private final FileCoordinator coordinator;
+
+    /**
+     * The redo journal making transaction commits atomic.
+     */
+    private final Journal journal;
+
+    /**
+     * The read write lock used to maintain database operations concurrency,
+     * shared by the instances using the file.
+     */
+    private final ReentrantReadWriteLock dbRWLock;
+
+    /**
+     * The map used to lock and unlock records, from record ordinal to lock
+     * cookie, shared by the instances using the file. Guarded by its own
+     * monitor, which is never held while taking another lock, so the lock
+     * state can be checked while holding the database read lock; changes are
+     * also made holding <code>recordLock</code>.
+     */
+    private final LongLongMap lockCookies;
+
+    /**
+     * Guards the changes to <code>lockCookies</code> and
+     * <code>unlockWaiters</code>. Locking a record takes the database write
+     * lock while holding it, so it must never be taken while holding the
+     * database read or write lock; code running under those locks checks the
+     * record locks through the <code>lockCookies</code> monitor only.
+     */
+    private final ReentrantLock recordLock;
+
+    /**
+     * Signalled every time a record of the file is unlocked.
+     */
+    private final Condition recordUnlocked;
+
+    /**
+     * The tasks to run the next time each record is unlocked, by record
+     * number. Guarded by <code>recordLock</code>.
+     */
+    private final Map<Long, List<Runnable>> unlockWaiters;
 
     /**
      * The field names and byte length parsed from the file.
@@ -86,7 +268,14 @@ public class Data implements DBAccess {
     /**
      * A buffer for the database in between subsequent read operations.
      */
-    private final Map<Long, String[]> dataBuffer;
+    private final RecordList dataBuffer;
+
+    /**
+     * Guards <code>dataBuffer</code> while it is filled by a scan. A lock
+     * rather than a monitor, so a virtual thread reading the file while
+     * holding it does not pin its carrier thread.
+     */
+    private final ReentrantLock dataBufferLock;
 
     /**
      * Data file cookie identifier.
@@ -110,6 +299,17 @@ public class Data implements DBAccess {
      */
     private int numFields;
 
+    /**
+     * The length (in bytes) each field takes in a record, by field position.
+     */
+    private int[] storedLengths;
+
+    /**
+     * The dictionaries of the fields stored as codes, by field position, null
+     * for the fields stored as text.
+     */
+    private ValueDictionary[] dictionaries;
+
     /**
      * The length (in bytes) of each record.
      */
@@ -132,12 +332,66 @@ public class Data implements DBAccess {
      */
     private final StringBuilder recordBuilder;
 
+    /**
+     * The objects notified of every record created, updated or deleted through
+     * this instance.
+     */
+    private final List<DataListener> listeners;
+
+    /**
+     * The prefix filters of the record fields, by field position. Fields that
+     * are not filtered have a null entry.
+     */
+    private PrefixBloomFilter[] filters;
+
+    /**
+     * The free slots and the record content hashes, by record ordinal.
+     */
+    private RecordIndex index;
+
+    /**
+     * The pages of records kept in memory, through which records are read
+     * and written.
+     */
+    private final BufferPool pool;
+
+    /**
+     * The background passes over the file that are still running.
+     */
+    private final List<Warmup> warmups;
+
+    /**
+     * The pass building the record index and filters, or null once they are
+     * ready to be used.
+     */
+    private volatile Warmup indexWarmup;
+
+    /**
+     * The passes replaying the existing records to data listeners, by
+     * listener, until each is done.
+     */
+    private final Map<DataListener, Warmup> replays;
+
+    /**
+     * The generation of the database file that the filters and the data
+     * listeners reflect.
+     */
+    private long knownGeneration;
+
+    /**
+     * True when another process is known to have changed the database file
+     * since the generation the filters and the data listeners reflect.
+     */
+    private volatile boolean stale;
+
     /**
      * Default constructor that accepts the database path as a parameter.
      *
-     * All instances of this class share the same data file.
+     * Instances opened with the same path share the data file, its locks and
+     * the record locks. Instances of different files do not contend.
      *
-     * @param databasePath the path to the database file.
+     * @param databasePath the path to the database file, or null for the
+     * file opened last.
      * @throws FileNotFoundException if the database file cannot be found.
      * @throws IOException if the database file cannot be read.
      */
@@ -146,27 +400,535 @@ public class Data implements DBAccess {
             // if database location not specified
             log.log(Level.WARNING, "No database path specified: {0}",
                     new Object[]{databasePath});
-        } else if (dbPath == null) {
-            dbPath = databasePath; // if no previous database path exists
-        } else if (!dbPath.equals(databasePath)) {
-            // if there was a previous database location defined
-            log.log(Level.WARNING, "Different database path already specified"
-                    + "\nExisting: {0}\nSupplied: {1}",
-                    new Object[]{dbPath, databasePath});
-        }
-        // load database file if path exists
-        if (dbPath != null) {
-            log.log(Level.INFO, "Attempting to use database path: {0}",
-                    new Object[]{dbPath});
-            dbFile = new RandomAccessFile(dbPath, accessMode);
         }
+        DataFile file = DataFile.open(databasePath);
+        log.log(Level.INFO, "Attempting to use database path: {0}",
+                new Object[]{file.path});
+        dbPath = file.path;
+        dbFile = file.file;
+        coordinator = file.coordinator;
+        journal = file.journal;
+        dbRWLock = file.rwLock;
+        lockCookies = file.lockCookies;
+        recordLock = file.recordLock;
+        recordUnlocked = file.recordUnlocked;
+        unlockWaiters = file.unlockWaiters;
 
         fields = new LinkedHashMap<>();
-        dataBuffer = new LinkedHashMap<>();
+        dataBuffer = new RecordList();
+        dataBufferLock = new ReentrantLock();
+        listeners = new CopyOnWriteArrayList<>();
+        warmups = new CopyOnWriteArrayList<>();
+        replays = new ConcurrentHashMap<>();
         parseHeader();
         // create the recordbuilder object to be used less record offset
         recordBuilder = new StringBuilder(
                 new String(new byte[recordLength - recordOffset]));
+        pool = new BufferPool(dbFile.getChannel(), dataOffset, recordLength,
+                pageSize, arenaSize);
+        long generation = lockWrite();
+        try {
+            knownGeneration = generation;
+            stale = false;
+            // without a checkpoint, serve from plain scans until built
+            if (recover() || !loadCheckpoint(generation)) {
+                startIndexWarmup(PrefixBloomFilter.DEFAULT_BITS);
+            }
+        } finally {
+            unlockWrite();
+        }
+        openInstances.add(this);
+    }
+
+    /**
+     * Takes the database read lock and a shared lock on the file against
+     * writers in other processes.
+     *
+     * @return the generation of the database file
+     */
+    private long lockRead() {
+        dbRWLock.readLock().lock();
+        return checkGeneration(coordinator.acquire(false));
+    }
+
+    /**
+     * Releases the locks taken by <code>lockRead</code>.
+     */
+    private void unlockRead() {
+        coordinator.release();
+        dbRWLock.readLock().unlock();
+    }
+
+    /**
+     * Takes the database write lock and an exclusive lock on the file against
+     * other processes.
+     *
+     * @return the generation of the database file
+     */
+    private long lockWrite() {
+        dbRWLock.writeLock().lock();
+        return checkGeneration(coordinator.acquire(true));
+    }
+
+    /**
+     * Releases the locks taken by <code>lockWrite</code>. If the file was
+     * changed the generation is bumped, and followed by this instance when it
+     * was not already stale.
+     */
+    private void unlockWrite() {
+        if (dbRWLock.getWriteHoldCount() == 1) {
+            // other instances and processes read the file itself
+            flushPool();
+        }
+        long generation = coordinator.release();
+        if (!stale && generation == knownGeneration + 1) {
+            knownGeneration = generation;
+        }
+        dbRWLock.writeLock().unlock();
+    }
+
+    /**
+     * Writes the changed pages of the buffer pool back to the file. A failure
+     * is logged and the pages are kept, to be written by the next flush.
+     */
+    private void flushPool() {
+        try {
+            pool.flush();
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Could not write pages to database file", ex);
+        }
+    }
+
+    /**
+     * Marks this instance as stale if the file generation is not the one the
+     * filters and data listeners reflect.
+     *
+     * @param generation the generation read under the file lock
+     * @return the generation
+     */
+    private long checkGeneration(long generation) {
+        if (generation != knownGeneration) {
+            stale = true;
+        }
+        return generation;
+    }
+
+    /**
+     * Rebuilds the filters and tells the data listeners to reload if another
+     * process, or another instance, changed the database file. A transaction
+     * left in the journal by a process that stopped during its commit is
+     * replayed first. Reading the generation and the journal size is cheap,
+     * so this is called at the start of every operation that changes the
+     * file or relies on the filters.
+     */
+    public void revalidate() {
+        if (stale || coordinator.getGeneration() != knownGeneration
+                || journal.isPending()) {
+            long generation = lockWrite();
+            try {
+                if (stale || generation != knownGeneration
+                        || journal.isPending()) {
+                    log.log(Level.INFO, "Database file changed, reloading"
+                            + "\nGeneration: {0}", new Object[]{generation});
+                    pool.clear();
+                    recover();
+                    // partial replays are replaced by the reload
+                    for (Warmup warmup : warmups) {
+                        warmup.cancelled = true;
+                    }
+                    warmups.clear();
+                    replays.clear();
+                    startIndexWarmup(PrefixBloomFilter.DEFAULT_BITS);
+                    for (DataListener listener : listeners) {
+                        listener.dataReloaded();
+                    }
+                    knownGeneration = generation;
+                    stale = false;
+                }
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not reload database file", ex);
+            } finally {
+                unlockWrite();
+            }
+        }
+    }
+
+    /**
+     * A pass over the file run on a background thread, replaying the records
+     * into a structure derived from them. Records before
+     * <code>position</code> have been replayed, so changes to them must be
+     * applied to the structure; changes to later records must not, since the
+     * pass will read them as they are when it gets there. The position only
+     * moves while the read lock is held, and changes are made under the write
+     * lock, so every change is seen exactly once.
+     */
+    private abstract class Warmup implements Runnable, RecordVisitor {
+
+        /**
+         * The location in the file of the first record not yet replayed.
+         */
+        volatile long position = dataOffset;
+
+        /**
+         * True when the structure was replaced and the pass should stop.
+         */
+        volatile boolean cancelled;
+
+        /**
+         * Called after each block, while the read lock is still held.
+         *
+         * @param end the location in the file of the end of the block
+         */
+        void scanned(long end) {
+        }
+
+        /**
+         * Called under the write lock once every record has been replayed.
+         *
+         * @throws IOException if the database file cannot be read
+         */
+        abstract void finish() throws IOException;
+
+        /**
+         * @return the percentage of the file replayed so far
+         */
+        int getProgress() {
+            long total = getDBFileLength() - dataOffset;
+            return total <= 0 ? 100 : (int) Math.min(100,
+                    (position - dataOffset) * 100 / total);
+        }
+
+        /**
+         * Replays the blocks of the file under the read lock, so writers can
+         * run in between, then the records appended meanwhile under the write
+         * lock.
+         */
+        @Override
+        public void run() {
+            try {
+                boolean more = true;
+                while (more) {
+                    lockRead();
+                    try {
+                        if (cancelled) {
+                            return;
+                        }
+                        position = scanBlock(position, this, null);
+                        scanned(position);
+                        more = position + recordLength <= getDBFileLength();
+                    } finally {
+                        unlockRead();
+                    }
+                }
+                lockWrite();
+                try {
+                    if (cancelled) {
+                        return;
+                    }
+                    while (position + recordLength <= getDBFileLength()) {
+                        position = scanBlock(position, this, null);
+                        scanned(position);
+                    }
+                    finish();
+                    position = Long.MAX_VALUE;
+                } finally {
+                    unlockWrite();
+                }
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Background database pass failed", ex);
+            } finally {
+                warmups.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Checks if a change to a record must be applied to a structure that may
+     * still be warming up.
+     *
+     * @param warmup the pass building the structure, null if it is built
+     * @param recNo the location of the changed record
+     * @return true if the structure already holds the record
+     */
+    private static boolean isReplayed(Warmup warmup, long recNo) {
+        return warmup == null || recNo < warmup.position;
+    }
+
+    /**
+     * Starts a background pass on a new thread.
+     *
+     * @param warmup the pass to start
+     * @param name the name of the thread
+     */
+    private void startWarmup(Warmup warmup, String name) {
+        warmups.add(warmup);
+        Thread thread = new Thread(warmup, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replaces the prefix filters for the <code>FILTERED_FIELDS</code> and the
+     * record index with empty ones, and starts a background pass adding every
+     * record to them. Until the pass is done they are not used: searches scan
+     * the whole file and new records are appended. The size of the filters is
+     * doubled until they are selective enough. Callers should hold the write
+     * lock.
+     *
+     * @param numBits the number of bits to start each filter with
+     */
+    private void startIndexWarmup(final int numBits) {
+        List<String> names = new ArrayList<>(fields.keySet());
+        final PrefixBloomFilter[] built = new PrefixBloomFilter[numFields];
+        for (String name : FILTERED_FIELDS) {
+            int idx = names.indexOf(name);
+            if (idx >= 0) {
+                built[idx] = new PrefixBloomFilter(numBits, fields.get(name));
+            }
+        }
+        final RecordIndex slots = new RecordIndex();
+        if (indexWarmup != null) {
+            indexWarmup.cancelled = true;
+            warmups.remove(indexWarmup);
+        }
+        Warmup warmup = new Warmup() {
+            // the ordinal expected next, any skipped were deleted records
+            private int next = 0;
+
+            @Override
+            public void visit(long recNo, String[] record) {
+                int ordinal = ordinal(recNo);
+                slots.add(ordinal, RecordIndex.hash(record));
+                addToFilters(built, record);
+                markFree(ordinal);
+                next = ordinal + 1;
+            }
+
+            @Override
+            void scanned(long end) {
+                markFree((int) ((end - dataOffset) / recordLength));
+            }
+
+            /**
+             * Marks the skipped slots before an ordinal as free.
+             *
+             * @param ordinal the first ordinal not to mark
+             */
+            private void markFree(int ordinal) {
+                for (; next < ordinal; next++) {
+                    slots.markFree(next);
+                }
+            }
+
+            @Override
+            void finish() throws IOException {
+                if (isSaturated(built)) {
+                    startIndexWarmup(numBits * 2);
+                } else {
+                    indexWarmup = null;
+                    log.log(Level.INFO, "Database indexes ready"
+                            + "\nFilter bits: {0}", new Object[]{numBits});
+                    checkpoint();
+                }
+            }
+        };
+        filters = built;
+        index = slots;
+        indexWarmup = warmup;
+        startWarmup(warmup, "Database index warm-up");
+    }
+
+    /**
+     * Makes the writes of a transaction that was committed to the journal but
+     * may not have reached the database file, if a process stopped during
+     * the commit. Callers should hold the write lock.
+     *
+     * @return true if writes were made, so derived state is out of date
+     * @throws IOException if the journal or the database file cannot be
+     * written
+     */
+    private boolean recover() throws IOException {
+        Map<Long, byte[]> writes = journal.read();
+        if (!writes.isEmpty()) {
+            log.log(Level.INFO, "Replaying committed transaction"
+                    + "\nWrites: {0}", new Object[]{writes.size()});
+            for (Map.Entry<Long, byte[]> write : writes.entrySet()) {
+                write(write.getKey(), write.getValue());
+            }
+            pool.flush();
+            dbFile.getChannel().force(false);
+        }
+        journal.clear();
+        return !writes.isEmpty();
+    }
+
+    /**
+     * Replaces the filters and record index with the ones in the checkpoint of
+     * the database file, if it was taken at the current generation and file
+     * length. Callers should hold the write lock.
+     *
+     * @param generation the current generation of the database file
+     * @return true if the checkpoint was loaded
+     */
+    private boolean loadCheckpoint(long generation) {
+        try {
+            Checkpoint checkpoint = Checkpoint.load(dbPath);
+            if (checkpoint != null && checkpoint.generation == generation
+                    && checkpoint.fileLength == getDBFileLength()
+                    && checkpoint.dataOffset == dataOffset
+                    && checkpoint.recordLength == recordLength
+                    && checkpoint.filters.length == numFields) {
+                filters = checkpoint.filters;
+                index = checkpoint.index;
+                log.log(Level.INFO, "Loaded index checkpoint"
+                        + "\nGeneration: {0}", new Object[]{generation});
+                return true;
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not load index checkpoint", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Saves the filters and record index in the checkpoint file of the
+     * database, so the next instance opening the file can load them instead of
+     * scanning it. Nothing is saved while the filters and index are being
+     * built, if this instance is stale or the database
+     * stays locked by another thread for longer than
+     * <code>CHECKPOINT_LOCK_TIMEOUT_MILLIS</code>.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void checkpoint() throws IOException {
+        try {
+            if (!dbRWLock.writeLock().tryLock(
+                    CHECKPOINT_LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warning("Database busy, index checkpoint skipped");
+                return;
+            }
+        } catch (InterruptedException ex) {
+            log.log(Level.WARNING, "Index checkpoint interrupted", ex);
+            return;
+        }
+        try {
+            if (!stale && indexWarmup == null) {
+                new Checkpoint(knownGeneration, getDBFileLength(), dataOffset,
+                        recordLength, filters, index).save(dbPath);
+            }
+        } finally {
+            dbRWLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Shortens the database file by the deleted records at its end, so scans
+     * stop at the last live record. Deleted records elsewhere stay in the file
+     * as free slots, since moving the live records would change their
+     * record numbers. Other processes using the file reload it.
+     *
+     * @return the number of record slots removed
+     * @throws IOException if the database file cannot be truncated
+     */
+    public int trimFreeSlots() throws IOException {
+        revalidate();
+        lockWrite();
+        try {
+            int count = (int) ((getDBFileLength() - dataOffset) / recordLength);
+            int end = count;
+            while (end > 0 && isDeleted(toRecNo(end - 1))
+                    && !isLocked(toRecNo(end - 1))) {
+                end--;
+            }
+            if (end == count) {
+                return 0;
+            }
+            long length = toRecNo(end);
+            // pages past the end must not be written back after the truncation
+            pool.flush();
+            dbFile.setLength(length);
+            pool.truncate(length);
+            index.truncate(end);
+            coordinator.markModified();
+            log.log(Level.INFO, "Trimmed {0} free record slots",
+                    new Object[]{count - end});
+            return count - end;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Adds the values of a record to the filters.
+     *
+     * @param filters the filters by field position
+     * @param record the record fields
+     */
+    private static void addToFilters(PrefixBloomFilter[] filters,
+            String[] record) {
+        for (int i = 0; i < filters.length && i < record.length; i++) {
+            if (filters[i] != null) {
+                filters[i].add(record[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks if any of the filters is too full to be selective.
+     *
+     * @param filters the filters by field position
+     * @return true if a filter should be rebuilt
+     */
+    private static boolean isSaturated(PrefixBloomFilter[] filters) {
+        for (PrefixBloomFilter filter : filters) {
+            if (filter != null && filter.isSaturated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the filters current after a record has been written, rebuilding
+     * them in the background once they are saturated by new or stale values.
+     * Callers should hold the write lock.
+     *
+     * @param record the record fields written
+     */
+    private void updateFilters(String[] record) {
+        addToFilters(filters, record);
+        if (isSaturated(filters)) {
+            int numBits = 0;
+            for (PrefixBloomFilter filter : filters) {
+                if (filter != null) {
+                    numBits = Math.max(numBits, filter.getNumBits());
+                }
+            }
+            startIndexWarmup(numBits);
+        }
+    }
+
+    /**
+     * Uses the prefix filters to check if a search could match any record.
+     * Since the search is an OR of the criteria, it can only be ruled out when
+     * every non-null criterion is on a filtered field and the filter rules it
+     * out.
+     *
+     * @param criteria the search criteria, after null swapping
+     * @return false if no record can match the criteria
+     */
+    private boolean mightMatch(String[] criteria) {
+        if (stale || indexWarmup != null) {
+            return true;
+        }
+        int len = Math.min(criteria.length, numFields);
+        for (int i = 0; i < len; i++) {
+            if (criteria[i] != null && (filters[i] == null
+                    || filters[i].mightStartWith(criteria[i]))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -184,7 +946,7 @@ public class Data implements DBAccess {
         //fields.put("deleted", recordOffset);
         recordLength = recordOffset;
 
-        dbRWLock.readLock().lock();
+        lockRead();
         try {
             dbFile.seek(offset);
             magicCookie = dbFile.readInt();
@@ -197,6 +959,10 @@ public class Data implements DBAccess {
             dbFile.seek(offset);
             numFields = dbFile.readShort();
             offset += NUM_FIELDS_LENGTH;
+            boolean encodedFormat = magicCookie == FORMAT_V2_MAGIC_COOKIE;
+            boolean[] encoded = new boolean[numFields];
+            storedLengths = new int[numFields];
+            dictionaries = new ValueDictionary[numFields];
 
             // read schema description
             // create variables to be used inside, outside the loop
@@ -215,13 +981,28 @@ public class Data implements DBAccess {
                 dbFile.seek(offset);
                 fieldLength = dbFile.readShort();
                 fields.put(fieldName, fieldLength);
+                storedLengths[i] = fieldLength;
                 // increment offset to starting point of next column definition 
                 // or row data if the loop is over
                 offset += FIELD_LENGTH_BYTES;
+                if (encodedFormat) {
+                    dbFile.seek(offset);
+                    encoded[i] = dbFile.readByte() != 0;
+                    offset += FIELD_ENCODING_BYTES;
+                }
+            }
+            // the dictionaries of the encoded fields follow the schema
+            for (int i = 0; i < numFields; i++) {
+                if (encoded[i]) {
+                    dictionaries[i] = ValueDictionary.read(dbFile.getChannel(),
+                            offset, storedLengths[i], encoding);
+                    storedLengths[i] = ValueDictionary.CODE_LENGTH;
+                    offset += dictionaries[i].getRegionLength();
+                }
             }
             dataOffset = offset;
         } finally {
-            dbRWLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -238,12 +1019,12 @@ public class Data implements DBAccess {
     private byte[] read(long offset, int length) throws IOException {
         byte[] data = new byte[length];
 
-        dbRWLock.readLock().lock();
+        lockRead();
         try {
             dbFile.seek(offset);
             dbFile.readFully(data);
         } finally {
-            dbRWLock.readLock().unlock();
+            unlockRead();
         }
         return data;
     }
@@ -256,7 +1037,403 @@ public class Data implements DBAccess {
      * @throws IOException
      */
     private boolean isDeleted(long recNo) throws IOException {
-        return read(recNo, 1)[0] == 1;
+        return readBytes(recNo)[0] == 1;
+    }
+
+    /**
+     * Reads the bytes of a record, including the deleted flag, through the
+     * buffer pool, or from the file if this instance is stale or the pool
+     * cannot hold the page. Callers should hold the read lock.
+     *
+     * @param recNo the offset location in file of the record
+     * @return the record bytes
+     * @throws IOException if the record cannot be read from the file
+     */
+    private byte[] readBytes(long recNo) throws IOException {
+        byte[] data = new byte[recordLength];
+        if (stale || !pool.read(ordinal(recNo), data)) {
+            data = read(recNo, recordLength);
+        }
+        return data;
+    }
+
+    /**
+     * Get the position of a record in the file, counted in records.
+     *
+     * @param recNo the offset location in file of the record
+     * @return the record ordinal, or -1 if recNo is not the start of a record
+     */
+    int ordinal(long recNo) {
+        long position = recNo - dataOffset;
+        if (position < 0 || position % recordLength != 0
+                || position / recordLength > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) (position / recordLength);
+    }
+
+    /**
+     * Get the location in the file of a record ordinal.
+     *
+     * @param ordinal the position of the record in the file, counted in
+     * records
+     * @return the offset location in file of the record
+     */
+    long toRecNo(int ordinal) {
+        return dataOffset + (long) ordinal * recordLength;
+    }
+
+    /**
+     * Get the fields of a record the way they will be read back after it is
+     * written, padded to the field lengths.
+     *
+     * @param data the record fields to be written
+     * @return the padded record fields
+     * @throws IOException if the record is too long for the fixed record length
+     */
+    private String[] normalize(String[] data) throws IOException {
+        return parseRecord(toRecordBytes(data));
+    }
+
+    /**
+     * Adds a record that has been written to the record index and filters.
+     * Records the index warm-up has not reached yet are left for it to read.
+     *
+     * @param recNo the location of the record in the db file
+     * @param record the padded record fields
+     */
+    private void indexRecord(long recNo, String[] record) {
+        Warmup warmup = indexWarmup;
+        if (!isReplayed(warmup, recNo)) {
+            return;
+        }
+        int ordinal = ordinal(recNo);
+        if (ordinal >= 0) {
+            index.add(ordinal, RecordIndex.hash(record));
+        }
+        if (warmup == null) {
+            updateFilters(record);
+        } else {
+            // saturation is checked when the warm-up finishes
+            addToFilters(filters, record);
+        }
+    }
+
+    /**
+     * Removes a record that is being overwritten or deleted from the record
+     * index.
+     *
+     * @param recNo the location of the record in the db file
+     * @param record the padded record fields before the change
+     */
+    private void unindexRecord(long recNo, String[] record) {
+        int ordinal = ordinal(recNo);
+        if (ordinal >= 0 && isReplayed(indexWarmup, recNo)) {
+            index.remove(ordinal, RecordIndex.hash(record));
+        }
+    }
+
+    /**
+     * Marks the slot of a deleted record as free in the record index.
+     *
+     * @param recNo the location of the record in the db file
+     */
+    private void freeRecord(long recNo) {
+        int ordinal = ordinal(recNo);
+        if (ordinal >= 0 && isReplayed(indexWarmup, recNo)) {
+            index.markFree(ordinal);
+        }
+    }
+
+    /**
+     * Finds a live record with the same fields as a record. Uses the record
+     * index unless it is unreliable or still being built, in which case the
+     * file is scanned.
+     * Callers should hold the read or write lock.
+     *
+     * @param record the padded record fields
+     * @return the location of the duplicate record, or -1 if there is none
+     * @throws IOException if the database file cannot be read
+     */
+    private long findDuplicate(final String[] record) throws IOException {
+        if (!stale && indexWarmup == null && !index.hasCollisions()) {
+            int ordinal = index.find(RecordIndex.hash(record));
+            if (ordinal < 0) {
+                return -1;
+            }
+            long recNo = toRecNo(ordinal);
+            return !isDeleted(recNo)
+                    && compareRecords(readRaw(recNo), record) == 0 ? recNo : -1;
+        }
+        final long[] duplicate = {-1};
+        scan(new RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] existing) {
+                if (duplicate[0] < 0 && compareRecords(existing, record) == 0) {
+                    duplicate[0] = recNo;
+                }
+            }
+        });
+        return duplicate[0];
+    }
+
+    /**
+     * Get the location a new record should be written to: the first free slot
+     * in the record index, or the end of the file. A stale instance always
+     * appends, since its free slots may have been reused by another process,
+     * and so does an instance whose record index is still being built.
+     * Callers should hold the write lock.
+     *
+     * @return the location for the new record
+     */
+    private long freeSlot() {
+        long count = (getDBFileLength() - dataOffset) / recordLength;
+        int ordinal = stale || indexWarmup != null ? -1 : index.firstFree();
+        return ordinal >= 0 && ordinal < count
+                ? toRecNo(ordinal) : toRecNo((int) count);
+    }
+
+    /**
+     * Reads and parses the record at a location without checking the deleted
+     * flag or the record locks. Used to capture the state of a record for the
+     * data listeners.
+     *
+     * @param recNo the offset location in file of the record
+     * @return the record represented by an string array
+     * @throws IOException
+     */
+    private String[] readRaw(long recNo) throws IOException {
+        return parseRecord(readBytes(recNo));
+    }
+
+    /**
+     * Interface used to visit the live records of the database file.
+     */
+    interface RecordVisitor {
+
+        /**
+         * Called once for every undeleted record, in file order.
+         *
+         * @param recNo the location of the record in the db file
+         * @param record the field values of the record
+         */
+        void visit(long recNo, String[] record);
+    }
+
+    /**
+     * Passes every undeleted record to the visitor, including records that are
+     * currently locked. The file is read in blocks of whole records, of up to
+     * <code>scanBufferSize</code> bytes, into a direct buffer taken from the
+     * bounded pool shared by every scan. The database read lock is held while
+     * each block is read and visited, so writers can run between blocks.
+     *
+     * @param visitor the object to pass the records to
+     * @throws IOException if the database file cannot be read
+     */
+    void scan(RecordVisitor visitor) throws IOException {
+        scan(visitor, null);
+    }
+
+    /**
+     * Passes the undeleted records that match criteria to the visitor, the
+     * same way as <code>scan(RecordVisitor)</code>. The criteria are checked
+     * against the bytes of each record, so records that do not match are
+     * never parsed.
+     *
+     * @param visitor the object to pass the records to
+     * @param matcher the criteria to check, or null to pass every record
+     * @throws IOException if the database file cannot be read
+     */
+    private void scan(RecordVisitor visitor, CriteriaMatcher matcher)
+            throws IOException {
+        long offset = dataOffset;
+        boolean more = true;
+        while (more) {
+            lockRead();
+            try {
+                offset = scanBlock(offset, visitor, matcher);
+                more = offset + recordLength <= getDBFileLength();
+            } finally {
+                unlockRead();
+            }
+        }
+    }
+
+    /**
+     * Reads one block of whole records, of up to <code>scanBufferSize</code>
+     * bytes, and passes its undeleted records to the visitor. Callers should
+     * hold the read lock. The scan buffer is only held for the block, never
+     * while waiting for the database lock, since a scan under the write lock
+     * may wait for a buffer held by another scan.
+     *
+     * @param offset the location in the file of the first record of the block
+     * @param visitor the object to pass the records to
+     * @param matcher the criteria records must match to be visited, or null
+     * @return the location in the file of the record after the block
+     * @throws IOException if the database file cannot be read
+     */
+    private long scanBlock(long offset, RecordVisitor visitor,
+            CriteriaMatcher matcher) throws IOException {
+        ByteBuffer block = acquireScanBuffer(recordLength);
+        try {
+            return scanBlock(block, offset, visitor, matcher);
+        } finally {
+            releaseScanBuffer(block);
+        }
+    }
+
+    /**
+     * Reads one block of whole records into a scan buffer and passes its
+     * undeleted records to the visitor.
+     *
+     * @param block the scan buffer to read the block into
+     * @param offset the location in the file of the first record of the block
+     * @param visitor the object to pass the records to
+     * @param matcher the criteria records must match to be visited, or null
+     * @return the location in the file of the record after the block
+     * @throws IOException if the database file cannot be read
+     */
+    private long scanBlock(ByteBuffer block, long offset,
+            RecordVisitor visitor, CriteriaMatcher matcher)
+            throws IOException {
+        int blockRecords = Math.max(1, block.capacity() / recordLength);
+        byte[] data = new byte[recordLength];
+        long end = Math.min(getDBFileLength(),
+                offset + (long) blockRecords * recordLength);
+        int count = (int) Math.max(0, (end - offset) / recordLength);
+        // only read whole records
+        block.clear();
+        block.limit(count * recordLength);
+        if (!stale) {
+            pool.readRun(ordinal(offset), count, block);
+        }
+        while (block.hasRemaining() && dbFile.getChannel()
+                .read(block, offset + block.position()) >= 0) {
+            // keep reading until the block is full or the file ends
+        }
+        block.flip();
+        while (block.remaining() >= recordLength) {
+            block.get(data);
+            if (data[0] != 1 && (matcher == null || matcher.matches(data))) {
+                visitor.visit(offset, parseRecord(data));
+            }
+            offset += recordLength;
+        }
+        return offset;
+    }
+
+    /**
+     * Takes a block buffer from the pool, waiting while
+     * <code>MAX_SCAN_BUFFERS</code> are in use, so the direct memory used by
+     * scans does not grow with the number of threads. A buffer of the wrong
+     * size, left from before the scan buffer size changed, is replaced.
+     * Every buffer taken must be given back with
+     * <code>releaseScanBuffer</code>.
+     *
+     * @param minSize the smallest usable size, the length of one record
+     * @return a direct buffer of <code>scanBufferSize</code> bytes, or minSize
+     * bytes if that is larger
+     * @throws InterruptedIOException if interrupted while waiting for a
+     * buffer
+     */
+    private static ByteBuffer acquireScanBuffer(int minSize)
+            throws InterruptedIOException {
+        try {
+            scanBufferPermits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting for a scan buffer");
+        }
+        int size = Math.max(scanBufferSize, minSize);
+        ByteBuffer block = scanBuffers.poll();
+        if (block == null || block.capacity() != size) {
+            block = ByteBuffer.allocateDirect(size);
+        }
+        return block;
+    }
+
+    /**
+     * Gives a block buffer back to the pool. It is dropped if the scan buffer
+     * size has changed since it was allocated.
+     *
+     * @param block the buffer taken with <code>acquireScanBuffer</code>, or
+     * null if none was taken
+     */
+    private static void releaseScanBuffer(ByteBuffer block) {
+        if (block == null) {
+            return;
+        }
+        if (block.capacity() == scanBufferSize) {
+            scanBuffers.offer(block);
+        }
+        scanBufferPermits.release();
+    }
+
+    /**
+     * @return the most off-heap memory (in bytes) used by the buffer pool
+     */
+    public static long getArenaSize() {
+        return arenaSize;
+    }
+
+    /**
+     * Sets the most off-heap memory used by the buffer pool, by instances
+     * created after the call. Once the pool is full, reading a page that is
+     * not resident evicts another one.
+     *
+     * @param size the cache size (in bytes), 0 to disable the cache
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public static void setArenaSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Arena size: " + size);
+        }
+        arenaSize = size;
+    }
+
+    /**
+     * @return the size (in bytes) of the pages of the buffer pool
+     */
+    public static int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the size of the pages of the buffer pool, by instances created
+     * after the call. Pages hold whole records, so the size is rounded down
+     * to a multiple of the record length, and is at least one record.
+     *
+     * @param size the page size (in bytes)
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public static void setPageSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Page size: " + size);
+        }
+        pageSize = size;
+    }
+
+    /**
+     * @return the size (in bytes) of the blocks read by full file scans
+     */
+    public static int getScanBufferSize() {
+        return scanBufferSize;
+    }
+
+    /**
+     * Sets the size of the blocks read by full file scans. Larger blocks mean
+     * fewer reads from the file, at the cost of up to
+     * <code>MAX_SCAN_BUFFERS</code> direct buffers of that size.
+     *
+     * @param size the block size (in bytes)
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public static void setScanBufferSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Scan buffer size: " + size);
+        }
+        scanBufferSize = size;
     }
 
     /**
@@ -281,8 +1458,13 @@ public class Data implements DBAccess {
             String[] record = new String[numFields];
             // for each field name get the number of bytes
             for (int fieldLength : fields.values()) {
-                record[idx] = new String(data, fieldOffset, fieldLength, encoding);
-                fieldOffset += fieldLength;
+                if (dictionaries[idx] != null) {
+                    record[idx] = decode(idx, data, fieldOffset);
+                } else {
+                    record[idx] = new String(data, fieldOffset, fieldLength,
+                            encoding);
+                }
+                fieldOffset += storedLengths[idx];
                 idx++;
             }
             return record;
@@ -292,18 +1474,47 @@ public class Data implements DBAccess {
         }
     }
 
+    /**
+     * Reads the code of a field stored in a dictionary and gets its value.
+     *
+     * @param field the position of the field in the record
+     * @param data the record bytes
+     * @param position the location of the code in the record bytes
+     * @return the field value, padded to the field length
+     * @throws IndexOutOfBoundsException if the code is not in the dictionary
+     */
+    private String decode(int field, byte[] data, int position)
+            throws IndexOutOfBoundsException {
+        ValueDictionary dictionary = dictionaries[field];
+        int code = ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+        String value = dictionary.decode(code);
+        if (value == null) {
+            // added by another process since the dictionary was read
+            try {
+                dictionary.reload(dbFile.getChannel());
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not read dictionary", ex);
+            }
+            value = dictionary.decode(code);
+            if (value == null) {
+                throw new IndexOutOfBoundsException("Unknown code: " + code);
+            }
+        }
+        return value;
+    }
+
     @Override
     public String[] readRecord(long recNo) throws RecordNotFoundException {
         String[] record;
 
-        dbRWLock.readLock().lock();
+        lockRead();
         try {
             if (isDeleted(recNo)) {
                 throw new RecordNotFoundException("Record deleted");
             } else if (isLocked(recNo)) {
                 throw new RecordNotFoundException("Record locked");
             } else {
-                byte[] data = read(recNo, recordLength);
+                byte[] data = readBytes(recNo);
                 record = parseRecord(data);
             }
         } catch (IOException | IndexOutOfBoundsException ex) {
@@ -313,7 +1524,7 @@ public class Data implements DBAccess {
                     new Object[]{recNo, recordLength, getDBFileLength(), ex});
             throw new RecordNotFoundException();
         } finally {
-            dbRWLock.readLock().unlock();
+            unlockRead();
         }
         return record;
     }
@@ -347,7 +1558,7 @@ public class Data implements DBAccess {
      * @param swapValue replacement value for nulls
      * @return the swapped null array
      */
-    private static String[] swapNulls(String[] toSwap, String swapValue) {
+    static String[] swapNulls(String[] toSwap, String swapValue) {
         for (int i = 0; i < toSwap.length; i++) {
             if (toSwap[i] == null) {
                 toSwap[i] = swapValue;
@@ -358,57 +1569,204 @@ public class Data implements DBAccess {
         return toSwap;
     }
 
+    /**
+     * Matches criteria against the bytes of records, the same way as
+     * <code>matchRecord</code> matches them against the parsed fields, so only
+     * the records that match have to be parsed. Fields stored as text are
+     * compared byte by byte; fields stored as dictionary codes are matched by
+     * code, against the codes of the dictionary values starting with the
+     * criteria.
+     */
+    private class CriteriaMatcher {
+
+        /**
+         * The criteria, null for the fields that are not checked.
+         */
+        private final String[] criteria;
+
+        /**
+         * The bytes of the criteria checked against text fields, null for
+         * criteria that cannot be compared as bytes.
+         */
+        private final byte[][] prefixes;
+
+        /**
+         * The codes matching the criteria checked against encoded fields.
+         */
+        private final BitSet[] codes;
+
+        /**
+         * The number of codes checked when <code>codes</code> was built, by
+         * field. Codes added since are checked by value.
+         */
+        private final int[] checked;
+
+        /**
+         * The location of each field in the record bytes.
+         */
+        private final int[] positions;
+
+        /**
+         * The length of each field, which values are padded to.
+         */
+        private final int[] lengths;
+
+        /**
+         * Prepares criteria for matching.
+         *
+         * @param criteria the field values to check records against, as
+         * passed to <code>matchRecord</code>
+         */
+        CriteriaMatcher(String[] criteria) {
+            int len = Math.min(criteria.length, numFields);
+            this.criteria = Arrays.copyOf(criteria, len);
+            prefixes = new byte[len][];
+            codes = new BitSet[len];
+            checked = new int[len];
+            positions = new int[len];
+            lengths = new int[len];
+            int position = recordOffset;
+            int i = 0;
+            for (int fieldLength : fields.values()) {
+                if (i >= len) {
+                    break;
+                }
+                positions[i] = position;
+                lengths[i] = fieldLength;
+                String criterion = criteria[i];
+                if (criterion != null) {
+                    if (dictionaries[i] != null) {
+                        checked[i] = dictionaries[i].size();
+                        codes[i] = dictionaries[i].startingWith(criterion);
+                    } else if (isAscii(criterion)) {
+                        prefixes[i] = criterion.getBytes(
+                                StandardCharsets.US_ASCII);
+                    }
+                }
+                position += storedLengths[i];
+                i++;
+            }
+        }
+
+        /**
+         * Checks if the text can be compared with the bytes of a field.
+         *
+         * @param text the criterion
+         * @return true if every character is stored as the same single byte
+         */
+        private boolean isAscii(String text) {
+            if (!StandardCharsets.US_ASCII.equals(encoding)) {
+                return false;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) > 0x7f) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks if a record matches at least one criterion.
+         *
+         * @param data the record bytes, including the deleted flag
+         * @return true if <code>matchRecord</code> would count a match
+         */
+        boolean matches(byte[] data) {
+            for (int i = 0; i < criteria.length; i++) {
+                if (criteria[i] != null && matches(i, data)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Checks if a field of a record starts with its criterion.
+         *
+         * @param field the position of the field
+         * @param data the record bytes, including the deleted flag
+         * @return true if the field starts with the criterion
+         */
+        private boolean matches(int field, byte[] data) {
+            int position = positions[field];
+            if (codes[field] != null) {
+                int code = ((data[position] & 0xff) << 8)
+                        | (data[position + 1] & 0xff);
+                if (code < checked[field]) {
+                    return codes[field].get(code);
+                }
+                return decode(field, data, position)
+                        .startsWith(criteria[field]);
+            }
+            byte[] prefix = prefixes[field];
+            if (prefix == null) {
+                return new String(data, position, lengths[field], encoding)
+                        .startsWith(criteria[field]);
+            }
+            if (prefix.length > lengths[field]) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (data[position + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     @Override
     public long[] findByCriteria(String[] criteria) {
-        // findByCritetia definition is the reverse of matchRecord deinition
-        criteria = swapNulls(criteria, "");
+        return find(criteria, false);
+    }
+
+    /**
+     * Finds the records matching criteria into the data buffer, the same way
+     * as <code>findByCriteria</code>.
+     *
+     * @param criteria the search criteria
+     * @param withLocked true to also find the records locked by this process
+     * @return the record numbers of the matching records
+     */
+    private long[] find(String[] criteria, final boolean withLocked) {
+        // findByCritetia definition is the reverse of matchRecord deinition;
+        // swapped in a copy, since callers may share the array across threads
+        criteria = swapNulls(criteria.clone(), "");
+        revalidate();
 
-        Object[] recNos;
+        long[] result;
         // prevent the dataBuffer from being used while block executes
-        synchronized (dataBuffer) {
+        dataBufferLock.lock();
+        try {
             dataBuffer.clear();
 
-            String[] record;
-
-            dbRWLock.readLock().lock();
-            try {
-                // refresh the length of the database file
-                getDBFileLength();
-
-                for (long offset = dataOffset; offset < dbFileLength;
-                        offset += recordLength) {
-                    try {
-                        if (!isDeleted(offset)) {
-                            record = readRecord(offset);
-                            // if there is at least one match
-                            if (matchRecord(criteria, record) > 0) {
+            // skip the scan if the filters rule out every criteria
+            if (mightMatch(criteria)) {
+                try {
+                    scan(new RecordVisitor() {
+                        @Override
+                        public void visit(long recNo, String[] record) {
+                            // locked records cannot be read, so leave them out
+                            if (withLocked || !isLocked(recNo)) {
                                 // add the record to the data buffer
-                                dataBuffer.put(offset, record);
-                            } else {
+                                dataBuffer.add(ordinal(recNo), record);
                             }
                         }
-                    } catch (RecordNotFoundException ex) {
-                        log.log(Level.INFO, "Record not found."
-                                + "\nRecord Address: {0}\n{1}",
-                                new Object[]{offset, ex});
-                    } catch (IOException ex) {
-                        log.log(Level.SEVERE, "Could not read database file\n",
-                                ex);
-                    }
+                    }, new CriteriaMatcher(criteria));
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, "Could not read database file\n",
+                            ex);
                 }
-            } finally {
-                dbRWLock.readLock().unlock();
             }
             // retrieve the record numbers from the dataBuffer
-            recNos = dataBuffer.keySet().toArray();
-        }
-        // create the result array
-        long[] result = new long[recNos.length];
-        // loop through and cast record numbers into the primitive long
-        for (int i = 0; i < recNos.length; i++) {
-            result[i] = (Long) recNos[i];
+            result = new long[dataBuffer.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = toRecNo(dataBuffer.getOrdinal(i));
+            }
+        } finally {
+            dataBufferLock.unlock();
         }
-        // return the primitive array of the result
         return result;
     }
 
@@ -420,20 +1778,45 @@ public class Data implements DBAccess {
      * @return the resulting records from the search
      */
     public Map<Long, String[]> search(String... params) {
-        synchronized (dataBuffer) {
-            try {
-                findByCriteria(params);
-                return new LinkedHashMap<>(dataBuffer);
-            } finally {
-                // ensure that data buffer is cleared after search is done
-                dataBuffer.clear();
+        return search(false, params);
+    }
+
+    /**
+     * Takes search parameters and returns records that match, like
+     * <code>search(String...)</code>. Records locked by this process are left
+     * out unless asked for, in which case they are returned as they were
+     * before being locked. A caller following the changes of the database
+     * needs them, since unlocking a record without changing it is not a
+     * change.
+     *
+     * @param withLocked true to also return the records locked by this
+     * process
+     * @param params the search parameters
+     * @return the resulting records from the search
+     */
+    public Map<Long, String[]> search(boolean withLocked, String... params) {
+        dataBufferLock.lock();
+        try {
+            find(params, withLocked);
+            Map<Long, String[]> records
+                    = new LinkedHashMap<>(dataBuffer.size() * 4 / 3 + 1);
+            for (int i = 0; i < dataBuffer.size(); i++) {
+                records.put(toRecNo(dataBuffer.getOrdinal(i)),
+                        dataBuffer.getRecord(i));
             }
+            return records;
+        } finally {
+            // ensure that data buffer is cleared after search is done
+            dataBuffer.clear();
+            dataBufferLock.unlock();
         }
     }
 
     /**
      * To perform write operations on the database file, without the underlying
-     * information being changed during the process.
+     * information being changed during the process. Writes go through the
+     * buffer pool, which writes them back to the file when the write lock is
+     * released, unless this instance is stale.
      *
      * @param offset the location to start writing the file to
      * @param data the bytes to be written
@@ -441,12 +1824,17 @@ public class Data implements DBAccess {
      */
     private void write(long offset, byte[] data) throws IOException {
         // prevents code that reads/changes database while block executes
-        dbRWLock.writeLock().lock();
+        lockWrite();
         try {
-            dbFile.seek(offset);
-            dbFile.write(data);
+            if (stale) {
+                dbFile.seek(offset);
+                dbFile.write(data);
+            } else {
+                pool.write(offset, data);
+            }
+            coordinator.markModified();
         } finally {
-            dbRWLock.writeLock().unlock();
+            unlockWrite();
         }
     }
 
@@ -463,9 +1851,13 @@ public class Data implements DBAccess {
      * @throws IndexOutOfBoundsException when the built record is longer than
      * the record length or if a field value is longer than the definition
      * specified in the schema fields.
+     * @throws IOException if a value cannot be added to its dictionary
      */
     private byte[] prepareRecord(String[] record)
-            throws IndexOutOfBoundsException {
+            throws IndexOutOfBoundsException, IOException {
+        if (magicCookie == FORMAT_V2_MAGIC_COOKIE) {
+            return prepareEncodedRecord(record);
+        }
         short idx = 0;
         int fieldOffset = 0;
         String fieldValue;
@@ -492,6 +1884,67 @@ public class Data implements DBAccess {
         }
     }
 
+    /**
+     * Converts a record into the bytes of a format v2 file, storing the fields
+     * that have a dictionary as codes. Values not yet in their dictionary are
+     * added to it, so callers must hold the write lock.
+     *
+     * @param record the array of strings that serve as a record representation
+     * @return the bytes of the record fields
+     * @throws IndexOutOfBoundsException if a field value is longer than the
+     * definition specified in the schema fields
+     * @throws IOException if a value cannot be added to its dictionary
+     */
+    private byte[] prepareEncodedRecord(String[] record)
+            throws IndexOutOfBoundsException, IOException {
+        byte[] data = new byte[recordLength - recordOffset];
+        int fieldOffset = 0;
+        int idx = 0;
+        for (int fieldLength : fields.values()) {
+            String value = record[idx];
+            if (value.length() > fieldLength) {
+                throw new IndexOutOfBoundsException("Field value too long");
+            }
+            if (dictionaries[idx] != null) {
+                int code = encode(idx, value);
+                data[fieldOffset] = (byte) (code >>> 8);
+                data[fieldOffset + 1] = (byte) code;
+            } else {
+                byte[] bytes = value.getBytes(encoding);
+                if (bytes.length > fieldLength) {
+                    throw new IndexOutOfBoundsException("Field value too long");
+                }
+                System.arraycopy(bytes, 0, data, fieldOffset, bytes.length);
+                Arrays.fill(data, fieldOffset + bytes.length,
+                        fieldOffset + fieldLength, (byte) ' ');
+            }
+            fieldOffset += storedLengths[idx];
+            idx++;
+        }
+        return data;
+    }
+
+    /**
+     * Gets the code of a field value, adding the value to the dictionary of
+     * the field if it is not there. Callers must hold the write lock.
+     *
+     * @param field the position of the field in the record
+     * @param value the field value
+     * @return the code of the value
+     * @throws IOException if the dictionary is full or cannot be written
+     */
+    private int encode(int field, String value) throws IOException {
+        ValueDictionary dictionary = dictionaries[field];
+        int code = dictionary.encode(value);
+        if (code < 0) {
+            // another process may have added it since the dictionary was read
+            dictionary.reload(dbFile.getChannel());
+            code = dictionary.add(value, dbFile.getChannel());
+            coordinator.markModified();
+        }
+        return code;
+    }
+
     /**
      * Writes a record to the database file at any location specified. Calls to
      * this method should ensure that changes to individual records are still
@@ -506,17 +1959,18 @@ public class Data implements DBAccess {
     private void writeRecord(long recNo, String[] data)
             throws IOException {
         // prevent database file from being read/edited while being written
-        dbRWLock.writeLock().lock();
+        lockWrite();
         try {
             // write into database file, skipping the record offset bytes
             write(recNo + recordOffset, prepareRecord(data));
         } catch (IndexOutOfBoundsException ex) {
             log.log(Level.SEVERE, "Data exceeds record length"
                     + "\nRecord Length: {0}\nFields: {1}\nData: {2}\n{3}",
-                    new Object[]{recordLength, fields, Arrays.toString(data), ex});
+                    new Object[]{recordLength, fields, Arrays.toString(data),
+                        ex});
             throw new IOException();
         } finally {
-            dbRWLock.writeLock().unlock();
+            unlockWrite();
         }
     }
 
@@ -553,105 +2007,469 @@ public class Data implements DBAccess {
 
     @Override
     public long createRecord(String[] data) throws DuplicateKeyException {
-        long finalOffset = -1; // instantiate to a non usable value
-        long offset = dataOffset;
+        long recNo = -1; // instantiate to a non usable value
+        revalidate();
 
-        // prevents code that changes database while block executes
-        dbRWLock.readLock().lock();
+        // prevent code that reads/changes database while block executes
+        lockWrite();
         try {
-            getDBFileLength();
-
-            while (offset < dbFileLength) {
+            String[] record = normalize(data);
+            if (findDuplicate(record) >= 0) {
+                throw new DuplicateKeyException("Duplicate record found");
+            }
+            recNo = freeSlot();
+            // deleted flag and fields in a single write
+            write(recNo, toRecordBytes(data));
+            recordCreated(recNo, record);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Could not write database file", ex);
+        } finally {
+            unlockWrite();
+        }
+        return recNo;
+    }
 
-                String[] record = readRecord(offset);
+    /**
+     * Creates many records at once. Duplicates are checked for the whole
+     * batch before anything is written, against the record index or a single
+     * scan of the file, and between the records of the batch. The records are
+     * written into the free slots first, then appended to the file in blocks
+     * of up to <code>scanBufferSize</code> bytes.
+     *
+     * @param data the records to create, each an array of field values
+     * @return the record numbers of the new records, in batch order, -1 for
+     * the records that could not be written
+     * @throws DuplicateKeyException if a record is already in the file or
+     * appears twice in the batch, in which case nothing is written
+     */
+    public long[] createRecords(Collection<String[]> data)
+            throws DuplicateKeyException {
+        long[] recNos = new long[data.size()];
+        Arrays.fill(recNos, -1);
+        revalidate();
 
-                if (compareRecords(record, data) == 0) {
-                    throw new DuplicateKeyException("Duplicate record found");
-                } else {
-                    // check if the record num is first available free space
-                    if (isDeleted(offset) && finalOffset < 0) {
-                        finalOffset = offset;
-                    }
+        lockWrite();
+        try {
+            List<String[]> records = new ArrayList<>(data.size());
+            List<byte[]> bytes = new ArrayList<>(data.size());
+            for (String[] fieldValues : data) {
+                records.add(normalize(fieldValues));
+                bytes.add(toRecordBytes(fieldValues));
+            }
+            checkDuplicates(records);
+
+            int next = 0;
+            // fill the free slots first
+            long count = (getDBFileLength() - dataOffset) / recordLength;
+            int ordinal = stale || indexWarmup != null ? -1 : index.firstFree();
+            for (; next < recNos.length && ordinal >= 0 && ordinal < count;
+                    next++) {
+                long recNo = toRecNo(ordinal);
+                write(recNo, bytes.get(next));
+                recordCreated(recNo, records.get(next));
+                recNos[next] = recNo;
+                ordinal = index.nextFree(ordinal + 1);
+            }
+            // then append the rest in large contiguous writes
+            int blockRecords = Math.max(1, scanBufferSize / recordLength);
+            long offset = toRecNo((int) count);
+            while (next < recNos.length) {
+                int run = Math.min(blockRecords, recNos.length - next);
+                byte[] block = new byte[run * recordLength];
+                for (int i = 0; i < run; i++) {
+                    System.arraycopy(bytes.get(next + i), 0, block,
+                            i * recordLength, recordLength);
+                }
+                write(offset, block);
+                for (int i = 0; i < run; i++, next++) {
+                    recordCreated(offset, records.get(next));
+                    recNos[next] = offset;
+                    offset += recordLength;
                 }
-
-                offset += recordLength;
             }
-        } catch (RecordNotFoundException ex) {
-            log.log(Level.WARNING, "Offset: {0}\n{1}",
-                    new Object[]{finalOffset, ex});
         } catch (IOException ex) {
-            log.log(Level.SEVERE, "Could not read database file\n", ex);
+            log.log(Level.SEVERE, "Could not write database file", ex);
         } finally {
-            dbRWLock.readLock().unlock();
+            unlockWrite();
+        }
+        return recNos;
+    }
+
+    /**
+     * Checks that none of a batch of records is already in the file, and that
+     * no record appears twice in the batch. Callers should hold the write
+     * lock.
+     *
+     * @param records the padded record fields
+     * @throws DuplicateKeyException if a duplicate is found
+     * @throws IOException if the database file cannot be read
+     */
+    private void checkDuplicates(List<String[]> records)
+            throws DuplicateKeyException, IOException {
+        final Map<Long, List<String[]>> batch = new HashMap<>();
+        for (String[] record : records) {
+            long hash = RecordIndex.hash(record);
+            List<String[]> same = batch.get(hash);
+            if (same == null) {
+                same = new ArrayList<>(1);
+                batch.put(hash, same);
+            }
+            for (String[] other : same) {
+                if (compareRecords(record, other) == 0) {
+                    throw new DuplicateKeyException(
+                            "Duplicate record in batch");
+                }
+            }
+            same.add(record);
+        }
+        if (!stale && indexWarmup == null && !index.hasCollisions()) {
+            for (String[] record : records) {
+                int ordinal = index.find(RecordIndex.hash(record));
+                if (ordinal >= 0) {
+                    long recNo = toRecNo(ordinal);
+                    if (!isDeleted(recNo)
+                            && compareRecords(readRaw(recNo), record) == 0) {
+                        throw new DuplicateKeyException(
+                                "Duplicate record found");
+                    }
+                }
+            }
+            return;
         }
-        // if there was a free space
-        if (finalOffset < 0) {
-            finalOffset = offset;
+        final boolean[] duplicate = {false};
+        scan(new RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] existing) {
+                List<String[]> same = batch.get(RecordIndex.hash(existing));
+                if (same != null) {
+                    for (String[] record : same) {
+                        if (compareRecords(existing, record) == 0) {
+                            duplicate[0] = true;
+                        }
+                    }
+                }
+            }
+        });
+        if (duplicate[0]) {
+            throw new DuplicateKeyException("Duplicate record found");
         }
+    }
 
-        // prevent code that reads/changes database while block executes
-        dbRWLock.writeLock().lock();
+    /**
+     * Converts a new record into the bytes of a whole record slot, starting
+     * with an undeleted flag.
+     *
+     * @param data the record fields to be written
+     * @return the record bytes
+     * @throws IOException if the record is too long for the fixed record length
+     */
+    private byte[] toRecordBytes(String[] data) throws IOException {
+        byte[] record = new byte[recordLength];
+        record[0] = '0'; // set deleted byte to false "0"
+        byte[] fieldData = toFieldBytes(data);
+        System.arraycopy(fieldData, 0, record, recordOffset, fieldData.length);
+        return record;
+    }
+
+    /**
+     * Converts record fields into the bytes written after the deleted flag.
+     *
+     * @param data the record fields to be written
+     * @return the field bytes
+     * @throws IOException if the record is too long for the fixed record length
+     */
+    private byte[] toFieldBytes(String[] data) throws IOException {
         try {
-            write(finalOffset, "0".getBytes()); // set deleted byte to false "0"
-            writeRecord(finalOffset, data);
-        } catch (IOException ex) {
-            log.log(Level.SEVERE, "Could not read database file", ex);
-        } finally {
-            dbRWLock.writeLock().unlock();
+            return prepareRecord(data);
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Data exceeds record length", ex);
+        }
+    }
+
+    /**
+     * Moves a record that has been overwritten to its new place in the record
+     * index and filters, and tells the data listeners.
+     *
+     * @param recNo the location of the record in the db file
+     * @param before the padded record fields before the update
+     * @param after the padded record fields after the update
+     */
+    private void recordUpdated(long recNo, String[] before, String[] after) {
+        unindexRecord(recNo, before);
+        indexRecord(recNo, after);
+        for (DataListener listener : listeners) {
+            if (isReplayed(replays.get(listener), recNo)) {
+                listener.recordUpdated(recNo, before, after);
+            }
+        }
+    }
+
+    /**
+     * Adds a record that has been written into a new or reused location to
+     * the record index and filters, and tells the data listeners.
+     *
+     * @param recNo the location of the record in the db file
+     * @param record the padded record fields
+     */
+    private void recordCreated(long recNo, String[] record) {
+        indexRecord(recNo, record);
+        for (DataListener listener : listeners) {
+            if (isReplayed(replays.get(listener), recNo)) {
+                listener.recordCreated(recNo, record);
+            }
         }
-        return finalOffset;
     }
 
     @Override
     public void updateRecord(long recNo, String[] data, long lockCookie)
             throws RecordNotFoundException, SecurityException {
+        revalidate();
         // record level locking
-        if (lockCookies.get(recNo) == lockCookie) {
+        if (holdsLock(recNo, lockCookie)) {
             // prevents code that reads/changes database while block executes
-            dbRWLock.writeLock().lock();
+            lockWrite();
             try {
                 if (isDeleted(recNo)) {
                     throw new RecordNotFoundException("Record deleted");
                 } else {
+                    String[] before = readRaw(recNo);
                     // overwrite the record ignoring the deleted flag byte
                     writeRecord(recNo, data);
+                    recordUpdated(recNo, before, readRaw(recNo));
                 }
 
             } catch (IOException ex) {
                 log.log(Level.SEVERE, "Record update failed.", ex);
             } finally {
-                dbRWLock.writeLock().unlock();
+                unlockWrite();
             }
         } else {
             throw new SecurityException("Invalid lock cookie");
         }
     }
 
+    /**
+     * Begins a transaction over a set of records, locking them in ascending
+     * record number order. The caller must commit or roll back the
+     * transaction to unlock them.
+     *
+     * @param recNos the records the transaction will read and update
+     * @return the transaction
+     * @throws RecordNotFoundException if a record cannot be locked
+     */
+    public Transaction begin(long... recNos) throws RecordNotFoundException {
+        return new Transaction(this, recNos);
+    }
+
+    /**
+     * Reads a record that is locked by the caller.
+     *
+     * @param recNo the record number, its location in the file
+     * @param lockCookie the cookie returned when the record was locked
+     * @return the padded record fields
+     * @throws RecordNotFoundException if the record is deleted or cannot be
+     * read
+     * @throws SecurityException if the cookie does not hold the record lock
+     */
+    String[] readLockedRecord(long recNo, long lockCookie)
+            throws RecordNotFoundException {
+        if (!holdsLock(recNo, lockCookie)) {
+            throw new SecurityException("Invalid lock cookie");
+        }
+        lockRead();
+        try {
+            if (isDeleted(recNo)) {
+                throw new RecordNotFoundException("Record deleted");
+            }
+            return readRaw(recNo);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Record could not be read", ex);
+            throw new RecordNotFoundException();
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Writes the updates of a transaction. The writes are saved in the
+     * journal and forced to disk, then made to the database file, which is
+     * forced before the journal is cleared. Readers see either none or all of
+     * the updates.
+     *
+     * @param updates the new record fields, by record number
+     * @param cookies the lock cookies of the records, by record number
+     * @throws RecordNotFoundException if a record is deleted or the updates
+     * cannot be written
+     * @throws SecurityException if a record is not locked with its cookie
+     */
+    void commit(Map<Long, String[]> updates, Map<Long, Long> cookies)
+            throws RecordNotFoundException {
+        if (updates.isEmpty()) {
+            return;
+        }
+        revalidate();
+        lockWrite();
+        try {
+            if (recover()) {
+                // a process stopped during its commit since revalidate; the
+                // filters and listeners are reloaded by the next revalidate
+                stale = true;
+            }
+            Map<Long, byte[]> writes = new LinkedHashMap<>();
+            Map<Long, String[]> before = new LinkedHashMap<>();
+            for (Map.Entry<Long, String[]> update : updates.entrySet()) {
+                long recNo = update.getKey();
+                Long cookie = cookies.get(recNo);
+                if (cookie == null || !holdsLock(recNo, cookie)) {
+                    throw new SecurityException("Invalid lock cookie");
+                }
+                if (isDeleted(recNo)) {
+                    throw new RecordNotFoundException("Record deleted");
+                }
+                before.put(recNo, readRaw(recNo));
+                // overwrite the record ignoring the deleted flag byte
+                writes.put(recNo + recordOffset,
+                        toFieldBytes(update.getValue()));
+            }
+            journal.write(writes);
+            for (Map.Entry<Long, byte[]> write : writes.entrySet()) {
+                write(write.getKey(), write.getValue());
+            }
+            pool.flush();
+            dbFile.getChannel().force(false);
+            journal.clear();
+            for (Map.Entry<Long, String[]> record : before.entrySet()) {
+                long recNo = record.getKey();
+                recordUpdated(recNo, record.getValue(), readRaw(recNo));
+            }
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Transaction commit failed.", ex);
+            throw new RecordNotFoundException("Transaction commit failed");
+        } finally {
+            unlockWrite();
+        }
+    }
+
     @Override
     public void deleteRecord(long recNo, long lockCookie)
             throws RecordNotFoundException, SecurityException {
+        revalidate();
         // record level locking
-        if (lockCookies.get(recNo) == lockCookie) {
+        if (holdsLock(recNo, lockCookie)) {
             // prevents code that reads/changes database while block executes
-            dbRWLock.writeLock().lock();
+            lockWrite();
             try {
                 if (isDeleted(recNo)) {
                     throw new RecordNotFoundException("Record already deleted");
                 } else {
+                    String[] before = readRaw(recNo);
                     // overwrite the deleted flag byte ignoring the data
                     write(recNo, new byte[]{1});
+                    unindexRecord(recNo, before);
+                    freeRecord(recNo);
+                    for (DataListener listener : listeners) {
+                        if (isReplayed(replays.get(listener), recNo)) {
+                            listener.recordDeleted(recNo, before);
+                        }
+                    }
                 }
             } catch (IOException ex) {
                 log.log(Level.SEVERE, "Record update failed.", ex);
                 throw new RecordNotFoundException();
             } finally {
-                dbRWLock.writeLock().unlock();
+                unlockWrite();
             }
         } else {
             throw new SecurityException("Invalid lock cookie");
         }
     }
 
+    /**
+     * Registers an object to be notified of record changes made through this
+     * instance. When replay is true the listener is first given every live
+     * record as a creation, by a pass over the file on a background thread.
+     * Changes are only passed on once the pass has replayed the record they
+     * are made to, so the listener reaches the current state of the file
+     * without missing or repeating a concurrent change. Use
+     * <code>isReplaying</code> to tell when it is complete.
+     *
+     * @param listener the object to notify
+     * @param replay true to pass the existing records to the listener
+     */
+    public void addDataListener(final DataListener listener, boolean replay) {
+        lockWrite();
+        try {
+            if (replay) {
+                Warmup warmup = new Warmup() {
+                    @Override
+                    public void visit(long recNo, String[] record) {
+                        listener.recordCreated(recNo, record);
+                    }
+
+                    @Override
+                    void finish() {
+                        replays.remove(listener);
+                    }
+                };
+                replays.put(listener, warmup);
+                startWarmup(warmup, "Database listener replay");
+            }
+            listeners.add(listener);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Checks if the existing records are still being passed to a listener
+     * registered with replay.
+     *
+     * @param listener the listener to check
+     * @return true if the listener does not yet reflect every record
+     */
+    public boolean isReplaying(DataListener listener) {
+        return replays.containsKey(listener);
+    }
+
+    /**
+     * Checks if the record index, the filters and the data listeners have
+     * been built. Until then the database works, but searches and new records
+     * may have to scan the whole file.
+     *
+     * @return true if no background pass over the file is running
+     */
+    public boolean isReady() {
+        return warmups.isEmpty();
+    }
+
+    /**
+     * Get how far the background passes building the record index, filters
+     * and data listeners have got.
+     *
+     * @return the percentage of the work done, 100 when ready
+     */
+    public int getWarmupProgress() {
+        int progress = 100;
+        for (Warmup warmup : warmups) {
+            progress = Math.min(progress, warmup.getProgress());
+        }
+        return progress;
+    }
+
+    /**
+     * Stops notifying an object of record changes.
+     *
+     * @param listener the object to remove
+     */
+    public void removeDataListener(DataListener listener) {
+        listeners.remove(listener);
+        Warmup warmup = replays.remove(listener);
+        if (warmup != null) {
+            warmup.cancelled = true;
+            warmups.remove(warmup);
+        }
+    }
+
     /**
      * Checks is a record has been locked using the <code>lockRecord</code>
      * method.
@@ -660,53 +2478,166 @@ public class Data implements DBAccess {
      * @return true if the record is locked
      */
     public final boolean isLocked(long recNo) {
-        return lockCookies.containsKey(recNo);
+        int ordinal = ordinal(recNo);
+        if (ordinal < 0) {
+            return false;
+        }
+        synchronized (lockCookies) {
+            return lockCookies.containsKey(ordinal);
+        }
+    }
+
+    /**
+     * Checks if a record is locked with a cookie.
+     *
+     * @param recNo the record number, its location in the file
+     * @param lockCookie the cookie returned when the record was locked
+     * @return true if the record is locked and the cookie holds the lock
+     */
+    private boolean holdsLock(long recNo, long lockCookie) {
+        int ordinal = ordinal(recNo);
+        if (ordinal < 0) {
+            return false;
+        }
+        synchronized (lockCookies) {
+            return lockCookies.containsKey(ordinal)
+                    && lockCookies.get(ordinal) == lockCookie;
+        }
     }
 
     @Override
     public long lockRecord(long recNo) throws RecordNotFoundException {
+        if (ordinal(recNo) < 0) {
+            throw new RecordNotFoundException("Invalid record number");
+        }
         // for managing concurrent lock requests
-        synchronized (lockCookies) {
-            // stay in the loop while the record is locked
-            while (isLocked(recNo)) {
+        recordLock.lock();
+        try {
+            // stay in the loop while the record is locked by this process
+            // or another process using the same file
+            while (isLocked(recNo) || !coordinator.tryLockRecord(recNo)) {
                 try {
                     log.info("Waiting for record lock to be released");
-                    // wait for the next time a record is unlocked
-                    // then check again
-                    lockCookies.wait();
+                    // wait for the next time a record is unlocked, polling
+                    // if the lock is held by another process, then check again
+                    if (isLocked(recNo)) {
+                        recordUnlocked.await();
+                    } else {
+                        recordUnlocked.await(PROCESS_LOCK_POLL_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                    }
                 } catch (InterruptedException ex) {
                     log.log(Level.SEVERE, "Waiting interrupted", ex);
                 }
             }
-            // this is to prevent any record from being locked 
-            // while read/write operations are being performed
-            log.info("Trying to acquire write lock");
-            dbRWLock.writeLock().lock();
-            try {
-                log.info("Write lock acquired, locking record...");
-                // use system nano time as seed to generate unique cookie
-                byte[] seed = String.valueOf(System.nanoTime()).getBytes();
-                long cookie = new SecureRandom(seed).nextLong();
-
-                lockCookies.put(recNo, cookie);
-                log.log(Level.INFO, "Locked\nRecord: {0}\nCookie: {1}",
-                        new Object[]{recNo, cookie});
-                return cookie;
-            } finally {
-                dbRWLock.writeLock().unlock();
+            return newLockCookie(recNo);
+        } finally {
+            recordLock.unlock();
+        }
+    }
+
+    /**
+     * Locks a record without waiting, if neither this process nor another one
+     * using the same file holds its lock.
+     *
+     * @param recNo the record number, its location in the file
+     * @return the lock cookie, or null if the record is already locked
+     * @throws RecordNotFoundException if recNo is not the start of a record
+     */
+    public Long tryLockRecord(long recNo) throws RecordNotFoundException {
+        if (ordinal(recNo) < 0) {
+            throw new RecordNotFoundException("Invalid record number");
+        }
+        recordLock.lock();
+        try {
+            if (isLocked(recNo) || !coordinator.tryLockRecord(recNo)) {
+                return null;
+            }
+            return newLockCookie(recNo);
+        } finally {
+            recordLock.unlock();
+        }
+    }
+
+    /**
+     * Registers a task to run the next time a record locked by this process
+     * is unlocked. The task runs on the unlocking thread, while
+     * <code>recordLock</code> is held, so it should only hand work over to
+     * another thread.
+     *
+     * @param recNo the record number, its location in the file
+     * @param task the task to run
+     * @return true if the task was queued, false if the record is not locked
+     * by this process and the task was not queued
+     */
+    public boolean whenUnlocked(long recNo, Runnable task) {
+        recordLock.lock();
+        try {
+            if (!isLocked(recNo)) {
+                return false;
+            }
+            List<Runnable> waiters = unlockWaiters.get(recNo);
+            if (waiters == null) {
+                waiters = new ArrayList<>(1);
+                unlockWaiters.put(recNo, waiters);
+            }
+            waiters.add(task);
+            return true;
+        } finally {
+            recordLock.unlock();
+        }
+    }
+
+    /**
+     * Creates the cookie of a record that has just been locked. Callers
+     * should hold <code>recordLock</code>.
+     *
+     * @param recNo the record number, its location in the file
+     * @return the lock cookie
+     */
+    private long newLockCookie(long recNo) {
+        // this is to prevent any record from being locked 
+        // while read/write operations are being performed
+        log.info("Trying to acquire write lock");
+        dbRWLock.writeLock().lock();
+        try {
+            log.info("Write lock acquired, locking record...");
+            // use system nano time as seed to generate unique cookie
+            byte[] seed = String.valueOf(System.nanoTime()).getBytes();
+            long cookie = new SecureRandom(seed).nextLong();
+
+            synchronized (lockCookies) {
+                lockCookies.put(ordinal(recNo), cookie);
             }
+            log.log(Level.INFO, "Locked\nRecord: {0}\nCookie: {1}",
+                    new Object[]{recNo, cookie});
+            return cookie;
+        } finally {
+            dbRWLock.writeLock().unlock();
         }
     }
 
     @Override
     public void unlock(long recNo, long cookie) throws SecurityException {
-        synchronized (lockCookies) {
-            if (lockCookies.get(recNo) == cookie) {
-                lockCookies.remove(recNo);
-                lockCookies.notifyAll();
+        recordLock.lock();
+        try {
+            if (holdsLock(recNo, cookie)) {
+                synchronized (lockCookies) {
+                    lockCookies.remove(ordinal(recNo));
+                }
+                coordinator.unlockRecord(recNo);
+                recordUnlocked.signalAll();
+                List<Runnable> waiters = unlockWaiters.remove(recNo);
+                if (waiters != null) {
+                    for (Runnable waiter : waiters) {
+                        waiter.run();
+                    }
+                }
             } else {
                 throw new SecurityException("Invalid lock cookie");
             }
+        } finally {
+            recordLock.unlock();
         }
     }
 
@@ -0,0 +1,300 @@
+package suncertify.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts database files from the original format to format v2, where the
+ * values of chosen fields are stored as 2 byte codes into dictionaries kept in
+ * the file header. The hotel names and cities repeat across many records, so
+ * encoding them shrinks the records several-fold. Deleted records are left
+ * out of the new file.
+ *
+ * <p>
+ * The source file is read twice, once to collect the distinct values and once
+ * to copy the records, so it is never held in memory.
+ *
+ * @author Emmanuel
+ */
+public class DataConverter {
+
+    /**
+     * The fields encoded by default.
+     */
+    public static final String[] DEFAULT_ENCODED_FIELDS = {"name", "location"};
+
+    /**
+     * The default number of bytes reserved for the values of each dictionary.
+     * A dictionary is never given less than twice the room its initial values
+     * take.
+     */
+    public static final int DEFAULT_DICTIONARY_CAPACITY = 1 << 16;
+
+    /**
+     * The logger for the class.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The character encoding of the database files.
+     */
+    private static final Charset ENCODING = StandardCharsets.US_ASCII;
+
+    /**
+     * The schema of the source file.
+     */
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * The length of each field of the source file, by field position.
+     */
+    private final List<Integer> lengths = new ArrayList<>();
+
+    /**
+     * The length (in bytes) of the fields of each source record.
+     */
+    private int fieldsLength;
+
+    /**
+     * Creates a converter. Use the static <code>convert</code> methods.
+     */
+    private DataConverter() {
+    }
+
+    /**
+     * Converts a database file to format v2, encoding the default fields.
+     *
+     * @param source the path to the database file to convert
+     * @param target the path to the new file, which must not exist
+     * @return the number of records written
+     * @throws IOException if the source cannot be read, is already in format
+     * v2, or the target cannot be written
+     */
+    public static long convert(String source, String target)
+            throws IOException {
+        return convert(source, target, DEFAULT_DICTIONARY_CAPACITY,
+                DEFAULT_ENCODED_FIELDS);
+    }
+
+    /**
+     * Converts a database file to format v2.
+     *
+     * @param source the path to the database file to convert
+     * @param target the path to the new file, which must not exist
+     * @param capacity the number of bytes to reserve for the values of each
+     * dictionary
+     * @param encodedFields the names of the fields to store as codes, fields
+     * not in the file are ignored
+     * @return the number of records written
+     * @throws IOException if the source cannot be read, is already in format
+     * v2, or the target cannot be written
+     */
+    public static long convert(String source, String target, int capacity,
+            String... encodedFields) throws IOException {
+        if (new File(target).exists()) {
+            throw new IOException("Target file already exists: " + target);
+        }
+        return new DataConverter().copy(source, target, capacity,
+                new LinkedHashSet<>(Arrays.asList(encodedFields)));
+    }
+
+    /**
+     * Opens the source file and reads its header.
+     *
+     * @param source the path to the database file
+     * @return the input, positioned at the first record
+     * @throws IOException if the file cannot be read or is in format v2
+     */
+    private DataInputStream open(String source) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(source)));
+        try {
+            if (in.readInt() == Data.FORMAT_V2_MAGIC_COOKIE) {
+                throw new IOException("Already in format v2: " + source);
+            }
+            int recordLength = in.readInt();
+            int numFields = in.readShort();
+            names.clear();
+            lengths.clear();
+            fieldsLength = 0;
+            for (int i = 0; i < numFields; i++) {
+                byte[] name = new byte[in.readShort()];
+                in.readFully(name);
+                names.add(new String(name, ENCODING));
+                int length = in.readShort();
+                lengths.add(length);
+                fieldsLength += length;
+            }
+            if (fieldsLength != recordLength) {
+                throw new IOException("Schema does not match record length");
+            }
+            return in;
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the next record of the source file.
+     *
+     * @param in the input, positioned at a record
+     * @param data the array to read the record into, a record long
+     * @return false at the end of the file
+     * @throws IOException if the file cannot be read or ends inside a record
+     */
+    private static boolean next(DataInputStream in, byte[] data)
+            throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        data[0] = (byte) first;
+        try {
+            in.readFully(data, 1, data.length - 1);
+        } catch (EOFException ex) {
+            log.log(Level.WARNING, "Ignoring incomplete last record");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts the source file.
+     *
+     * @param source the path to the database file to convert
+     * @param target the path to the new file
+     * @param capacity the number of bytes to reserve for each dictionary
+     * @param encodedFields the names of the fields to store as codes
+     * @return the number of records written
+     * @throws IOException if a file cannot be read or written
+     */
+    private long copy(String source, String target, int capacity,
+            Set<String> encodedFields) throws IOException {
+        // first pass: the distinct values of the encoded fields
+        Map<Integer, Map<String, Integer>> dictionaries = new LinkedHashMap<>();
+        byte[] data;
+        try (DataInputStream in = open(source)) {
+            for (int i = 0; i < names.size(); i++) {
+                if (encodedFields.contains(names.get(i))) {
+                    dictionaries.put(i, new LinkedHashMap<String, Integer>());
+                }
+            }
+            data = new byte[1 + fieldsLength];
+            while (next(in, data)) {
+                if (data[0] == 1) {
+                    continue;
+                }
+                int position = 1;
+                for (int i = 0; i < names.size(); i++) {
+                    Map<String, Integer> codes = dictionaries.get(i);
+                    if (codes != null) {
+                        String value = ValueDictionary.trim(new String(data,
+                                position, lengths.get(i), ENCODING));
+                        if (!codes.containsKey(value)) {
+                            codes.put(value, codes.size());
+                        }
+                    }
+                    position += lengths.get(i);
+                }
+            }
+        }
+        // second pass: the header, dictionaries and encoded records
+        long count = 0;
+        try (DataInputStream in = open(source);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(target)))) {
+            int storedLength = 0;
+            for (int i = 0; i < names.size(); i++) {
+                storedLength += dictionaries.containsKey(i)
+                        ? ValueDictionary.CODE_LENGTH : lengths.get(i);
+            }
+            out.writeInt(Data.FORMAT_V2_MAGIC_COOKIE);
+            out.writeInt(storedLength);
+            out.writeShort(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes(ENCODING);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeShort(lengths.get(i));
+                out.writeByte(dictionaries.containsKey(i) ? 1 : 0);
+            }
+            for (Map<String, Integer> codes : dictionaries.values()) {
+                List<String> values = new ArrayList<>(codes.keySet());
+                int size = 0;
+                for (String value : values) {
+                    size += ValueDictionary.entryLength(value, ENCODING);
+                }
+                ValueDictionary.writeRegion(out, values,
+                        (int) Math.min(Integer.MAX_VALUE,
+                                Math.max(capacity, 2L * size)), ENCODING);
+            }
+            while (next(in, data)) {
+                if (data[0] == 1) {
+                    continue;
+                }
+                out.writeByte(data[0]);
+                int position = 1;
+                for (int i = 0; i < names.size(); i++) {
+                    Map<String, Integer> codes = dictionaries.get(i);
+                    if (codes != null) {
+                        out.writeShort(codes.get(ValueDictionary.trim(
+                                new String(data, position, lengths.get(i),
+                                        ENCODING))));
+                    } else {
+                        out.write(data, position, lengths.get(i));
+                    }
+                    position += lengths.get(i);
+                }
+                count++;
+            }
+        }
+        log.log(Level.INFO, "Converted database file\nSource: {0}"
+                + "\nTarget: {1}\nRecords: {2}",
+                new Object[]{source, target, count});
+        return count;
+    }
+
+    /**
+     * Main entry. Converts a database file to format v2.
+     * <br>Usage: <code>DataConverter source target [field...]</code>
+     * <br>The fields to encode default to <code>name</code> and
+     * <code>location</code>.
+     *
+     * @param args the initial command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: DataConverter source target [field...]");
+            return;
+        }
+        String[] fields = args.length > 2
+                ? Arrays.copyOfRange(args, 2, args.length)
+                : DEFAULT_ENCODED_FIELDS;
+        try {
+            convert(args[0], args[1], DEFAULT_DICTIONARY_CAPACITY, fields);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package suncertify.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the records of a database file to a character stream, as CSV or as
+ * JSON Lines. Records are written as the file is scanned, a block at a time,
+ * so memory use does not grow with the size of the file and writers are only
+ * held up while a single block is read and written. Field values are written
+ * without their padding.
+ *
+ * <p>
+ * Records that are locked are exported as they are stored in the file; an
+ * update in progress on them is not visible until it is written.
+ *
+ * @author Emmanuel
+ */
+public class DataExporter {
+
+    /**
+     * The output formats of an export.
+     */
+    public enum Format {
+
+        /**
+         * Comma separated values, with a header line of the field names.
+         */
+        CSV,
+        /**
+         * One JSON object per line, keyed by the field names.
+         */
+        JSON_LINES
+    }
+
+    /**
+     * The name of the column holding the record number.
+     */
+    public static final String RECNO_COLUMN = "recNo";
+
+    /**
+     * The database to export.
+     */
+    private final Data database;
+
+    /**
+     * The format to write the records in.
+     */
+    private final Format format;
+
+    /**
+     * The field names, in record order.
+     */
+    private final List<String> names;
+
+    /**
+     * Creates an exporter for a database.
+     *
+     * @param database the database to export
+     * @param format the format to write the records in
+     */
+    public DataExporter(Data database, Format format) {
+        this.database = database;
+        this.format = format;
+        this.names = new ArrayList<>();
+        for (Object name : database.getFields().keySet()) {
+            names.add(name.toString());
+        }
+    }
+
+    /**
+     * Writes the records matching the criteria to a stream. The criteria work
+     * the same way as in <code>Data.findByCriteria</code>; with no criteria
+     * every record is written. The stream is flushed but not closed.
+     *
+     * @param out the stream to write to, ideally buffered
+     * @param criteria the search criteria, with record fields in matching
+     * order, or none
+     * @return the number of records written
+     * @throws IOException if the database file cannot be read or the stream
+     * cannot be written
+     */
+    public long export(final Writer out, String... criteria)
+            throws IOException {
+        final String[] match = criteria == null || criteria.length == 0
+                ? null : Data.swapNulls(criteria.clone(), "");
+        final long[] count = {0};
+        // the visitor cannot throw, so the first failure is kept for later
+        final IOException[] failure = {null};
+        if (format == Format.CSV) {
+            writeCsvHeader(out);
+        }
+        database.scan(new Data.RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] record) {
+                if (failure[0] != null
+                        || match != null && Data.matchRecord(match, record) == 0) {
+                    return;
+                }
+                try {
+                    if (format == Format.CSV) {
+                        writeCsv(out, recNo, record);
+                    } else {
+                        writeJson(out, recNo, record);
+                    }
+                    count[0]++;
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        out.flush();
+        return count[0];
+    }
+
+    /**
+     * Writes the CSV header line.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeCsvHeader(Writer out) throws IOException {
+        out.write(RECNO_COLUMN);
+        for (String name : names) {
+            out.write(',');
+            writeCsvValue(out, name);
+        }
+        out.write("\r\n");
+    }
+
+    /**
+     * Writes a record as a CSV line.
+     *
+     * @param out the stream to write to
+     * @param recNo the location of the record in the db file
+     * @param record the record fields
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writeCsv(Writer out, long recNo, String[] record)
+            throws IOException {
+        out.write(Long.toString(recNo));
+        for (String value : record) {
+            out.write(',');
+            writeCsvValue(out, value.trim());
+        }
+        out.write("\r\n");
+    }
+
+    /**
+     * Writes a CSV value, quoted if it holds a separator, quote or line
+     * break.
+     *
+     * @param out the stream to write to
+     * @param value the value to write
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writeCsvValue(Writer out, String value)
+            throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes a record as a JSON object on one line.
+     *
+     * @param out the stream to write to
+     * @param recNo the location of the record in the db file
+     * @param record the record fields
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeJson(Writer out, long recNo, String[] record)
+            throws IOException {
+        out.write("{\"");
+        out.write(RECNO_COLUMN);
+        out.write("\":");
+        out.write(Long.toString(recNo));
+        for (int i = 0; i < record.length && i < names.size(); i++) {
+            out.write(',');
+            writeJsonString(out, names.get(i));
+            out.write(':');
+            writeJsonString(out, record[i].trim());
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * Writes a JSON string, escaping quotes, backslashes and control
+     * characters.
+     *
+     * @param out the stream to write to
+     * @param value the value to write
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writeJsonString(Writer out, String value)
+            throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+}
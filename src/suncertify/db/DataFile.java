@@ -0,0 +1,137 @@
+package suncertify.db;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The state shared by every <code>Data</code> instance using the same database
+ * file: the open file, its locks, the record locks and the sidecar files. One
+ * is kept per file in a registry keyed by canonical path, so a process can use
+ * several database files, such as the shards of a sharded database, without
+ * them contending for each other's locks.
+ *
+ * @author Emmanuel
+ */
+class DataFile {
+
+    /**
+     * The random file access mode.
+     */
+    private static final String ACCESS_MODE = "rw";
+
+    /**
+     * The open database files, by canonical path.
+     */
+    private static final Map<String, DataFile> openFiles = new HashMap<>();
+
+    /**
+     * The file opened last, used when no path is given.
+     */
+    private static DataFile lastOpened;
+
+    /**
+     * The path the file was first opened with, used to name the sidecar
+     * files.
+     */
+    final String path;
+
+    /**
+     * The physical file on disk containing the data.
+     */
+    final RandomAccessFile file;
+
+    /**
+     * Coordinates access to the file with other processes.
+     */
+    final FileCoordinator coordinator;
+
+    /**
+     * The redo journal making transaction commits atomic.
+     */
+    final Journal journal;
+
+    /**
+     * The read write lock used to maintain database operations concurrency.
+     */
+    final ReentrantReadWriteLock rwLock;
+
+    /**
+     * The map used to lock and unlock records, from record ordinal to lock
+     * cookie. Guarded by its own monitor.
+     */
+    final LongLongMap lockCookies;
+
+    /**
+     * Guards the changes to <code>lockCookies</code> and
+     * <code>unlockWaiters</code>. A lock
+     * rather than a monitor, so a virtual thread waiting for a record does not
+     * pin its carrier thread.
+     */
+    final ReentrantLock recordLock;
+
+    /**
+     * Signalled every time a record is unlocked.
+     */
+    final Condition recordUnlocked;
+
+    /**
+     * The tasks to run the next time each record is unlocked, by record
+     * number. Guarded by <code>recordLock</code>.
+     */
+    final Map<Long, List<Runnable>> unlockWaiters;
+
+    /**
+     * Opens a database file and its sidecar files.
+     *
+     * @param path the path to the database file
+     * @throws IOException if a file cannot be opened
+     */
+    private DataFile(String path) throws IOException {
+        this.path = path;
+        file = new RandomAccessFile(path, ACCESS_MODE);
+        coordinator = new FileCoordinator(path);
+        journal = new Journal(path);
+        rwLock = new ReentrantReadWriteLock(true);
+        lockCookies = new LongLongMap(0);
+        recordLock = new ReentrantLock();
+        recordUnlocked = recordLock.newCondition();
+        unlockWaiters = new HashMap<>();
+    }
+
+    /**
+     * Get the shared state of a database file, opening the file if no
+     * instance uses it yet.
+     *
+     * @param path the path to the database file, or null for the file opened
+     * last
+     * @return the shared state of the file
+     * @throws FileNotFoundException if no path is given and no file was opened
+     * before, or the file cannot be opened
+     * @throws IOException if a sidecar file cannot be opened
+     */
+    static synchronized DataFile open(String path) throws IOException {
+        if (path == null) {
+            if (lastOpened == null) {
+                throw new FileNotFoundException("No database path specified");
+            }
+            return lastOpened;
+        }
+        String key = new File(path).getCanonicalPath();
+        DataFile dataFile = openFiles.get(key);
+        if (dataFile == null) {
+            dataFile = new DataFile(path);
+            openFiles.put(key, dataFile);
+        }
+        lastOpened = dataFile;
+        return dataFile;
+    }
+
+}
@@ -0,0 +1,49 @@
+package suncertify.db;
+
+import java.io.IOException;
+
+/**
+ * Interface for objects that need to be told about changes made to the records
+ * of a database file. Listeners are notified while the database write lock is
+ * held, so notifications arrive in the same order the changes were made and
+ * should return quickly.
+ *
+ * @author Emmanuel
+ */
+public interface DataListener {
+
+    /**
+     * Called after a record has been written into a new or reused location.
+     *
+     * @param recNo the location of the record in the db file.
+     * @param record the field values of the new record.
+     */
+    public void recordCreated(long recNo, String[] record);
+
+    /**
+     * Called after the fields of an existing record have been overwritten.
+     *
+     * @param recNo the location of the record in the db file.
+     * @param before the field values before the update.
+     * @param after the field values after the update.
+     */
+    public void recordUpdated(long recNo, String[] before, String[] after);
+
+    /**
+     * Called after a record has been flagged as deleted.
+     *
+     * @param recNo the location of the record in the db file.
+     * @param before the field values of the record that was deleted.
+     */
+    public void recordDeleted(long recNo, String[] before);
+
+    /**
+     * Called when the database file has been changed by another process, or
+     * another instance, so the listener may have missed changes. Listeners
+     * keeping state derived from the records should rebuild it.
+     *
+     * @throws IOException if the database file cannot be read
+     */
+    public void dataReloaded() throws IOException;
+
+}
@@ -0,0 +1,267 @@
+package suncertify.db;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates access to a database file between processes. Uses a control
+ * file next to the database file, since the database header has no room for
+ * extra data, which holds a generation counter and is the target of the
+ * operating system file locks.
+ *
+ * <p>
+ * Bytes <code>[0, 8)</code> of the control file hold the generation and are
+ * locked shared by readers and exclusive by writers. The generation is bumped
+ * every time a writer that changed the database releases its lock, so other
+ * processes can tell that their caches are stale by reading it. Record locks
+ * are held on the single byte at <code>RECORD_LOCK_OFFSET + recNo</code>.
+ *
+ * <p>
+ * File locks are held on behalf of the whole JVM, so the holds of the threads
+ * of this process are counted and the lock is only taken by the first and
+ * released by the last.
+ *
+ * @author Emmanuel
+ */
+class FileCoordinator {
+
+    /**
+     * The extension appended to the database path to name the control file.
+     */
+    public static final String CONTROL_FILE_EXTENSION = ".ctl";
+
+    /**
+     * The length (in bytes) of the generation counter.
+     */
+    private static final int GENERATION_LENGTH = 8;
+
+    /**
+     * The offset of the record lock bytes in the control file.
+     */
+    private static final long RECORD_LOCK_OFFSET = GENERATION_LENGTH;
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The channel of the control file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The record locks held by this process, by record number.
+     */
+    private final Map<Long, FileLock> recordLocks;
+
+    /**
+     * Guards the state of the coordinator. A lock rather than a monitor, since
+     * taking the file lock can block on another process, and a blocked
+     * virtual thread must not pin its carrier thread.
+     */
+    private final ReentrantLock mutex;
+
+    /**
+     * The lock on the generation bytes, null when not held.
+     */
+    private FileLock fileLock;
+
+    /**
+     * The number of holds on the file lock by threads of this process.
+     */
+    private int holds;
+
+    /**
+     * True if the file lock is held exclusive.
+     */
+    private boolean exclusive;
+
+    /**
+     * True if the database was changed while the exclusive lock was held.
+     */
+    private boolean modified;
+
+    /**
+     * The generation read when the file lock was taken.
+     */
+    private long generation;
+
+    /**
+     * Opens, or creates, the control file of a database file.
+     *
+     * @param dbPath the location of the database file
+     * @throws IOException if the control file cannot be opened
+     */
+    FileCoordinator(String dbPath) throws IOException {
+        channel = new RandomAccessFile(dbPath + CONTROL_FILE_EXTENSION, "rw")
+                .getChannel();
+        recordLocks = new HashMap<>();
+        mutex = new ReentrantLock();
+    }
+
+    /**
+     * Takes, or adds a hold to, the file lock.
+     *
+     * @param exclusive true for a writer, false for a reader
+     * @return the generation of the database when the lock was taken, or -1
+     * if it could not be read
+     */
+    long acquire(boolean exclusive) {
+        mutex.lock();
+        try {
+            if (holds == 0) {
+                try {
+                    fileLock = channel.lock(0, GENERATION_LENGTH, !exclusive);
+                    generation = readGeneration();
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, "Could not lock control file", ex);
+                    generation = -1;
+                }
+                this.exclusive = exclusive;
+                modified = false;
+            } else if (exclusive && !this.exclusive) {
+                // the database read write lock never lets this happen
+                throw new IllegalStateException("Shared file lock held");
+            }
+            holds++;
+            return generation;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Records that the database was changed under the exclusive lock.
+     */
+    void markModified() {
+        mutex.lock();
+        try {
+            modified = true;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Removes a hold from the file lock, bumping the generation if the
+     * database was changed and this is the last hold.
+     *
+     * @return the generation of the database when the lock was released, or
+     * -1 if it could not be read
+     */
+    long release() {
+        mutex.lock();
+        try {
+            holds--;
+            if (holds == 0) {
+                try {
+                    if (exclusive && modified) {
+                        generation = readGeneration() + 1;
+                        ByteBuffer buf = ByteBuffer.allocate(GENERATION_LENGTH);
+                        buf.putLong(0, generation);
+                        channel.write(buf, 0);
+                    }
+                    if (fileLock != null) {
+                        fileLock.release();
+                    }
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, "Could not release control file", ex);
+                    generation = -1;
+                } finally {
+                    fileLock = null;
+                    modified = false;
+                }
+            }
+            return generation;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Reads the current generation of the database without locking.
+     *
+     * @return the generation, or -1 if it could not be read
+     */
+    long getGeneration() {
+        try {
+            return readGeneration();
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Could not read control file", ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the generation counter, a new control file has generation 0.
+     *
+     * @return the generation
+     * @throws IOException if the control file cannot be read
+     */
+    private long readGeneration() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(GENERATION_LENGTH);
+        while (buf.hasRemaining()
+                && channel.read(buf, buf.position()) >= 0) {
+            // keep reading until the counter is complete or the file ends
+        }
+        return buf.hasRemaining() ? 0 : buf.getLong(0);
+    }
+
+    /**
+     * Tries to lock a record against other processes, without waiting.
+     *
+     * @param recNo the record location in the db file
+     * @return true if the record lock was taken, false if another process
+     * holds it
+     */
+    boolean tryLockRecord(long recNo) {
+        mutex.lock();
+        try {
+            try {
+                FileLock lock = channel.tryLock(
+                        RECORD_LOCK_OFFSET + recNo, 1, false);
+                if (lock != null) {
+                    recordLocks.put(recNo, lock);
+                }
+                return lock != null;
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not lock record in control file", ex);
+                return true;
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock on a record taken by <code>tryLockRecord</code>.
+     *
+     * @param recNo the record location in the db file
+     */
+    void unlockRecord(long recNo) {
+        mutex.lock();
+        try {
+            FileLock lock = recordLocks.remove(recNo);
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, "Could not unlock record", ex);
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+}
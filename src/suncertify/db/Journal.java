@@ -0,0 +1,168 @@
+package suncertify.db;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Redo journal of a database file, kept in a sidecar file. The writes of a
+ * transaction are saved and forced to disk before any of them is made to the
+ * database file, and the journal is cleared once the database file has been
+ * forced too. If the process stops in between, the writes are made again when
+ * the database is next opened, so a transaction is either applied completely
+ * or not at all. A journal that was not completely written is ignored, since
+ * its transaction never started changing the database file. A process can
+ * stop during a commit while others keep the database open, so they check the
+ * journal with <code>isPending</code> and replay it before their next write.
+ *
+ * <p>
+ * Callers must hold the exclusive database lock, so only one transaction uses
+ * the journal at a time.
+ *
+ * @author Emmanuel
+ */
+class Journal {
+
+    /**
+     * The extension appended to the database path to name the journal file.
+     */
+    public static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+    /**
+     * Identifies a journal file and its layout version.
+     */
+    private static final int MAGIC_COOKIE = 0x55424a01;
+
+    /**
+     * The length of the fixed part of the journal: the magic cookie and the
+     * number of writes.
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * The length of the checksum at the end of the journal.
+     */
+    private static final int CHECKSUM_LENGTH = 8;
+
+    /**
+     * The journal file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Opens, or creates, the journal of a database file.
+     *
+     * @param dbPath the path to the database file
+     * @throws IOException if the journal file cannot be opened
+     */
+    Journal(String dbPath) throws IOException {
+        channel = new RandomAccessFile(dbPath + JOURNAL_FILE_EXTENSION, "rw")
+                .getChannel();
+    }
+
+    /**
+     * Saves the writes of a transaction and forces them to disk. Any journal
+     * left by an earlier commit is replaced, so callers must replay it first.
+     *
+     * @param writes the bytes to write, by location in the database file
+     * @throws IOException if the journal cannot be written
+     */
+    void write(Map<Long, byte[]> writes) throws IOException {
+        int length = HEADER_LENGTH + CHECKSUM_LENGTH;
+        for (byte[] data : writes.values()) {
+            length += 12 + data.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(MAGIC_COOKIE);
+        buf.putInt(writes.size());
+        for (Map.Entry<Long, byte[]> write : writes.entrySet()) {
+            buf.putLong(write.getKey());
+            buf.putInt(write.getValue().length);
+            buf.put(write.getValue());
+        }
+        buf.putLong(checksum(buf.array(), buf.position()));
+        buf.flip();
+        channel.truncate(0);
+        while (buf.hasRemaining()) {
+            channel.write(buf, buf.position());
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Reads the writes of a transaction that was committed but may not have
+     * been applied.
+     *
+     * @return the bytes to write, by location in the database file, empty if
+     * the journal is clear or was not completely written
+     * @throws IOException if the journal cannot be read
+     */
+    Map<Long, byte[]> read() throws IOException {
+        Map<Long, byte[]> writes = new LinkedHashMap<>();
+        long size = channel.size();
+        if (size < HEADER_LENGTH + CHECKSUM_LENGTH || size > Integer.MAX_VALUE) {
+            return writes;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining()
+                && channel.read(buf, buf.position()) >= 0) {
+            // keep reading until the journal is complete
+        }
+        int end = buf.capacity() - CHECKSUM_LENGTH;
+        if (buf.getInt(0) != MAGIC_COOKIE
+                || buf.getLong(end) != checksum(buf.array(), end)) {
+            return writes;
+        }
+        buf.position(4);
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            long offset = buf.getLong();
+            byte[] data = new byte[buf.getInt()];
+            buf.get(data);
+            writes.put(offset, data);
+        }
+        return writes;
+    }
+
+    /**
+     * Checks, without reading it, whether the journal holds a transaction
+     * that may not have been applied.
+     *
+     * @return true if the journal is not clear, or its size cannot be read,
+     * in which case <code>read</code> reports the failure
+     */
+    boolean isPending() {
+        try {
+            return channel.size() > 0;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Clears the journal once its writes are safely in the database file.
+     *
+     * @throws IOException if the journal cannot be truncated
+     */
+    void clear() throws IOException {
+        channel.truncate(0);
+    }
+
+    /**
+     * Computes the checksum of the start of a journal.
+     *
+     * @param data the journal bytes
+     * @param length the number of bytes to check
+     * @return the CRC-32 of the bytes
+     */
+    private static long checksum(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,256 @@
+package suncertify.db;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from <code>long</code> keys to <code>long</code> values, stored in
+ * two primitive arrays with open addressing and linear probing. An entry costs
+ * a fraction of the memory of a <code>HashMap&lt;Long, Long&gt;</code> entry
+ * and no key or value is ever boxed.
+ *
+ * <p>
+ * The map is not synchronized.
+ *
+ * @author Emmanuel
+ */
+class LongLongMap {
+
+    /**
+     * The smallest number of slots in the tables.
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The key marking an unused slot. An entry with this key is kept outside
+     * of the tables.
+     */
+    private static final long FREE_KEY = 0;
+
+    /**
+     * The value returned for keys that are not in the map.
+     */
+    private final long missing;
+
+    /**
+     * The keys, by slot.
+     */
+    private long[] keys;
+
+    /**
+     * The values, by slot.
+     */
+    private long[] values;
+
+    /**
+     * The number of entries in the tables.
+     */
+    private int size;
+
+    /**
+     * True if the map has an entry for <code>FREE_KEY</code>.
+     */
+    private boolean hasFreeKey;
+
+    /**
+     * The value of the entry for <code>FREE_KEY</code>.
+     */
+    private long freeKeyValue;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param missing the value to return for keys that are not in the map
+     */
+    LongLongMap(long missing) {
+        this.missing = missing;
+        keys = new long[MIN_CAPACITY];
+        values = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * Finds the first slot to look for a key in.
+     *
+     * @param key the key
+     * @param mask the number of slots minus one
+     * @return the slot
+     */
+    private static int slot(long key, int mask) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Finds the slot holding a key.
+     *
+     * @param key the key, not <code>FREE_KEY</code>
+     * @return the slot, or -1 if the key is not in the tables
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask);; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == FREE_KEY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key the key
+     * @return the value, or the missing value if the key is not in the map
+     */
+    long get(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : missing;
+        }
+        int i = find(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    /**
+     * Checks if the map has an entry for a key.
+     *
+     * @param key the key
+     * @return true if the key is in the map
+     */
+    boolean containsKey(long key) {
+        return key == FREE_KEY ? hasFreeKey : find(key) >= 0;
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value, or the missing value if the key was not in
+     * the map
+     */
+    long put(long key, long value) {
+        if (key == FREE_KEY) {
+            long previous = hasFreeKey ? freeKeyValue : missing;
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return previous;
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; keys[i] != FREE_KEY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the tables at most three quarters full
+        if (++size > keys.length - (keys.length >>> 2)) {
+            resize(keys.length << 1);
+        }
+        return missing;
+    }
+
+    /**
+     * Removes the entry for a key.
+     *
+     * @param key the key
+     * @return the value that was removed, or the missing value if the key
+     * was not in the map
+     */
+    long remove(long key) {
+        if (key == FREE_KEY) {
+            long previous = hasFreeKey ? freeKeyValue : missing;
+            hasFreeKey = false;
+            return previous;
+        }
+        int i = find(key);
+        if (i < 0) {
+            return missing;
+        }
+        long previous = values[i];
+        // move back the entries that probed past the removed one
+        int mask = keys.length - 1;
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE_KEY; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = FREE_KEY;
+        size--;
+        return previous;
+    }
+
+    /**
+     * @return the number of entries in the map
+     */
+    int size() {
+        return size + (hasFreeKey ? 1 : 0);
+    }
+
+    /**
+     * Removes every entry, releasing the memory of large tables.
+     */
+    void clear() {
+        if (keys.length > MIN_CAPACITY) {
+            keys = new long[MIN_CAPACITY];
+            values = new long[MIN_CAPACITY];
+        } else {
+            Arrays.fill(keys, FREE_KEY);
+        }
+        size = 0;
+        hasFreeKey = false;
+    }
+
+    /**
+     * Get the entries of the map, in no particular order.
+     *
+     * @return the keys and values, each key followed by its value
+     */
+    long[] toArray() {
+        long[] entries = new long[size() * 2];
+        int n = 0;
+        if (hasFreeKey) {
+            entries[n++] = FREE_KEY;
+            entries[n++] = freeKeyValue;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) {
+                entries[n++] = keys[i];
+                entries[n++] = values[i];
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Moves the entries into tables of a new size.
+     *
+     * @param capacity the new number of slots, a power of two
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                int j = slot(oldKeys[i], mask);
+                while (keys[j] != FREE_KEY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+}
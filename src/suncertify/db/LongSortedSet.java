@@ -0,0 +1,240 @@
+package suncertify.db;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of <code>long</code> values, stored in a list of sorted
+ * primitive blocks. Each block holds at most <code>BLOCK_SIZE</code> values
+ * and every value of a block is lower than the values of the next, so a
+ * value is found with a binary search over the last values of the blocks and
+ * one within its block, and adding or removing one only moves the values of
+ * its block. A value costs a fraction of the memory of a
+ * <code>TreeSet&lt;Long&gt;</code> entry and no value is ever boxed.
+ *
+ * <p>
+ * The set is not synchronized.
+ *
+ * @author Emmanuel
+ */
+class LongSortedSet {
+
+    /**
+     * The most values a block holds. A full block is split in two.
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * The smallest number of block slots.
+     */
+    private static final int MIN_BLOCKS = 4;
+
+    /**
+     * The blocks, in value order, each sorted.
+     */
+    private long[][] blocks;
+
+    /**
+     * The number of values in each block, none of them empty.
+     */
+    private int[] counts;
+
+    /**
+     * The number of blocks in use.
+     */
+    private int used;
+
+    /**
+     * The number of values in the set.
+     */
+    private int size;
+
+    /**
+     * Creates an empty set.
+     */
+    LongSortedSet() {
+        clear();
+    }
+
+    /**
+     * Finds the block a value belongs in: the first block whose last value is
+     * not lower than it, or the last block if every value is lower.
+     *
+     * @param value the value
+     * @return the block, or -1 if the set is empty
+     */
+    private int blockOf(long value) {
+        int low = 0;
+        int high = used - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid][counts[mid] - 1] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Makes room for a block.
+     *
+     * @param b the position of the new block
+     * @param block the values of the new block
+     * @param count the number of values in the new block
+     */
+    private void insertBlock(int b, long[] block, int count) {
+        if (used == blocks.length) {
+            blocks = Arrays.copyOf(blocks, used << 1);
+            counts = Arrays.copyOf(counts, used << 1);
+        }
+        System.arraycopy(blocks, b, blocks, b + 1, used - b);
+        System.arraycopy(counts, b, counts, b + 1, used - b);
+        blocks[b] = block;
+        counts[b] = count;
+        used++;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value the value
+     * @return true if the value was not already in the set
+     */
+    boolean add(long value) {
+        if (used == 0) {
+            long[] block = new long[BLOCK_SIZE];
+            block[0] = value;
+            insertBlock(0, block, 1);
+            size = 1;
+            return true;
+        }
+        int b = blockOf(value);
+        int i = Arrays.binarySearch(blocks[b], 0, counts[b], value);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (counts[b] == BLOCK_SIZE) {
+            // move the upper half into a block of its own
+            int half = BLOCK_SIZE / 2;
+            long[] upper = new long[BLOCK_SIZE];
+            System.arraycopy(blocks[b], half, upper, 0, BLOCK_SIZE - half);
+            counts[b] = half;
+            insertBlock(b + 1, upper, BLOCK_SIZE - half);
+            if (i > half) {
+                b++;
+                i -= half;
+            }
+        }
+        long[] block = blocks[b];
+        System.arraycopy(block, i, block, i + 1, counts[b] - i);
+        block[i] = value;
+        counts[b]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param value the value
+     * @return true if the value was in the set
+     */
+    boolean remove(long value) {
+        if (used == 0) {
+            return false;
+        }
+        int b = blockOf(value);
+        int i = Arrays.binarySearch(blocks[b], 0, counts[b], value);
+        if (i < 0) {
+            return false;
+        }
+        long[] block = blocks[b];
+        System.arraycopy(block, i + 1, block, i, counts[b] - i - 1);
+        size--;
+        if (--counts[b] == 0) {
+            System.arraycopy(blocks, b + 1, blocks, b, used - b - 1);
+            System.arraycopy(counts, b + 1, counts, b, used - b - 1);
+            blocks[--used] = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the set has no value
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the lowest value. Only valid when the set is not empty.
+     *
+     * @return the lowest value
+     */
+    long first() {
+        return blocks[0][0];
+    }
+
+    /**
+     * Get the highest value. Only valid when the set is not empty.
+     *
+     * @return the highest value
+     */
+    long last() {
+        return blocks[used - 1][counts[used - 1] - 1];
+    }
+
+    /**
+     * Get the values in a range, in order.
+     *
+     * @param from the lowest value, included
+     * @param to the highest value, excluded
+     * @return the values
+     */
+    long[] subSet(long from, long to) {
+        long[] found = new long[0];
+        if (used == 0 || from >= to) {
+            return found;
+        }
+        int n = 0;
+        int b = blockOf(from);
+        int i = Arrays.binarySearch(blocks[b], 0, counts[b], from);
+        for (i = i < 0 ? -i - 1 : i; b < used; b++, i = 0) {
+            long[] block = blocks[b];
+            int end = i;
+            while (end < counts[b] && block[end] < to) {
+                end++;
+            }
+            if (n + end - i > found.length) {
+                found = Arrays.copyOf(found,
+                        Math.max(n + end - i, found.length << 1));
+            }
+            System.arraycopy(block, i, found, n, end - i);
+            n += end - i;
+            if (end < counts[b]) {
+                break;
+            }
+        }
+        return n == found.length ? found : Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Removes every value, releasing the memory of the blocks.
+     */
+    final void clear() {
+        blocks = new long[MIN_BLOCKS][];
+        counts = new int[MIN_BLOCKS];
+        used = 0;
+        size = 0;
+    }
+
+}
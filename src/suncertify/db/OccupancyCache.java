@@ -0,0 +1,232 @@
+package suncertify.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import suncertify.gui.Occupancy;
+
+/**
+ * Bounded cache of the occupancies built from the records, by record number,
+ * so repeated lookups of popular rooms skip parsing the record fields.
+ * Entries are evicted in least recently used order, but a new entry is only
+ * admitted in place of the victim if it has been asked for more often
+ * (TinyLFU admission). The frequencies are kept approximately in a count-min
+ * sketch of 4 bit counters, which are halved periodically so old popularity
+ * fades.
+ *
+ * <p>
+ * The cache subscribes to the change stream of the database and forgets a
+ * record as soon as it is written, and everything on a reload. Occupancies
+ * are mutable, so copies go in and out of the cache.
+ *
+ * @author Emmanuel
+ */
+class OccupancyCache implements ChangeSubscriber {
+
+    /**
+     * The system property that can be used to override the default cache
+     * size.
+     */
+    public static final String SIZE_PROPERTY = "suncertify.db.occupancyCacheSize";
+
+    /**
+     * The default number of occupancies kept.
+     */
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * The number of rows of the frequency sketch.
+     */
+    private static final int DEPTH = 4;
+
+    /**
+     * The largest value of a frequency counter.
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * The most occupancies kept.
+     */
+    private final int capacity;
+
+    /**
+     * The cached occupancies, in least recently used order.
+     */
+    private final LinkedHashMap<Long, Occupancy> entries;
+
+    /**
+     * The frequency sketch, 16 counters of 4 bits per word.
+     */
+    private final long[] sketch;
+
+    /**
+     * The number of frequency increments after which the counters are halved.
+     */
+    private final int sampleSize;
+
+    /**
+     * The number of frequency increments since the counters were halved.
+     */
+    private int samples;
+
+    /**
+     * The number of invalidations so far, used to refuse entries built from
+     * records read before a write.
+     */
+    private long stamp;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity the most occupancies kept, 0 to disable the cache
+     */
+    OccupancyCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        // about 4 counters per entry in each row
+        int words = Integer.highestOneBit(Math.max(16, this.capacity) - 1) >> 1;
+        sketch = new long[Math.max(2, words)];
+        sampleSize = Math.max(1, 10 * this.capacity);
+    }
+
+    /**
+     * Finds the counter of a key in a row of the sketch.
+     *
+     * @param key the record number
+     * @param row the row
+     * @return the bit position of the counter, word index times 64 plus the
+     * shift in the word
+     */
+    private int counter(long key, int row) {
+        long h = (key + row) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 29;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 32;
+        int word = (int) h & (sketch.length - 1);
+        int nibble = (int) (h >>> 40) & 15;
+        return (word << 6) | (nibble << 2);
+    }
+
+    /**
+     * Counts a request for a record in the sketch, halving every counter
+     * once enough requests have been counted.
+     *
+     * @param key the record number
+     */
+    private void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int bit = counter(key, row);
+            int shift = bit & 63;
+            long word = sketch[bit >>> 6];
+            if (((word >>> shift) & 15) < MAX_COUNT) {
+                sketch[bit >>> 6] = word + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && ++samples >= sampleSize) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777L;
+            }
+            samples /= 2;
+        }
+    }
+
+    /**
+     * Estimates how often a record has been asked for.
+     *
+     * @param key the record number
+     * @return the smallest of the counters of the key
+     */
+    private int frequency(long key) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            int bit = counter(key, row);
+            min = Math.min(min, (int) (sketch[bit >>> 6] >>> (bit & 63)) & 15);
+        }
+        return min;
+    }
+
+    /**
+     * Gets a copy of the cached occupancy of a record, counting the request.
+     *
+     * @param recNo the record number
+     * @return the occupancy, or null if it is not cached
+     */
+    synchronized Occupancy get(long recNo) {
+        if (capacity == 0) {
+            return null;
+        }
+        increment(recNo);
+        Occupancy occupancy = entries.get(recNo);
+        return occupancy == null ? null : new Occupancy(occupancy);
+    }
+
+    /**
+     * @return the current invalidation stamp, to be taken before reading the
+     * records an occupancy is built from
+     */
+    synchronized long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Offers an occupancy to the cache. It is refused if a record was written
+     * since the stamp was taken, or if the cache is full and the occupancy is
+     * asked for less often than the least recently used one.
+     *
+     * @param occupancy the occupancy, which is copied
+     * @param readStamp the stamp taken before the record was read
+     */
+    synchronized void put(Occupancy occupancy, long readStamp) {
+        if (capacity == 0 || readStamp != stamp) {
+            return;
+        }
+        long recNo = occupancy.getAddress();
+        if (!entries.containsKey(recNo) && entries.size() >= capacity) {
+            Iterator<Map.Entry<Long, Occupancy>> eldest
+                    = entries.entrySet().iterator();
+            long victim = eldest.next().getKey();
+            if (frequency(recNo) <= frequency(victim)) {
+                return;
+            }
+            eldest.remove();
+        }
+        entries.put(recNo, new Occupancy(occupancy));
+    }
+
+    /**
+     * Forgets the occupancy of a record.
+     *
+     * @param recNo the record number
+     */
+    synchronized void invalidate(long recNo) {
+        stamp++;
+        entries.remove(recNo);
+    }
+
+    /**
+     * Forgets every occupancy.
+     */
+    synchronized void clear() {
+        stamp++;
+        entries.clear();
+    }
+
+    /**
+     * @return the number of occupancies cached
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void changed(ChangeEvent event) {
+        if (event.getType() == ChangeEvent.Type.RELOAD) {
+            clear();
+        } else {
+            invalidate(event.getRecNo());
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package suncertify.db;
+
+import suncertify.gui.Occupancy;
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * The answer to a search made since a version of the database: either the
+ * occupancies that changed since the version, or, if the changes are no
+ * longer known, the full search result. Either way it carries the new
+ * version, to be given to the next search.
+ *
+ * @author Emmanuel
+ */
+public class OccupancyDelta implements Serializable {
+
+    /**
+     * The version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the database the result is current to.
+     */
+    private final long version;
+
+    /**
+     * True if the result replaces the previous one instead of changing it.
+     */
+    private final boolean full;
+
+    /**
+     * The occupancies created or changed that match the search.
+     */
+    private final Collection<Occupancy> changed;
+
+    /**
+     * The addresses of the occupancies deleted or no longer matching.
+     */
+    private final long[] removed;
+
+    /**
+     * Creates a search result.
+     *
+     * @param version the version of the database the result is current to
+     * @param full true if the result replaces the previous one
+     * @param changed the occupancies created or changed that match the search,
+     * or all the matching occupancies for a full result
+     * @param removed the addresses of the occupancies deleted or no longer
+     * matching
+     */
+    public OccupancyDelta(long version, boolean full,
+            Collection<Occupancy> changed, long[] removed) {
+        this.version = version;
+        this.full = full;
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    /**
+     * @return the version to give to the next search
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the result replaces the previous one, false if it only
+     * holds the changes
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return the occupancies created or changed that match the search, or
+     * all the matching occupancies for a full result
+     */
+    public Collection<Occupancy> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the addresses of the occupancies deleted or no longer matching
+     */
+    public long[] getRemoved() {
+        return removed;
+    }
+
+}
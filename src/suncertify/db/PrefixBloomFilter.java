@@ -0,0 +1,198 @@
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter over the prefixes of the values of one record field. Every
+ * prefix of a value, up to a maximum prefix length, is added to the filter so
+ * that a starts-with search can be answered with "definitely not present"
+ * without reading the database file. Values are treated as padded with spaces
+ * to the field length, the same way they are stored in the file.
+ *
+ * <p>
+ * Values cannot be removed from a bloom filter, so updated and deleted values
+ * only make the filter less selective. The owner should rebuild the filter
+ * when <code>isSaturated()</code> returns true.
+ *
+ * @author Emmanuel
+ */
+public class PrefixBloomFilter {
+
+    /**
+     * The default number of bits in a new filter.
+     */
+    public static final int DEFAULT_BITS = 1 << 16;
+
+    /**
+     * The longest prefix added to the filter. Longer search values are
+     * checked using their first <code>MAX_PREFIX</code> characters.
+     */
+    public static final int MAX_PREFIX = 16;
+
+    /**
+     * The number of bit positions set for every prefix.
+     */
+    private static final int NUM_HASHES = 5;
+
+    /**
+     * The fraction of bits that can be set before the filter is considered
+     * too full to be selective.
+     */
+    private static final double MAX_FILL = 0.5;
+
+    /**
+     * The filter bits.
+     */
+    private final long[] bits;
+
+    /**
+     * The number of bits in the filter, always a power of two.
+     */
+    private final int numBits;
+
+    /**
+     * The length of the field the filter is built for.
+     */
+    private final int fieldLength;
+
+    /**
+     * The number of bits currently set.
+     */
+    private int setBits;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param numBits the size of the filter, rounded up to a power of two
+     * @param fieldLength the length (in bytes) of the filtered field
+     */
+    public PrefixBloomFilter(int numBits, int fieldLength) {
+        int size = Integer.highestOneBit(Math.max(numBits, Long.SIZE));
+        if (size < numBits) {
+            size <<= 1;
+        }
+        this.numBits = size;
+        this.bits = new long[size / Long.SIZE];
+        this.fieldLength = fieldLength;
+    }
+
+    /**
+     * Adds the prefixes of a field value to the filter.
+     *
+     * @param value the field value, padded or not
+     */
+    public void add(String value) {
+        int len = Math.min(MAX_PREFIX, fieldLength);
+        int h1 = 0;
+        int h2 = 0;
+        for (int i = 0; i < len; i++) {
+            char c = i < value.length() ? value.charAt(i) : ' ';
+            h1 = 31 * h1 + c;
+            h2 = 0x5bd1e995 * (h2 ^ c) + i;
+            for (int k = 0; k < NUM_HASHES; k++) {
+                int bit = (h1 + k * mix(h2)) & (numBits - 1);
+                long mask = 1L << bit;
+                if ((bits[bit >>> 6] & mask) == 0) {
+                    bits[bit >>> 6] |= mask;
+                    setBits++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if any value added to the filter might start with the prefix.
+     *
+     * @param prefix the search value
+     * @return false if no value added to the filter starts with the prefix,
+     * true if one might
+     */
+    public boolean mightStartWith(String prefix) {
+        if (prefix.length() > fieldLength) {
+            // longer than the field, nothing stored can start with it
+            return false;
+        }
+        int len = Math.min(MAX_PREFIX, prefix.length());
+        int h1 = 0;
+        int h2 = 0;
+        for (int i = 0; i < len; i++) {
+            char c = prefix.charAt(i);
+            h1 = 31 * h1 + c;
+            h2 = 0x5bd1e995 * (h2 ^ c) + i;
+        }
+        if (len == 0) {
+            return true;
+        }
+        for (int k = 0; k < NUM_HASHES; k++) {
+            int bit = (h1 + k * mix(h2)) & (numBits - 1);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the filter has too many bits set to be selective.
+     *
+     * @return true if the filter should be rebuilt with more bits
+     */
+    public boolean isSaturated() {
+        return setBits > numBits * MAX_FILL;
+    }
+
+    /**
+     * @return the number of bits in the filter
+     */
+    public int getNumBits() {
+        return numBits;
+    }
+
+    /**
+     * Writes the filter to a checkpoint.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numBits);
+        out.writeInt(fieldLength);
+        out.writeInt(setBits);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by <code>writeTo</code>.
+     *
+     * @param in the input to read from
+     * @return the filter
+     * @throws IOException if the input cannot be read
+     */
+    public static PrefixBloomFilter readFrom(DataInput in) throws IOException {
+        PrefixBloomFilter filter
+                = new PrefixBloomFilter(in.readInt(), in.readInt());
+        filter.setBits = in.readInt();
+        for (int i = 0; i < filter.bits.length; i++) {
+            filter.bits[i] = in.readLong();
+        }
+        return filter;
+    }
+
+    /**
+     * Spreads the bits of the second hash so it makes a good step value.
+     *
+     * @param h the hash to mix
+     * @return an odd mixed hash
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h | 1;
+    }
+
+}
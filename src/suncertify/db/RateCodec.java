@@ -0,0 +1,132 @@
+package suncertify.db;
+
+/**
+ * Converts the rates stored in the database, such as "$150.00", to amounts in
+ * minor units (cents) so they can be compared, ordered and aggregated. A rate
+ * is a currency symbol, before or after the amount, and an amount with an
+ * optional decimal point and comma grouping. Amounts are assumed to have two
+ * decimal places; a third is rounded.
+ *
+ * @author Emmanuel
+ */
+public final class RateCodec {
+
+    /**
+     * The value returned for a rate that is not an amount.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * The number of minor units in a major unit.
+     */
+    private static final int MINOR_UNITS = 100;
+
+    /**
+     * This class should not be instantiated. Only its utility methods should be
+     * used.
+     */
+    private RateCodec() {
+    }
+
+    /**
+     * Parses a rate into minor units.
+     *
+     * @param rate the rate as stored in the database, padded or not
+     * @return the amount in minor units, or <code>INVALID</code> if the rate
+     * has no amount, or more than one, or the amount is too large
+     */
+    public static int parse(String rate) {
+        if (rate == null) {
+            return INVALID;
+        }
+        int end = rate.length();
+        int i = 0;
+        // skip the leading currency symbol and padding
+        while (i < end && !isAmountChar(rate.charAt(i))) {
+            i++;
+        }
+        long major = 0;
+        long minor = 0;
+        int decimals = -1;
+        boolean digits = false;
+        for (; i < end; i++) {
+            char c = rate.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+                if (decimals < 0) {
+                    major = major * 10 + (c - '0');
+                    if (major > Integer.MAX_VALUE / MINOR_UNITS) {
+                        return INVALID;
+                    }
+                } else if (decimals < 2) {
+                    minor = minor * 10 + (c - '0');
+                    decimals++;
+                } else if (decimals == 2) {
+                    // round on the third decimal, ignore the rest
+                    minor += c >= '5' ? 1 : 0;
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c != ',' || decimals >= 0) {
+                // the trailing currency symbol and padding
+                break;
+            }
+        }
+        for (; i < end; i++) {
+            if (isAmountChar(rate.charAt(i))) {
+                // a second amount
+                return INVALID;
+            }
+        }
+        if (!digits) {
+            return INVALID;
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            minor *= 10;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, major * MINOR_UNITS + minor);
+    }
+
+    /**
+     * Get the currency symbol of a rate.
+     *
+     * @param rate the rate as stored in the database, padded or not
+     * @return the characters around the amount, trimmed, or an empty string if
+     * there are none
+     */
+    public static String currencyOf(String rate) {
+        StringBuilder currency = new StringBuilder();
+        for (int i = 0; rate != null && i < rate.length(); i++) {
+            char c = rate.charAt(i);
+            if (!isAmountChar(c) && c != ',') {
+                currency.append(c);
+            }
+        }
+        return currency.toString().trim();
+    }
+
+    /**
+     * Formats an amount in minor units as a rate.
+     *
+     * @param amount the amount in minor units
+     * @param currency the currency symbol to put before the amount
+     * @return the rate, such as "$150.00"
+     */
+    public static String format(int amount, String currency) {
+        int minor = amount % MINOR_UNITS;
+        return currency + (amount / MINOR_UNITS) + (minor < 10 ? ".0" : ".")
+                + minor;
+    }
+
+    /**
+     * Checks if a character can start an amount.
+     *
+     * @param c the character
+     * @return true for a digit or the decimal point
+     */
+    private static boolean isAmountChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+
+}
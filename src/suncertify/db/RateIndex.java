@@ -0,0 +1,260 @@
+package suncertify.db;
+
+import suncertify.gui.Occupancy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the rates of the records of a database, parsed once into minor
+ * units by <code>RateCodec</code> and kept current by the record changes.
+ * The parsed rate of every record is cached, and the records are kept in
+ * rate order, so rate ranges, the cheapest and dearest rates and ordering by
+ * rate need no parsing and no pass over the file. The existing records are
+ * added in the background, like the <code>AvailabilityView</code>.
+ *
+ * @author Emmanuel
+ */
+class RateIndex implements DataListener {
+
+    /**
+     * The name of the field holding the rate.
+     */
+    public static final String RATE_FIELD = "rate";
+
+    /**
+     * The database the index is maintained for.
+     */
+    private final Data database;
+
+    /**
+     * The position of the rate field in each record.
+     */
+    private final int rateIdx;
+
+    /**
+     * The parsed rate of each record, by record number. Guarded by this
+     * index.
+     */
+    private LongLongMap rates;
+
+    /**
+     * The records with a valid rate, as the rate in the high half and the
+     * record ordinal in the low half, so they are ordered by rate. Guarded by
+     * this index.
+     */
+    private LongSortedSet byRate;
+
+    /**
+     * Creates the index and registers it with the database, which fills it
+     * with the records currently in the file on a background thread.
+     *
+     * @param database the database to index the rates of
+     * @throws IllegalArgumentException if the database has no rate field
+     */
+    RateIndex(Data database) {
+        Map<?, ?> fields = database.getFields();
+        rateIdx = new ArrayList<Object>(fields.keySet()).indexOf(RATE_FIELD);
+        if (rateIdx < 0) {
+            throw new IllegalArgumentException("No field named " + RATE_FIELD);
+        }
+        rates = new LongLongMap(RateCodec.INVALID);
+        byRate = new LongSortedSet();
+        this.database = database;
+        database.addDataListener(this, true);
+    }
+
+    /**
+     * Builds the ordering key of a record.
+     *
+     * @param rate the parsed rate
+     * @param recNo the record number
+     * @return the key
+     */
+    private long key(int rate, long recNo) {
+        return (long) rate << Integer.SIZE | database.ordinal(recNo);
+    }
+
+    /**
+     * Adds a record to the index.
+     *
+     * @param recNo the record number
+     * @param record the record fields
+     */
+    private void add(long recNo, String[] record) {
+        add(rates, byRate, recNo, record);
+    }
+
+    /**
+     * Adds a record to a set of index structures.
+     *
+     * @param rates the parsed rates by record number
+     * @param byRate the records ordered by rate
+     * @param recNo the record number
+     * @param record the record fields
+     */
+    private void add(LongLongMap rates, LongSortedSet byRate, long recNo,
+            String[] record) {
+        int rate = RateCodec.parse(record[rateIdx]);
+        rates.put(recNo, rate);
+        if (rate != RateCodec.INVALID) {
+            byRate.add(key(rate, recNo));
+        }
+    }
+
+    /**
+     * Removes a record from the index.
+     *
+     * @param recNo the record number
+     */
+    private void remove(long recNo) {
+        int rate = (int) rates.remove(recNo);
+        if (rate != RateCodec.INVALID) {
+            byRate.remove(key(rate, recNo));
+        }
+    }
+
+    @Override
+    public synchronized void recordCreated(long recNo, String[] record) {
+        remove(recNo);
+        add(recNo, record);
+    }
+
+    @Override
+    public synchronized void recordUpdated(long recNo, String[] before,
+            String[] after) {
+        if (rates.containsKey(recNo)
+                && rates.get(recNo) == RateCodec.parse(after[rateIdx])) {
+            // a booking or release leaves the rate and its key as they are
+            return;
+        }
+        remove(recNo);
+        add(recNo, after);
+    }
+
+    @Override
+    public synchronized void recordDeleted(long recNo, String[] before) {
+        remove(recNo);
+    }
+
+    @Override
+    public void dataReloaded() throws IOException {
+        // built aside and swapped in whole, so lookups meanwhile see the old
+        // index, not a partial one; no record changes under the write lock
+        final LongLongMap newRates = new LongLongMap(RateCodec.INVALID);
+        final LongSortedSet newByRate = new LongSortedSet();
+        database.scan(new Data.RecordVisitor() {
+            @Override
+            public void visit(long recNo, String[] record) {
+                add(newRates, newByRate, recNo, record);
+            }
+        });
+        synchronized (this) {
+            rates = newRates;
+            byRate = newByRate;
+        }
+    }
+
+    /**
+     * @return true if every record is in the index
+     */
+    boolean isReady() {
+        return !database.isReplaying(this);
+    }
+
+    /**
+     * Get the rate of a record, from the index if it is there.
+     *
+     * @param recNo the record number
+     * @param record the record fields, parsed if the record is not indexed
+     * @return the rate in minor units, or <code>RateCodec.INVALID</code>
+     */
+    synchronized int rateOf(long recNo, String[] record) {
+        if (rates.containsKey(recNo)) {
+            return (int) rates.get(recNo);
+        }
+        return RateCodec.parse(record[rateIdx]);
+    }
+
+    /**
+     * Finds the records with a rate in a range, in rate order. Only valid when
+     * the index is ready.
+     *
+     * @param min the lowest rate in minor units
+     * @param max the highest rate in minor units
+     * @return the record numbers
+     */
+    synchronized long[] range(int min, int max) {
+        if (min > max || max < 0) {
+            return new long[0];
+        }
+        min = Math.max(min, 0);
+        long[] found = byRate.subSet((long) min << Integer.SIZE,
+                ((long) max + 1) << Integer.SIZE);
+        for (int i = 0; i < found.length; i++) {
+            found[i] = database.toRecNo((int) found[i]);
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of records with a valid rate
+     */
+    synchronized int size() {
+        return byRate.size();
+    }
+
+    /**
+     * Get the lowest and highest rates of all the records. Only valid when
+     * the index is ready.
+     *
+     * @return the rates in minor units, or null if no record has a rate
+     */
+    synchronized int[] getRange() {
+        if (byRate.isEmpty()) {
+            return null;
+        }
+        return new int[]{(int) (byRate.first() >>> Integer.SIZE),
+            (int) (byRate.last() >>> Integer.SIZE)};
+    }
+
+    /**
+     * Widens a rate range to include a rate.
+     *
+     * @param range the lowest and highest rates so far, or null
+     * @param rate the rate in minor units
+     * @return the widened range
+     */
+    static int[] widen(int[] range, int rate) {
+        if (rate == RateCodec.INVALID) {
+            return range;
+        }
+        if (range == null) {
+            return new int[]{rate, rate};
+        }
+        range[0] = Math.min(range[0], rate);
+        range[1] = Math.max(range[1], rate);
+        return range;
+    }
+
+    /**
+     * Sorts occupancies by rate, then by address.
+     *
+     * @param occupancies the occupancies to sort
+     */
+    static void sort(List<Occupancy> occupancies) {
+        Collections.sort(occupancies, new Comparator<Occupancy>() {
+            @Override
+            public int compare(Occupancy o1, Occupancy o2) {
+                int c = Integer.compare(RateCodec.parse(o1.getRate()),
+                        RateCodec.parse(o2.getRate()));
+                return c != 0 ? c
+                        : Long.compare(o1.getAddress(), o2.getAddress());
+            }
+        });
+    }
+
+}
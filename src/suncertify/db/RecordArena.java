@@ -0,0 +1,247 @@
+package suncertify.db;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Off-heap store of fixed-length slots, indexed by slot number. Used to cache
+ * database records in their raw file layout outside of the Java heap, so a
+ * large cached working set adds nothing to garbage collection work. The
+ * memory is allocated as direct buffers, in chunks, the first time a slot in
+ * the chunk is written.
+ *
+ * <p>
+ * Slots past the capacity are never stored. Reads and writes of different
+ * slots may run concurrently; the caller is responsible for not writing a
+ * slot while it is being read.
+ *
+ * @author Emmanuel
+ */
+public class RecordArena {
+
+    /**
+     * The size (in bytes) of each chunk of off-heap memory.
+     */
+    private static final int CHUNK_SIZE = 1 << 22;
+
+    /**
+     * The length (in bytes) of each slot.
+     */
+    private final int slotLength;
+
+    /**
+     * The number of slots in each chunk.
+     */
+    private final int chunkSlots;
+
+    /**
+     * The largest number of slots that can be stored.
+     */
+    private final int capacity;
+
+    /**
+     * The chunks of off-heap memory, null until first written.
+     */
+    private final ByteBuffer[] chunks;
+
+    /**
+     * The slots that hold a value.
+     */
+    private final BitSet present;
+
+    /**
+     * Creates an empty arena. No memory is allocated until slots are written.
+     *
+     * @param slotLength the length (in bytes) of each slot
+     * @param maxBytes the most off-heap memory (in bytes) the arena may use
+     */
+    public RecordArena(int slotLength, long maxBytes) {
+        this.slotLength = slotLength;
+        this.chunkSlots = Math.max(1, CHUNK_SIZE / slotLength);
+        this.capacity = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(0, maxBytes) / slotLength);
+        this.chunks = new ByteBuffer[(capacity + chunkSlots - 1) / chunkSlots];
+        this.present = new BitSet();
+    }
+
+    /**
+     * Get a view of the memory of a slot, positioned at its start.
+     *
+     * @param slot the slot number
+     * @param allocate true to allocate the chunk if it does not exist
+     * @return the view or null if the chunk does not exist
+     */
+    private ByteBuffer view(int slot, boolean allocate) {
+        int idx = slot / chunkSlots;
+        ByteBuffer chunk = chunks[idx];
+        if (chunk == null) {
+            if (!allocate) {
+                return null;
+            }
+            chunk = ByteBuffer.allocateDirect(chunkSlots * slotLength);
+            chunks[idx] = chunk;
+        }
+        ByteBuffer view = chunk.duplicate();
+        view.position((slot % chunkSlots) * slotLength);
+        return view;
+    }
+
+    /**
+     * Checks if a slot holds a value.
+     *
+     * @param slot the slot number
+     * @return true if the slot has been written and not removed
+     */
+    public synchronized boolean contains(int slot) {
+        return slot >= 0 && present.get(slot);
+    }
+
+    /**
+     * Checks if a run of slots all hold values.
+     *
+     * @param slot the first slot number
+     * @param count the number of slots
+     * @return true if every slot in the run holds a value
+     */
+    public synchronized boolean containsAll(int slot, int count) {
+        return slot >= 0 && present.nextClearBit(slot) >= slot + count;
+    }
+
+    /**
+     * Copies the value of a slot.
+     *
+     * @param slot the slot number
+     * @param dst the array to copy the slot into, at least a slot long
+     * @return true if the slot held a value
+     */
+    public boolean get(int slot, byte[] dst) {
+        ByteBuffer view = contains(slot) ? view(slot, false) : null;
+        if (view == null) {
+            return false;
+        }
+        view.get(dst, 0, slotLength);
+        return true;
+    }
+
+    /**
+     * Copies part of the value of a slot, which must hold a value.
+     *
+     * @param slot the slot number
+     * @param position the position in the slot to start reading at
+     * @param dst the array to copy the bytes into
+     * @param offset the position in the array to copy the bytes to
+     * @param length the number of bytes to copy
+     */
+    public void get(int slot, int position, byte[] dst, int offset,
+            int length) {
+        ByteBuffer view = view(slot, true);
+        view.position(view.position() + position);
+        view.get(dst, offset, length);
+    }
+
+    /**
+     * Copies part of the value of a slot into a buffer, which must have room
+     * for it. The slot must hold a value.
+     *
+     * @param slot the slot number
+     * @param position the position in the slot to start reading at
+     * @param length the number of bytes to copy
+     * @param dst the buffer to copy the bytes into
+     */
+    public void get(int slot, int position, int length, ByteBuffer dst) {
+        ByteBuffer view = view(slot, true);
+        view.position(view.position() + position);
+        view.limit(view.position() + length);
+        dst.put(view);
+    }
+
+    /**
+     * Copies the values of a run of slots into a buffer, which must have room
+     * for them. The slots should be checked with <code>containsAll</code>.
+     *
+     * @param slot the first slot number
+     * @param count the number of slots
+     * @param dst the buffer to copy the slots into
+     */
+    public void get(int slot, int count, ByteBuffer dst) {
+        while (count > 0) {
+            int run = Math.min(count, chunkSlots - slot % chunkSlots);
+            ByteBuffer view = view(slot, true);
+            view.limit(view.position() + run * slotLength);
+            dst.put(view);
+            slot += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Stores the value of a slot. Slots past the capacity are ignored.
+     *
+     * @param slot the slot number
+     * @param src the slot value, at least a slot long
+     */
+    public void put(int slot, byte[] src) {
+        put(slot, src, 0);
+    }
+
+    /**
+     * Stores the value of a slot from part of an array. Slots past the
+     * capacity are ignored.
+     *
+     * @param slot the slot number
+     * @param src the array holding the slot value
+     * @param offset the position of the slot value in the array
+     */
+    public void put(int slot, byte[] src, int offset) {
+        if (slot >= 0 && slot < capacity) {
+            synchronized (this) {
+                view(slot, true).put(src, offset, slotLength);
+                present.set(slot);
+            }
+        }
+    }
+
+    /**
+     * Overwrites part of a slot, if it holds a value.
+     *
+     * @param slot the slot number
+     * @param position the position in the slot to start writing at
+     * @param src the bytes to write
+     * @param offset the position of the bytes in the array
+     * @param length the number of bytes to write
+     */
+    public synchronized void update(int slot, int position, byte[] src,
+            int offset, int length) {
+        if (contains(slot)) {
+            ByteBuffer view = view(slot, false);
+            view.position(view.position() + position);
+            view.put(src, offset, length);
+        }
+    }
+
+    /**
+     * Removes the value of a slot.
+     *
+     * @param slot the slot number
+     */
+    public synchronized void remove(int slot) {
+        if (slot >= 0) {
+            present.clear(slot);
+        }
+    }
+
+    /**
+     * Removes every value. The memory is kept for reuse.
+     */
+    public synchronized void clear() {
+        present.clear();
+    }
+
+    /**
+     * @return the largest number of slots that can be stored
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+}
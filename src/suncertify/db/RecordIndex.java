@@ -0,0 +1,190 @@
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Index of the record slots of a database file, by record ordinal. Keeps the
+ * slots of deleted records, so a free slot can be found without a scan, and a
+ * 64 bit hash of the contents of every live record, so a duplicate can be
+ * found by reading a single record.
+ *
+ * <p>
+ * Two different records may share a hash. Since only one ordinal is kept per
+ * hash, the index then records that it has collisions and duplicate checks
+ * must fall back to a scan.
+ *
+ * @author Emmanuel
+ */
+class RecordIndex {
+
+    /**
+     * The ordinals of the slots of deleted records.
+     */
+    private final BitSet free;
+
+    /**
+     * The ordinal of the live record with each hash.
+     */
+    private final LongLongMap keys;
+
+    /**
+     * True if two live records have shared a hash.
+     */
+    private boolean collisions;
+
+    /**
+     * Creates an empty index.
+     */
+    RecordIndex() {
+        free = new BitSet();
+        keys = new LongLongMap(-1);
+    }
+
+    /**
+     * Computes the hash of the contents of a record, using 64 bit FNV-1a over
+     * the characters of the fields. Records should be hashed as they are read
+     * from the file, with their fields padded to the field lengths.
+     *
+     * @param record the record fields
+     * @return the hash of the record
+     */
+    static long hash(String[] record) {
+        long hash = 0xcbf29ce484222325L;
+        for (String field : record) {
+            for (int i = 0; i < field.length(); i++) {
+                hash ^= field.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a live record to the index.
+     *
+     * @param ordinal the record ordinal
+     * @param hash the hash of the record contents
+     */
+    void add(int ordinal, long hash) {
+        free.clear(ordinal);
+        long previous = keys.put(hash, ordinal);
+        if (previous >= 0 && previous != ordinal) {
+            collisions = true;
+        }
+    }
+
+    /**
+     * Removes the hash of a record that is being overwritten or deleted.
+     *
+     * @param ordinal the record ordinal
+     * @param hash the hash of the old record contents
+     */
+    void remove(int ordinal, long hash) {
+        if (keys.get(hash) == ordinal) {
+            keys.remove(hash);
+        }
+    }
+
+    /**
+     * Marks the slot of a deleted record as free.
+     *
+     * @param ordinal the record ordinal
+     */
+    void markFree(int ordinal) {
+        free.set(ordinal);
+    }
+
+    /**
+     * Forgets the free slots past the end of a truncated file.
+     *
+     * @param count the number of record slots left in the file
+     */
+    void truncate(int count) {
+        free.clear(count, Math.max(count, free.length()));
+    }
+
+    /**
+     * Get the first free slot, leaving it marked free.
+     *
+     * @return the ordinal of the first free slot, or -1 if there is none
+     */
+    int firstFree() {
+        return free.nextSetBit(0);
+    }
+
+    /**
+     * Get the next free slot, leaving it marked free.
+     *
+     * @param from the ordinal to start looking from
+     * @return the ordinal of the first free slot at or after from, or -1 if
+     * there is none
+     */
+    int nextFree(int from) {
+        return free.nextSetBit(from);
+    }
+
+    /**
+     * Finds the live record that has a hash.
+     *
+     * @param hash the hash of the record contents
+     * @return the ordinal of the record, or -1 if no record has the hash
+     */
+    int find(long hash) {
+        return (int) keys.get(hash);
+    }
+
+    /**
+     * @return true if hashes may be shared so <code>find</code> cannot be
+     * relied on
+     */
+    boolean hasCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Writes the index to a checkpoint.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    void writeTo(DataOutput out) throws IOException {
+        long[] words = free.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+        out.writeBoolean(collisions);
+        long[] entries = keys.toArray();
+        out.writeInt(entries.length / 2);
+        for (int i = 0; i < entries.length; i += 2) {
+            out.writeLong(entries[i]);
+            out.writeInt((int) entries[i + 1]);
+        }
+    }
+
+    /**
+     * Reads an index written by <code>writeTo</code>.
+     *
+     * @param in the input to read from
+     * @return the index
+     * @throws IOException if the input cannot be read
+     */
+    static RecordIndex readFrom(DataInput in) throws IOException {
+        RecordIndex index = new RecordIndex();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        index.free.or(BitSet.valueOf(words));
+        index.collisions = in.readBoolean();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            index.keys.put(in.readLong(), in.readInt());
+        }
+        return index;
+    }
+
+}
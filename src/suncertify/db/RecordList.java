@@ -0,0 +1,103 @@
+package suncertify.db;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of records paired with their record ordinals, kept in a
+ * primitive array and an array of records. Used to collect search results
+ * without boxing a record number for every match.
+ *
+ * <p>
+ * The list is not synchronized.
+ *
+ * @author Emmanuel
+ */
+class RecordList {
+
+    /**
+     * The initial number of entries the list has room for.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The record ordinals, by position in the list.
+     */
+    private int[] ordinals;
+
+    /**
+     * The record fields, by position in the list.
+     */
+    private String[][] records;
+
+    /**
+     * The number of entries in the list.
+     */
+    private int size;
+
+    /**
+     * Creates an empty list.
+     */
+    RecordList() {
+        ordinals = new int[INITIAL_CAPACITY];
+        records = new String[INITIAL_CAPACITY][];
+    }
+
+    /**
+     * Adds a record to the end of the list.
+     *
+     * @param ordinal the record ordinal
+     * @param record the record fields
+     */
+    void add(int ordinal, String[] record) {
+        if (size == ordinals.length) {
+            int capacity = size + (size >>> 1);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+            records = Arrays.copyOf(records, capacity);
+        }
+        ordinals[size] = ordinal;
+        records[size] = record;
+        size++;
+    }
+
+    /**
+     * @return the number of entries in the list
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the ordinal of an entry.
+     *
+     * @param i the position of the entry in the list
+     * @return the record ordinal
+     */
+    int getOrdinal(int i) {
+        return ordinals[i];
+    }
+
+    /**
+     * Get the fields of an entry.
+     *
+     * @param i the position of the entry in the list
+     * @return the record fields
+     */
+    String[] getRecord(int i) {
+        return records[i];
+    }
+
+    /**
+     * Removes every entry, releasing the records and the memory of a list
+     * that has grown large.
+     */
+    void clear() {
+        if (ordinals.length > INITIAL_CAPACITY) {
+            ordinals = new int[INITIAL_CAPACITY];
+            records = new String[INITIAL_CAPACITY][];
+        } else {
+            Arrays.fill(records, 0, size, null);
+        }
+        size = 0;
+    }
+
+}
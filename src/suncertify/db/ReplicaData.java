@@ -0,0 +1,520 @@
+package suncertify.db;
+
+import suncertify.gui.Occupancy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only copy of a primary database, kept current by the changes sent by
+ * its <code>ReplicationServer</code>. Searches and lookups are answered from
+ * the copy held in memory, so read traffic can be spread over several
+ * processes or machines. Writes are refused; they must go to the primary.
+ *
+ * <p>
+ * The copy is filled from a snapshot of the primary when the replica
+ * connects, and the snapshot is swapped in only once it is complete, so
+ * requests are served from the previous copy while a new one is received. The
+ * connection is retried until the replica is closed. Records locked on the
+ * primary are not known to the replica, so unlike the primary it returns them
+ * from searches.
+ *
+ * @author Emmanuel
+ */
+public class ReplicaData implements URLyBirdDBAccess {
+
+    /**
+     * How long (in milliseconds) to wait before connecting again to the
+     * primary.
+     */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /**
+     * The position of the hotel name in the occupancy record.
+     */
+    private static final int NAME_IDX = 0;
+
+    /**
+     * The position of the location in the occupancy record.
+     */
+    private static final int LOCATION_IDX = 1;
+
+    /**
+     * The position of the date in the occupancy record.
+     */
+    private static final int DATE_IDX = 5;
+
+    /**
+     * The position of the owner in the occupancy record.
+     */
+    private static final int OWNER_IDX = 6;
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The host of the primary's replication server.
+     */
+    private final String host;
+
+    /**
+     * The port of the primary's replication server.
+     */
+    private final int port;
+
+    /**
+     * Guards the copy and the replication state.
+     */
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * The undeleted records of the primary, by record number, with their
+     * fields padded to the field lengths.
+     */
+    private Map<Long, String[]> records;
+
+    /**
+     * The latest changes applied, for searches made since a version.
+     */
+    private final ChangeHistory history;
+
+    /**
+     * The length of each field, used to pad the field values.
+     */
+    private int[] fieldLengths;
+
+    /**
+     * The sequence number of the last change applied.
+     */
+    private long appliedSequence;
+
+    /**
+     * The last sequence number the primary is known to have published.
+     */
+    private long primarySequence;
+
+    /**
+     * The primary time of the last change or heartbeat applied, or 0 before
+     * the first snapshot is complete.
+     */
+    private long primaryTime;
+
+    /**
+     * The current connection to the primary, or null.
+     */
+    private volatile Socket socket;
+
+    /**
+     * True once the replica is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Starts replicating a primary database. Requests are answered with no
+     * records until the first snapshot has been received.
+     *
+     * @param host the host of the primary's replication server
+     * @param port the port of the primary's replication server
+     */
+    public ReplicaData(String host, int port) {
+        this.host = host;
+        this.port = port;
+        lock = new ReentrantReadWriteLock();
+        records = new TreeMap<>();
+        history = new ChangeHistory(Integer.getInteger(
+                ChangeHistory.SIZE_PROPERTY, ChangeHistory.DEFAULT_SIZE));
+        RequestExecutors.newDaemonThreadFactory("Replica").newThread(
+                new Runnable() {
+            @Override
+            public void run() {
+                replicate();
+            }
+        }).start();
+    }
+
+    /**
+     * Connects to the primary and applies its changes, connecting again when
+     * the connection is lost, until the replica is closed.
+     */
+    private void replicate() {
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                log.log(Level.INFO, "Replicating {0}:{1}",
+                        new Object[]{host, port});
+                receive(new DataInputStream(new BufferedInputStream(
+                        connection.getInputStream())));
+            } catch (IOException ex) {
+                if (!closed) {
+                    log.log(Level.WARNING, "Lost connection to primary: {0}",
+                            ex);
+                }
+            } finally {
+                socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException ex) {
+                log.log(Level.WARNING, "Replication interrupted", ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the messages sent by the primary until the connection ends.
+     *
+     * @param in the input from the primary
+     * @throws IOException if the connection fails
+     */
+    private void receive(DataInputStream in) throws IOException {
+        Map<Long, String[]> snapshot = null;
+        long snapshotSequence = 0;
+        int[] snapshotLengths = null;
+        while (true) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case ReplicationServer.SNAPSHOT:
+                    snapshotSequence = in.readLong();
+                    snapshotLengths = new int[in.readShort()];
+                    for (int i = 0; i < snapshotLengths.length; i++) {
+                        snapshotLengths[i] = in.readInt();
+                    }
+                    snapshot = new TreeMap<>();
+                    break;
+                case ReplicationServer.RECORD:
+                    ChangeEvent record = ChangeEvent.readFrom(in);
+                    snapshot.put(record.getRecNo(),
+                            pad(record.getAfter(), snapshotLengths));
+                    break;
+                case ReplicationServer.SNAPSHOT_END:
+                    lock.writeLock().lock();
+                    try {
+                        records = snapshot;
+                        history.reset();
+                        fieldLengths = snapshotLengths;
+                        appliedSequence = snapshotSequence;
+                        primarySequence = Math.max(primarySequence,
+                                snapshotSequence);
+                        primaryTime = System.currentTimeMillis();
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    log.log(Level.INFO, "Loaded snapshot of {0} records at {1}",
+                            new Object[]{snapshot.size(), snapshotSequence});
+                    snapshot = null;
+                    break;
+                case ReplicationServer.EVENT:
+                    apply(ChangeEvent.readFrom(in));
+                    break;
+                case ReplicationServer.HEARTBEAT:
+                    long sequence = in.readLong();
+                    long time = in.readLong();
+                    lock.writeLock().lock();
+                    try {
+                        primarySequence = Math.max(primarySequence, sequence);
+                        primaryTime = time;
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown replication message: "
+                            + tag);
+            }
+        }
+    }
+
+    /**
+     * Applies a change event to the copy.
+     *
+     * @param event the change made on the primary
+     */
+    private void apply(ChangeEvent event) {
+        lock.writeLock().lock();
+        try {
+            switch (event.getType()) {
+                case CREATE:
+                case UPDATE:
+                    String[] record = pad(event.getAfter(), fieldLengths);
+                    records.put(event.getRecNo(), record);
+                    history.record(event.getRecNo(), record);
+                    break;
+                case DELETE:
+                    records.remove(event.getRecNo());
+                    history.record(event.getRecNo(), null);
+                    break;
+                default:
+                    // reloads are sent as snapshots
+                    break;
+            }
+            appliedSequence = Math.max(appliedSequence, event.getSequence());
+            primarySequence = Math.max(primarySequence, appliedSequence);
+            primaryTime = event.getTimestamp();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pads the field values of a record to the field lengths, the way they
+     * are read from the primary file.
+     *
+     * @param record the record fields without their padding
+     * @param lengths the field lengths
+     * @return the padded record fields
+     */
+    private static String[] pad(String[] record, int[] lengths) {
+        for (int i = 0; i < record.length && i < lengths.length; i++) {
+            StringBuilder field = new StringBuilder(lengths[i]);
+            field.append(record[i]);
+            while (field.length() < lengths[i]) {
+                field.append(' ');
+            }
+            record[i] = field.toString();
+        }
+        return record;
+    }
+
+    @Override
+    public Occupancy getOccupancy(long address) throws IOException {
+        lock.readLock().lock();
+        try {
+            String[] record = records.get(address);
+            if (record == null) {
+                throw new IOException("Could not get occupancy");
+            }
+            return new Occupancy(address, record);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setOccupancy(Occupancy occupancy, boolean append)
+            throws IOException {
+        throw new IOException("Replica is read-only");
+    }
+
+    @Override
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws IOException {
+        throw new IOException("Replica is read-only");
+    }
+
+    @Override
+    public void bookOccupancies(Collection<Long> addresses, String customerId)
+            throws IOException {
+        throw new IOException("Replica is read-only");
+    }
+
+    @Override
+    public boolean bookIfAvailable(long address, String customerId)
+            throws IOException {
+        throw new IOException("Replica is read-only");
+    }
+
+    @Override
+    public boolean releaseIfOwner(long address, String customerId)
+            throws IOException {
+        throw new IOException("Replica is read-only");
+    }
+
+    @Override
+    public Collection<Occupancy> getOccupancies() {
+        return searchOccupancies(); // returns nothing
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupancies(String... params) {
+        if (params == null) {
+            params = new String[]{null};
+        }
+        // the same criteria as Data.findByCriteria
+        String[] criteria = Data.swapNulls(params.clone(), "");
+        List<Occupancy> found = new LinkedList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Long, String[]> record : records.entrySet()) {
+                if (Data.matchRecord(criteria, record.getValue()) > 0) {
+                    found.add(new Occupancy(record.getKey(),
+                            record.getValue()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    @Override
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) {
+        if (params == null) {
+            params = new String[]{null};
+        }
+        lock.readLock().lock();
+        try {
+            OccupancyDelta delta = history.since(version, params);
+            if (delta == null) {
+                delta = new OccupancyDelta(history.getVersion(), true,
+                        searchOccupancies(params), new long[0]);
+            }
+            return delta;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupanciesByRate(int minRate,
+            int maxRate, String... params) {
+        List<Occupancy> found = new ArrayList<>();
+        for (Occupancy occupancy : searchOccupancies(
+                params == null ? new String[]{null} : params)) {
+            int rate = RateCodec.parse(occupancy.getRate());
+            if (rate != RateCodec.INVALID && rate >= minRate
+                    && rate <= maxRate) {
+                found.add(occupancy);
+            }
+        }
+        RateIndex.sort(found);
+        return found;
+    }
+
+    @Override
+    public int[] getRateRange(String... params) {
+        int[] range = null;
+        for (Occupancy occupancy : searchOccupancies(
+                params == null ? new String[]{null} : params)) {
+            range = RateIndex.widen(range,
+                    RateCodec.parse(occupancy.getRate()));
+        }
+        return range;
+    }
+
+    @Override
+    public int countAvailableByLocation(String location, String date) {
+        return countAvailable(LOCATION_IDX, location, date);
+    }
+
+    @Override
+    public int countAvailableByName(String name, String date) {
+        return countAvailable(NAME_IDX, name, date);
+    }
+
+    /**
+     * Counts the records without an owner with a field value on a date.
+     *
+     * @param field the position of the field to check
+     * @param value the field value
+     * @param date the date as stored in the database (yyyy/mm/dd)
+     * @return the number of free rooms
+     */
+    private int countAvailable(int field, String value, String date) {
+        String trimmedValue = value.trim();
+        String trimmedDate = date.trim();
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            for (String[] record : records.values()) {
+                if (record[OWNER_IDX].trim().isEmpty()
+                        && trimmedValue.equals(record[field].trim())
+                        && trimmedDate.equals(record[DATE_IDX].trim())) {
+                    count++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * @return true once a snapshot of the primary has been loaded
+     */
+    public boolean isSynchronized() {
+        lock.readLock().lock();
+        try {
+            return primaryTime != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get how far the copy is behind the primary in time: the time since the
+     * primary made the last change or sent the last heartbeat the replica has
+     * applied. A replica that is up to date reports less than the heartbeat
+     * interval. The clocks of the two machines are assumed to agree.
+     *
+     * @return the lag in milliseconds, or -1 before the first snapshot is
+     * loaded
+     */
+    public long getLagMillis() {
+        lock.readLock().lock();
+        try {
+            return primaryTime == 0 ? -1
+                    : Math.max(0, System.currentTimeMillis() - primaryTime);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get how many changes the primary is known to have made that the copy
+     * has not applied yet.
+     *
+     * @return the number of changes behind
+     */
+    public long getSequenceLag() {
+        lock.readLock().lock();
+        try {
+            return primarySequence - appliedSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last change applied
+     */
+    public long getAppliedSequence() {
+        lock.readLock().lock();
+        try {
+            return appliedSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops replicating. The copy can still be read.
+     */
+    public void close() {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not close replica connection",
+                        ex);
+            }
+        }
+    }
+
+}
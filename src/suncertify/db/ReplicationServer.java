@@ -0,0 +1,334 @@
+package suncertify.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds read replicas with the changes of a primary database. A replica
+ * connecting to the server is first sent a snapshot of every undeleted record,
+ * then the ordered events of the change stream, so it can keep a copy of the
+ * database and serve searches without touching the primary file.
+ *
+ * <p>
+ * The replica subscribes to the change stream before the snapshot is taken,
+ * and the events published in the meantime are sent after it. Each event
+ * carries the whole record after the change, so applying them in order over
+ * the snapshot gives the current records even when the snapshot already
+ * includes some of them. A new snapshot is sent when the stream reports that
+ * the file was changed by another process, or when the replica falls so far
+ * behind that its queue of unsent events is full. A heartbeat carrying the
+ * primary sequence number and clock is sent when there is nothing else to
+ * send, so a replica can report its lag while the primary is idle.
+ *
+ * <p>
+ * The protocol is a sequence of messages, each a tag byte followed by:
+ * <ul>
+ * <li><code>SNAPSHOT</code>: the sequence number of the stream, the number of
+ * fields and the length of each field;</li>
+ * <li><code>RECORD</code>: a snapshot record, as a CREATE event;</li>
+ * <li><code>SNAPSHOT_END</code>: nothing;</li>
+ * <li><code>EVENT</code>: a change event, as written by
+ * <code>ChangeEvent.writeTo</code>;</li>
+ * <li><code>HEARTBEAT</code>: the sequence number of the stream and the time
+ * of the primary.</li>
+ * </ul>
+ *
+ * @author Emmanuel
+ */
+public class ReplicationServer {
+
+    /**
+     * Set this system property to the port to serve replicas on, to have the
+     * network server feed read replicas.
+     */
+    public static final String PORT_PROPERTY = "suncertify.db.replicationPort";
+
+    /**
+     * Tag of the message starting a snapshot.
+     */
+    static final byte SNAPSHOT = 1;
+
+    /**
+     * Tag of a snapshot record.
+     */
+    static final byte RECORD = 2;
+
+    /**
+     * Tag of the message ending a snapshot.
+     */
+    static final byte SNAPSHOT_END = 3;
+
+    /**
+     * Tag of a change event.
+     */
+    static final byte EVENT = 4;
+
+    /**
+     * Tag of a heartbeat.
+     */
+    static final byte HEARTBEAT = 5;
+
+    /**
+     * How often (in milliseconds) a heartbeat is sent to an idle replica.
+     */
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * The most events waiting to be sent to a replica before it is sent a new
+     * snapshot instead.
+     */
+    private static final int MAX_QUEUED_EVENTS = 100000;
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The database the replicas copy.
+     */
+    private final Data database;
+
+    /**
+     * The stream of the changes of the database.
+     */
+    private final ChangeStream changes;
+
+    /**
+     * The socket the replicas connect to.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Creates the threads serving the replicas.
+     */
+    private final ThreadFactory threads;
+
+    /**
+     * The connected replicas.
+     */
+    private final List<ReplicaLink> replicas;
+
+    /**
+     * Starts serving replicas of a database.
+     *
+     * @param primary the database to replicate
+     * @param port the port to listen to replicas on
+     * @throws IOException if the port cannot be listened on
+     */
+    public ReplicationServer(URLyBirdData primary, int port)
+            throws IOException {
+        database = primary.database;
+        changes = primary.getChangeStream();
+        serverSocket = new ServerSocket(port);
+        threads = RequestExecutors.newDaemonThreadFactory("Replication");
+        replicas = new CopyOnWriteArrayList<>();
+        threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }).start();
+        log.log(Level.INFO, "Serving replicas on port {0}",
+                serverSocket.getLocalPort());
+    }
+
+    /**
+     * Accepts replica connections until the server is closed.
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                ReplicaLink replica = new ReplicaLink(socket);
+                replicas.add(replica);
+                threads.newThread(replica).start();
+                log.log(Level.INFO, "Replica connected: {0}",
+                        socket.getRemoteSocketAddress());
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    log.log(Level.WARNING, "Could not accept replica", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the port the replicas connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of replicas connected
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Stops serving replicas and disconnects them.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not close replication socket", ex);
+        }
+        for (ReplicaLink replica : replicas) {
+            replica.close();
+        }
+    }
+
+    /**
+     * The connection to one replica, queueing the events of the change stream
+     * for the thread sending them.
+     */
+    private class ReplicaLink implements ChangeSubscriber, Runnable {
+
+        /**
+         * The connection to the replica.
+         */
+        private final Socket socket;
+
+        /**
+         * The events waiting to be sent.
+         */
+        private final BlockingQueue<ChangeEvent> queue;
+
+        /**
+         * True if an event did not fit in the queue, so a new snapshot must
+         * be sent.
+         */
+        private volatile boolean overflowed;
+
+        /**
+         * Creates the link to a connected replica.
+         *
+         * @param socket the connection to the replica
+         */
+        ReplicaLink(Socket socket) {
+            this.socket = socket;
+            queue = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+        }
+
+        @Override
+        public void changed(ChangeEvent event) {
+            if (!queue.offer(event)) {
+                overflowed = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            changes.subscribe(this);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()))) {
+                sendSnapshot(out);
+                while (!socket.isClosed()) {
+                    ChangeEvent event = queue.poll(HEARTBEAT_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                    if (overflowed) {
+                        log.log(Level.WARNING, "Replica too far behind: {0}",
+                                socket.getRemoteSocketAddress());
+                        overflowed = false;
+                        queue.clear();
+                        sendSnapshot(out);
+                    } else if (event == null) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeLong(changes.getSequence());
+                        out.writeLong(System.currentTimeMillis());
+                        out.flush();
+                    } else {
+                        // send what is queued before flushing
+                        while (event != null) {
+                            if (event.getType() == ChangeEvent.Type.RELOAD) {
+                                sendSnapshot(out);
+                            } else {
+                                out.writeByte(EVENT);
+                                event.writeTo(out);
+                            }
+                            event = queue.poll();
+                        }
+                        out.flush();
+                    }
+                }
+            } catch (IOException ex) {
+                log.log(Level.INFO, "Replica disconnected: {0}",
+                        socket.getRemoteSocketAddress());
+            } catch (InterruptedException ex) {
+                log.log(Level.WARNING, "Replication interrupted", ex);
+            } finally {
+                changes.unsubscribe(this);
+                replicas.remove(this);
+                close();
+            }
+        }
+
+        /**
+         * Sends every undeleted record of the database. The records are read
+         * before anything is sent, so a slow replica does not hold the
+         * database read lock.
+         *
+         * @param out the output to the replica
+         * @throws IOException if the database cannot be read or the replica
+         * cannot be written to
+         */
+        private void sendSnapshot(DataOutputStream out) throws IOException {
+            final long sequence = changes.getSequence();
+            final long now = System.currentTimeMillis();
+            final List<ChangeEvent> records = new ArrayList<>();
+            database.scan(new Data.RecordVisitor() {
+                @Override
+                public void visit(long recNo, String[] record) {
+                    records.add(new ChangeEvent(ChangeEvent.Type.CREATE,
+                            sequence, now, recNo, null, record));
+                }
+            });
+            Map<?, ?> fields = database.getFields();
+            out.writeByte(SNAPSHOT);
+            out.writeLong(sequence);
+            out.writeShort(fields.size());
+            for (Object length : fields.values()) {
+                out.writeInt(((Number) length).intValue());
+            }
+            for (ChangeEvent record : records) {
+                out.writeByte(RECORD);
+                record.writeTo(out);
+            }
+            out.writeByte(SNAPSHOT_END);
+            out.flush();
+            log.log(Level.INFO, "Sent snapshot of {0} records at {1}",
+                    new Object[]{records.size(), sequence});
+        }
+
+        /**
+         * Closes the connection to the replica.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not close replica connection",
+                        ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package suncertify.db;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors that run database requests. When the Java runtime
+ * supports virtual threads every request gets its own virtual thread, so a
+ * request blocked waiting for a record lock or for the file costs no OS
+ * thread. Older runtimes get a pool of platform threads instead. Virtual
+ * threads are looked up by reflection, since the code is built for Java 8.
+ *
+ * <p>
+ * Only the requests a class hands to one of these executors run on virtual
+ * threads. Calls arriving over RMI run on the threads of the RMI runtime,
+ * which cannot be replaced, and are not moved onto an executor: the RMI
+ * thread would only wait for the result, so nothing would be saved.
+ *
+ * @author Emmanuel
+ */
+public final class RequestExecutors {
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * This class should not be instantiated. Only its utility methods should be
+     * used.
+     */
+    private RequestExecutors() {
+    }
+
+    /**
+     * Creates an executor running every task on a new virtual thread, or on a
+     * cached pool of daemon threads if virtual threads are not available.
+     *
+     * @param name the prefix of the thread names
+     * @return the executor
+     */
+    public static ExecutorService newRequestExecutor(String name) {
+        ExecutorService executor = newVirtualThreadExecutor(name);
+        if (executor != null) {
+            return executor;
+        }
+        return Executors.newCachedThreadPool(newDaemonThreadFactory(name));
+    }
+
+    /**
+     * Creates an executor running every task on a new virtual thread, or on a
+     * pool of one daemon thread per processor if virtual threads are not
+     * available. The pool only lets a bounded number of tasks wait, so a
+     * flood of requests cannot start a thread each: once
+     * <code>maxQueued</code> tasks are waiting, more are rejected with a
+     * <code>RejectedExecutionException</code>.
+     *
+     * @param name the prefix of the thread names
+     * @param maxQueued the most tasks the pool lets wait for a thread
+     * @return the executor
+     */
+    public static ExecutorService newBoundedRequestExecutor(String name,
+            int maxQueued) {
+        ExecutorService executor = newVirtualThreadExecutor(name);
+        if (executor != null) {
+            return executor;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        return new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued),
+                newDaemonThreadFactory(name));
+    }
+
+    /**
+     * Creates an executor running every task on a new virtual thread, using
+     * <code>Executors.newThreadPerTaskExecutor</code>.
+     *
+     * @param name the prefix of the thread names
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        ThreadFactory factory = newVirtualThreadFactory(name);
+        if (factory != null) {
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newThreadPerTaskExecutor",
+                                ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                log.log(Level.WARNING, "Virtual thread executor unavailable",
+                        ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if requests run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return newVirtualThreadFactory("") != null;
+    }
+
+    /**
+     * Creates a factory of daemon platform threads.
+     *
+     * @param name the prefix of the thread names
+     * @return the thread factory
+     */
+    public static ThreadFactory newDaemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task,
+                        name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates a factory of virtual threads, using
+     * <code>Thread.ofVirtual().name(name, 1).factory()</code>.
+     *
+     * @param name the prefix of the thread names
+     * @return the thread factory, or null if virtual threads are not
+     * available
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + " ", 1L);
+            return (ThreadFactory) builderType.getMethod("factory")
+                    .invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // not a runtime with virtual threads
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,651 @@
+package suncertify.db;
+
+import suncertify.gui.Occupancy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Database access partitioning the occupancies across several database files,
+ * the shards, by city or by month. Every shard has its own file, locks and
+ * indexes, so writes to different shards never contend and each file stays
+ * small.
+ *
+ * <p>
+ * New occupancies are stored in the shard their key hashes to. The address of
+ * an occupancy holds the number of its shard in the top bits and the record
+ * number in the shard file in the others, so reads, updates and bookings go to
+ * one shard. Searches and listings are run on every shard in parallel.
+ *
+ * <p>
+ * An update keeps an occupancy in the shard it was created in, even if its key
+ * changes, since moving it would change its address under the clients. The
+ * key of a record therefore does not tell its shard, and lookups by key (the
+ * free room counts) are run on every shard too.
+ *
+ * @author Emmanuel
+ */
+public class ShardedURLyBirdData implements URLyBirdDBAccess {
+
+    /**
+     * The ways of choosing the shard of an occupancy.
+     */
+    public enum ShardKey {
+
+        /**
+         * By the city of the hotel.
+         */
+        LOCATION,
+        /**
+         * By the month of the date (yyyy/mm).
+         */
+        MONTH
+    }
+
+    /**
+     * The number of address bits holding the record number in the shard.
+     */
+    private static final int SHARD_SHIFT = 48;
+
+    /**
+     * The mask of the record number in an address.
+     */
+    private static final long RECORD_MASK = (1L << SHARD_SHIFT) - 1;
+
+    /**
+     * The most shards a database can have.
+     */
+    public static final int MAX_SHARDS = 1 << (Long.SIZE - 1 - SHARD_SHIFT);
+
+    /**
+     * The length of the month part of a date (yyyy/mm).
+     */
+    private static final int MONTH_LENGTH = 7;
+
+    /**
+     * The position of the location in the occupancy record.
+     */
+    private static final int LOCATION_IDX = 1;
+
+    /**
+     * The position of the date in the occupancy record.
+     */
+    private static final int DATE_IDX = 5;
+
+    /**
+     * The Logger instance. All log messages from this class are routed through
+     * this member. The Logger namespace is <code>suncertify.db</code>.
+     */
+    private static final Logger log = Logger.getLogger("suncertify.db");
+
+    /**
+     * The shards, in shard number order.
+     */
+    private final URLyBirdData[] shards;
+
+    /**
+     * The key the occupancies are partitioned by.
+     */
+    private final ShardKey key;
+
+    /**
+     * The latest record changes of all the shards, by sharded address.
+     */
+    private final ChangeHistory history;
+
+    /**
+     * Runs the requests fanned out to the shards.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Opens a sharded database. The shard files must be given in the same
+     * order every time, since the shard of an occupancy depends on it.
+     *
+     * @param key the key the occupancies are partitioned by
+     * @param shardPaths the locations of the shard database files
+     * @throws IOException if a shard file cannot be opened
+     * @throws IllegalArgumentException if no shard or too many are given
+     */
+    public ShardedURLyBirdData(ShardKey key, String... shardPaths)
+            throws IOException {
+        if (shardPaths.length == 0 || shardPaths.length > MAX_SHARDS) {
+            throw new IllegalArgumentException("Invalid number of shards: "
+                    + shardPaths.length);
+        }
+        this.key = key;
+        shards = new URLyBirdData[shardPaths.length];
+        history = new ChangeHistory(Integer.getInteger(
+                ChangeHistory.SIZE_PROPERTY, ChangeHistory.DEFAULT_SIZE));
+        for (int i = 0; i < shardPaths.length; i++) {
+            shards[i] = new URLyBirdData(shardPaths[i]);
+            final int shard = i;
+            shards[i].getChangeStream().subscribe(new ChangeSubscriber() {
+                @Override
+                public void changed(ChangeEvent event) {
+                    if (event.getType() == ChangeEvent.Type.RELOAD) {
+                        history.reset();
+                    } else {
+                        history.record(address(shard, event.getRecNo()),
+                                event.getAfter());
+                    }
+                }
+            });
+        }
+        executor = RequestExecutors.newRequestExecutor("Shard");
+        log.log(Level.INFO, "Opened {0} shards by {1}",
+                new Object[]{shards.length, key});
+    }
+
+    /**
+     * Builds the address of an occupancy from its shard and record number.
+     *
+     * @param shard the shard number
+     * @param recNo the record number in the shard file
+     * @return the address
+     */
+    private static long address(int shard, long recNo) {
+        return ((long) shard << SHARD_SHIFT) | recNo;
+    }
+
+    /**
+     * Get the record number in the shard file of an address.
+     *
+     * @param address the occupancy address
+     * @return the record number
+     */
+    private static long recNo(long address) {
+        return address & RECORD_MASK;
+    }
+
+    /**
+     * Get the shard holding an address.
+     *
+     * @param address the occupancy address
+     * @return the shard number
+     * @throws IOException if the address is not in any shard
+     */
+    private int shardOf(long address) throws IOException {
+        long shard = address >>> SHARD_SHIFT;
+        if (address < 0 || shard >= shards.length) {
+            throw new IOException("Invalid occupancy address");
+        }
+        return (int) shard;
+    }
+
+    /**
+     * Get the shard new occupancies with a key value are stored in.
+     *
+     * @param value the location or month
+     * @return the shard number
+     */
+    private int route(String value) {
+        return Math.floorMod(value.trim().hashCode(), shards.length);
+    }
+
+    /**
+     * Get the shard a new occupancy is stored in.
+     *
+     * @param record the occupancy record
+     * @return the shard number
+     */
+    private int route(String[] record) {
+        return key == ShardKey.LOCATION ? route(record[LOCATION_IDX])
+                : route(month(record[DATE_IDX]));
+    }
+
+    /**
+     * Get the month part of a date.
+     *
+     * @param date the date as stored in the database (yyyy/mm/dd)
+     * @return the month (yyyy/mm)
+     */
+    private static String month(String date) {
+        String trimmed = date.trim();
+        return trimmed.length() > MONTH_LENGTH
+                ? trimmed.substring(0, MONTH_LENGTH) : trimmed;
+    }
+
+    /**
+     * Copies an occupancy of a shard with its sharded address.
+     *
+     * @param shard the shard number
+     * @param occupancy the occupancy, addressed in the shard file
+     * @return the occupancy addressed in the sharded database
+     */
+    private static Occupancy toSharded(int shard, Occupancy occupancy) {
+        return new Occupancy(address(shard, occupancy.getAddress()),
+                occupancy);
+    }
+
+    /**
+     * Copies an occupancy with its address in its shard file.
+     *
+     * @param occupancy the occupancy, addressed in the sharded database
+     * @return the occupancy addressed in its shard file
+     */
+    private static Occupancy toShard(Occupancy occupancy) {
+        return new Occupancy(recNo(occupancy.getAddress()), occupancy);
+    }
+
+    /**
+     * Runs a task on every shard in parallel and waits for all of them.
+     *
+     * @param <T> the type of the task results
+     * @param task the task to run, given the shard number
+     * @return the task results in shard order
+     * @throws IOException if a task fails or the wait is interrupted
+     */
+    private <T> List<T> fanOut(final ShardTask<T> task) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return task.run(shard);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for shards");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Shard request failed", cause);
+        }
+        return results;
+    }
+
+    @Override
+    public Occupancy getOccupancy(long address) throws IOException {
+        int shard = shardOf(address);
+        return toSharded(shard, shards[shard].getOccupancy(recNo(address)));
+    }
+
+    @Override
+    public void setOccupancy(Occupancy occupancy, boolean append)
+            throws IOException {
+        if (append) {
+            shards[route(occupancy.toRecord())].setOccupancy(occupancy, true);
+        } else {
+            shards[shardOf(occupancy.getAddress())]
+                    .setOccupancy(toShard(occupancy), false);
+        }
+    }
+
+    @Override
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws IOException {
+        if (append) {
+            final Map<Integer, List<Occupancy>> byShard = new TreeMap<>();
+            for (Occupancy occupancy : occupancies) {
+                int shard = route(occupancy.toRecord());
+                List<Occupancy> group = byShard.get(shard);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    byShard.put(shard, group);
+                }
+                group.add(occupancy);
+            }
+            fanOut(new ShardTask<Void>() {
+                @Override
+                public Void run(int shard) throws IOException {
+                    List<Occupancy> group = byShard.get(shard);
+                    if (group != null) {
+                        shards[shard].setOccupancies(group, true);
+                    }
+                    return null;
+                }
+            });
+        } else {
+            final Map<Long, String[]> records = new LinkedHashMap<>();
+            for (Occupancy occupancy : occupancies) {
+                records.put(occupancy.getAddress(), occupancy.toRecord());
+            }
+            update(records.keySet(), new RecordUpdate() {
+                @Override
+                public String[] update(long address, String[] record) {
+                    return records.get(address);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void bookOccupancies(Collection<Long> addresses,
+            final String customerId) throws IOException {
+        update(addresses, new RecordUpdate() {
+            @Override
+            public String[] update(long address, String[] record)
+                    throws IOException {
+                Occupancy occupancy = new Occupancy(address, record);
+                if (occupancy.hasOwner()) {
+                    throw new IOException("Occupancy already booked");
+                }
+                occupancy.setOwner(customerId);
+                return occupancy.toRecord();
+            }
+        });
+    }
+
+    @Override
+    public boolean bookIfAvailable(long address, String customerId)
+            throws IOException {
+        return shards[shardOf(address)].bookIfAvailable(recNo(address),
+                customerId);
+    }
+
+    @Override
+    public boolean releaseIfOwner(long address, String customerId)
+            throws IOException {
+        return shards[shardOf(address)].releaseIfOwner(recNo(address),
+                customerId);
+    }
+
+    /**
+     * Updates a set of occupancies, which may be in different shards, all
+     * together. The records are locked one shard at a time in shard order, so
+     * two updates cannot deadlock, and nothing is written unless every update
+     * succeeds. The shards are then written one after the other, keeping
+     * their records locked until all are: if a shard fails to write its
+     * commit, the records of the shards already written are put back as they
+     * were. Only a crash between two shard commits, or a failure to put the
+     * records back, which is logged, leaves some shards updated.
+     *
+     * @param addresses the addresses of the occupancies
+     * @param change the update to make to every record
+     * @throws IOException if a record cannot be found, locked or updated
+     */
+    private void update(Collection<Long> addresses, RecordUpdate change)
+            throws IOException {
+        Map<Integer, List<Long>> byShard = new TreeMap<>();
+        for (long address : addresses) {
+            int shard = shardOf(address);
+            List<Long> group = byShard.get(shard);
+            if (group == null) {
+                group = new ArrayList<>();
+                byShard.put(shard, group);
+            }
+            group.add(address);
+        }
+        List<Transaction> transactions = new ArrayList<>(byShard.size());
+        List<Map<Long, String[]>> befores = new ArrayList<>(byShard.size());
+        try {
+            for (Map.Entry<Integer, List<Long>> group : byShard.entrySet()) {
+                long[] recNos = new long[group.getValue().size()];
+                for (int i = 0; i < recNos.length; i++) {
+                    recNos[i] = recNo(group.getValue().get(i));
+                }
+                Transaction transaction
+                        = shards[group.getKey()].database.begin(recNos);
+                transactions.add(transaction);
+                Map<Long, String[]> before = new LinkedHashMap<>();
+                befores.add(before);
+                for (long address : group.getValue()) {
+                    long recNo = recNo(address);
+                    String[] record = transaction.read(recNo);
+                    before.put(recNo, record.clone());
+                    transaction.update(recNo, change.update(address, record));
+                }
+            }
+            int written = 0;
+            try {
+                for (Transaction transaction : transactions) {
+                    transaction.write();
+                    written++;
+                }
+            } catch (RecordNotFoundException ex) {
+                undo(transactions.subList(0, written), befores);
+                throw ex;
+            }
+        } catch (RecordNotFoundException ex) {
+            throw new IOException("Could not find occupancies");
+        } finally {
+            for (Transaction transaction : transactions) {
+                transaction.rollback();
+            }
+        }
+    }
+
+    /**
+     * Puts back the records of the shards already written by an update that
+     * failed on a later shard. The records are still locked by the
+     * transactions.
+     *
+     * @param written the transactions already written
+     * @param befores the records of each transaction before the update
+     */
+    private static void undo(List<Transaction> written,
+            List<Map<Long, String[]>> befores) {
+        for (int i = 0; i < written.size(); i++) {
+            Transaction transaction = written.get(i);
+            try {
+                for (Map.Entry<Long, String[]> record
+                        : befores.get(i).entrySet()) {
+                    transaction.update(record.getKey(), record.getValue());
+                }
+                transaction.write();
+            } catch (RecordNotFoundException ex) {
+                log.log(Level.SEVERE, "Could not undo a shard update", ex);
+            }
+        }
+    }
+
+    @Override
+    public Collection<Occupancy> getOccupancies() throws IOException {
+        return merge(fanOut(new ShardTask<Collection<Occupancy>>() {
+            @Override
+            public Collection<Occupancy> run(int shard) throws IOException {
+                return shards[shard].getOccupancies();
+            }
+        }));
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupancies(final String... params)
+            throws IOException {
+        return merge(fanOut(new ShardTask<Collection<Occupancy>>() {
+            @Override
+            public Collection<Occupancy> run(int shard) throws IOException {
+                return shards[shard].searchOccupancies(params);
+            }
+        }));
+    }
+
+    @Override
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) throws IOException {
+        if (params == null) {
+            params = new String[]{null};
+        }
+        for (URLyBirdData shard : shards) {
+            shard.database.revalidate();
+        }
+        OccupancyDelta delta = history.since(version, params);
+        if (delta == null) {
+            long current = history.getVersion();
+            final String[] criteria = params;
+            delta = new OccupancyDelta(current, true, merge(fanOut(
+                    new ShardTask<Collection<Occupancy>>() {
+                @Override
+                public Collection<Occupancy> run(int shard) {
+                    // with the locked records, as in URLyBirdData
+                    return shards[shard].searchOccupancies(true, criteria);
+                }
+            })), new long[0]);
+        }
+        return delta;
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupanciesByRate(final int minRate,
+            final int maxRate, final String... params) throws IOException {
+        List<Occupancy> found = new ArrayList<>(merge(fanOut(
+                new ShardTask<Collection<Occupancy>>() {
+            @Override
+            public Collection<Occupancy> run(int shard) throws IOException {
+                return shards[shard].searchOccupanciesByRate(minRate, maxRate,
+                        params);
+            }
+        })));
+        RateIndex.sort(found);
+        return found;
+    }
+
+    @Override
+    public int[] getRateRange(final String... params) throws IOException {
+        int[] range = null;
+        for (int[] shardRange : fanOut(new ShardTask<int[]>() {
+            @Override
+            public int[] run(int shard) throws IOException {
+                return shards[shard].getRateRange(params);
+            }
+        })) {
+            if (shardRange != null) {
+                range = RateIndex.widen(range, shardRange[0]);
+                range = RateIndex.widen(range, shardRange[1]);
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Joins the occupancies found in each shard, giving them their sharded
+     * addresses.
+     *
+     * @param found the occupancies found, in shard order
+     * @return all the occupancies
+     */
+    private static Collection<Occupancy> merge(
+            List<Collection<Occupancy>> found) {
+        List<Occupancy> merged = new LinkedList<>();
+        for (int shard = 0; shard < found.size(); shard++) {
+            for (Occupancy occupancy : found.get(shard)) {
+                merged.add(toSharded(shard, occupancy));
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public int countAvailableByLocation(final String location,
+            final String date) throws IOException {
+        return sum(fanOut(new ShardTask<Integer>() {
+            @Override
+            public Integer run(int shard) throws IOException {
+                return shards[shard].countAvailableByLocation(location, date);
+            }
+        }));
+    }
+
+    @Override
+    public int countAvailableByName(final String name, final String date)
+            throws IOException {
+        return sum(fanOut(new ShardTask<Integer>() {
+            @Override
+            public Integer run(int shard) throws IOException {
+                return shards[shard].countAvailableByName(name, date);
+            }
+        }));
+    }
+
+    /**
+     * Adds up the counts of the shards.
+     *
+     * @param counts the counts of each shard
+     * @return the total
+     */
+    private static int sum(List<Integer> counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Get how far the shards have got building their indexes and the free
+     * room counts in the background.
+     *
+     * @return the percentage of the work done by the slowest shard, 100 when
+     * all are ready
+     */
+    public int getWarmupProgress() {
+        int progress = 100;
+        for (URLyBirdData shard : shards) {
+            progress = Math.min(progress, shard.getWarmupProgress());
+        }
+        return progress;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the key the occupancies are partitioned by
+     */
+    public ShardKey getShardKey() {
+        return key;
+    }
+
+    /**
+     * A request run on one shard.
+     *
+     * @param <T> the type of the result
+     */
+    private interface ShardTask<T> {
+
+        /**
+         * Runs the request.
+         *
+         * @param shard the shard number
+         * @return the result
+         * @throws IOException if the shard cannot be accessed
+         */
+        T run(int shard) throws IOException;
+    }
+
+    /**
+     * An update of the record of an occupancy, made in a transaction.
+     */
+    private interface RecordUpdate {
+
+        /**
+         * Computes the new record of an occupancy.
+         *
+         * @param address the sharded address of the occupancy
+         * @param record the current field values
+         * @return the new field values
+         * @throws IOException if the record must not be updated
+         */
+        String[] update(long address, String[] record) throws IOException;
+    }
+
+}
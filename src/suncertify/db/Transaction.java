@@ -0,0 +1,172 @@
+package suncertify.db;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of records updated together. The records are locked when the
+ * transaction begins, in ascending record number order so two transactions
+ * can never wait for each other, and stay locked until it is committed or
+ * rolled back. Updates are staged and written together on commit, through
+ * the database journal, so either all of them reach the file or none does.
+ *
+ * <p>
+ * A transaction is used by a single thread.
+ *
+ * @author Emmanuel
+ */
+public class Transaction {
+
+    /**
+     * The database the records belong to.
+     */
+    private final Data database;
+
+    /**
+     * The lock cookies of the records in the transaction, by record number.
+     */
+    private final Map<Long, Long> cookies;
+
+    /**
+     * The staged field values, by record number, in update order.
+     */
+    private final Map<Long, String[]> updates;
+
+    /**
+     * True until the transaction is committed or rolled back.
+     */
+    private boolean open;
+
+    /**
+     * Begins a transaction, locking its records. Called through
+     * <code>Data.begin</code>.
+     *
+     * @param database the database the records belong to
+     * @param recNos the records to lock
+     * @throws RecordNotFoundException if a record cannot be locked
+     */
+    Transaction(Data database, long[] recNos) throws RecordNotFoundException {
+        this.database = database;
+        this.cookies = new LinkedHashMap<>();
+        this.updates = new LinkedHashMap<>();
+        long[] order = recNos.clone();
+        Arrays.sort(order);
+        try {
+            for (long recNo : order) {
+                if (!cookies.containsKey(recNo)) {
+                    cookies.put(recNo, database.lockRecord(recNo));
+                }
+            }
+        } catch (RecordNotFoundException | RuntimeException ex) {
+            // give back the locks already taken
+            release();
+            throw ex;
+        }
+        open = true;
+    }
+
+    /**
+     * Reads a record of the transaction, including its staged update.
+     *
+     * @param recNo the record number
+     * @return the field values of the record
+     * @throws RecordNotFoundException if the record is deleted
+     * @throws IllegalArgumentException if the record is not in the
+     * transaction
+     */
+    public String[] read(long recNo) throws RecordNotFoundException {
+        checkRecord(recNo);
+        String[] staged = updates.get(recNo);
+        return staged != null ? staged.clone()
+                : database.readLockedRecord(recNo, cookies.get(recNo));
+    }
+
+    /**
+     * Stages an update of a record, to be written on commit.
+     *
+     * @param recNo the record number
+     * @param data the new field values
+     * @throws IllegalArgumentException if the record is not in the
+     * transaction
+     */
+    public void update(long recNo, String[] data) {
+        checkRecord(recNo);
+        updates.put(recNo, data.clone());
+    }
+
+    /**
+     * Writes the staged updates with a single durable commit and unlocks the
+     * records. Nothing is written if any record was deleted or the commit
+     * fails.
+     *
+     * @throws RecordNotFoundException if a record was deleted or could not be
+     * written
+     */
+    public void commit() throws RecordNotFoundException {
+        try {
+            write();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Writes the staged updates with a single durable commit, keeping the
+     * records locked, so a change spanning several databases can still undo
+     * it with another write. The transaction stays open, with no staged
+     * update, until it is committed or rolled back.
+     *
+     * @throws RecordNotFoundException if a record was deleted or could not be
+     * written, in which case nothing is written
+     */
+    public void write() throws RecordNotFoundException {
+        checkOpen();
+        database.commit(updates, cookies);
+        updates.clear();
+    }
+
+    /**
+     * Discards the staged updates and unlocks the records.
+     */
+    public void rollback() {
+        if (open) {
+            release();
+        }
+    }
+
+    /**
+     * Checks that the transaction is open and holds a record.
+     *
+     * @param recNo the record number
+     */
+    private void checkRecord(long recNo) {
+        checkOpen();
+        if (!cookies.containsKey(recNo)) {
+            throw new IllegalArgumentException(
+                    "Record not in transaction: " + recNo);
+        }
+    }
+
+    /**
+     * Checks that the transaction has not been committed or rolled back.
+     */
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException("Transaction closed");
+        }
+    }
+
+    /**
+     * Unlocks the records and closes the transaction.
+     */
+    private void release() {
+        open = false;
+        for (Map.Entry<Long, Long> lock : cookies.entrySet()) {
+            database.unlock(lock.getKey(), lock.getValue());
+        }
+        cookies.clear();
+        updates.clear();
+    }
+
+}
@@ -31,6 +31,62 @@ public interface URLyBirdDBAccess {
      */
     public void setOccupancy(Occupancy occupancy, boolean append) throws IOException;
 
+    /**
+     * Set many occupancies to the database records at once. When appending,
+     * the new records are checked for duplicates together and written in
+     * large blocks, so loading a whole inventory is much faster than calling
+     * <code>setOccupancy</code> for each record.
+     *
+     * When updating, all the records are updated together or none is.
+     *
+     * @param occupancies the new occupancy record values
+     * @param append true to create new records, false to update old undeleted
+     * records
+     * @throws IOException
+     */
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws IOException;
+
+    /**
+     * Book a set of occupancies for a customer, such as the nights of a stay,
+     * as a single transaction. Either every occupancy is booked or, if any of
+     * them is already booked, none is.
+     *
+     * @param addresses the record addresses of the occupancies
+     * @param customerId the id of the customer booking them
+     * @throws IOException if an occupancy is already booked or the booking
+     * cannot be written
+     */
+    public void bookOccupancies(Collection<Long> addresses, String customerId)
+            throws IOException;
+
+    /**
+     * Book an occupancy for a customer if it is not booked, checking and
+     * updating it under one record lock, so two customers cannot both book
+     * it.
+     *
+     * @param address the record address of the occupancy
+     * @param customerId the id of the customer booking it
+     * @return true if the occupancy was booked, false if it was already
+     * booked
+     * @throws IOException if the occupancy cannot be found or written
+     */
+    public boolean bookIfAvailable(long address, String customerId)
+            throws IOException;
+
+    /**
+     * Remove the customer holding an occupancy if it is the given customer,
+     * checking and updating it under one record lock.
+     *
+     * @param address the record address of the occupancy
+     * @param customerId the id of the customer releasing it
+     * @return true if the occupancy was released, false if the customer did
+     * not hold it
+     * @throws IOException if the occupancy cannot be found or written
+     */
+    public boolean releaseIfOwner(long address, String customerId)
+            throws IOException;
+
     /**
      * Get all the active occupancies (undeleted records) in the database.
      *
@@ -49,4 +105,66 @@ public interface URLyBirdDBAccess {
      */
     public Collection<Occupancy> searchOccupancies(String... params) throws IOException;
 
+    /**
+     * Search for occupancies matching the parameters supplied, returning only
+     * the occupancies changed since the version of the previous result. If
+     * the changes since that version are no longer known, or the version is
+     * 0, the full result is returned instead.
+     *
+     * @param version the version of the previous result, or 0 for none
+     * @param params the search criteria, with record fields in matching order
+     * @return the changes or the full result, with the new version
+     * @throws IOException if the database cannot be read
+     */
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) throws IOException;
+
+    /**
+     * Search for occupancies matching the parameters supplied whose rate is
+     * in a range, ordered by rate. Rates are compared in minor units, as
+     * parsed by <code>RateCodec</code>; occupancies with a rate that cannot be
+     * parsed are left out. Null parameters match every occupancy.
+     *
+     * @param minRate the lowest rate in minor units
+     * @param maxRate the highest rate in minor units
+     * @param params the search criteria, with record fields in matching order
+     * @return the matching occupancies, cheapest first
+     * @throws IOException if the database cannot be read
+     */
+    public Collection<Occupancy> searchOccupanciesByRate(int minRate,
+            int maxRate, String... params) throws IOException;
+
+    /**
+     * Get the lowest and highest rates of the occupancies matching the
+     * parameters supplied. Null parameters match every occupancy.
+     *
+     * @param params the search criteria, with record fields in matching order
+     * @return the lowest and highest rates in minor units, or null if no
+     * matching occupancy has a rate
+     * @throws IOException if the database cannot be read
+     */
+    public int[] getRateRange(String... params) throws IOException;
+
+    /**
+     * Get the number of rooms without an owner in a city on a date.
+     *
+     * @param location the city of the hotels
+     * @param date the date as stored in the database records (yyyy/mm/dd)
+     * @return the number of free rooms
+     * @throws IOException
+     */
+    public int countAvailableByLocation(String location, String date)
+            throws IOException;
+
+    /**
+     * Get the number of rooms without an owner in a hotel on a date.
+     *
+     * @param name the name of the hotel
+     * @param date the date as stored in the database records (yyyy/mm/dd)
+     * @return the number of free rooms
+     * @throws IOException
+     */
+    public int countAvailableByName(String name, String date)
+            throws IOException;
+
 }
@@ -7,7 +7,9 @@ package suncertify.db;
 
 import suncertify.gui.Occupancy;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +24,44 @@ public class URLyBirdData implements URLyBirdDBAccess {
 
     Data database;
 
+    /**
+     * The free room counts maintained from the database changes.
+     */
+    private final AvailabilityView availability;
+
+    /**
+     * The largest fraction of the records, as its inverse, a rate range may
+     * hold to be read record by record instead of by a search.
+     */
+    private static final int SELECTIVE_RANGE = 8;
+
+    /**
+     * The parsed rates of the records, in rate order.
+     */
+    private final RateIndex rates;
+
+    /**
+     * The ordered stream of the record changes, logged to a file if the
+     * <code>ChangeStream.LOG_PROPERTY</code> system property is true.
+     */
+    private final ChangeStream changes;
+
+    /**
+     * The occupancies built from popular records, forgotten when the records
+     * change.
+     */
+    private final OccupancyCache occupancies;
+
+    /**
+     * The latest record changes, for searches made since a version.
+     */
+    private final ChangeHistory history;
+
+    /**
+     * Moves the occupancies of past dates to the archive file.
+     */
+    private final Archiver archiver;
+
     /**
      * Instantiate the data object.
      *
@@ -30,13 +70,43 @@ public class URLyBirdData implements URLyBirdDBAccess {
      */
     public URLyBirdData(String databasePath) throws IOException {
         database = new Data(databasePath);
+        availability = new AvailabilityView(database);
+        rates = new RateIndex(database);
+        changes = new ChangeStream(database,
+                Boolean.getBoolean(ChangeStream.LOG_PROPERTY));
+        occupancies = new OccupancyCache(Integer.getInteger(
+                OccupancyCache.SIZE_PROPERTY, OccupancyCache.DEFAULT_SIZE));
+        changes.subscribe(occupancies);
+        history = new ChangeHistory(Integer.getInteger(
+                ChangeHistory.SIZE_PROPERTY, ChangeHistory.DEFAULT_SIZE));
+        changes.subscribe(history);
+        archiver = new Archiver(database);
+    }
+
+    /**
+     * Get the stream of record changes, for consumers that need to follow
+     * the bookings without searching the database.
+     *
+     * @return the change stream of the database
+     */
+    public ChangeStream getChangeStream() {
+        return changes;
     }
 
     @Override
     public Occupancy getOccupancy(long address) throws IOException {
+        // picks up changes made by other processes
+        database.revalidate();
+        Occupancy cached = occupancies.get(address);
+        if (cached != null && !database.isLocked(address)) {
+            return cached;
+        }
         try {
+            long stamp = occupancies.getStamp();
             String[] record = database.readRecord(address);
-            return new Occupancy(address, record);
+            Occupancy occupancy = new Occupancy(address, record);
+            occupancies.put(occupancy, stamp);
+            return occupancy;
         } catch (RecordNotFoundException ex) {
             throw new IOException("Could not get occupancy");
         }
@@ -69,6 +139,132 @@ public class URLyBirdData implements URLyBirdDBAccess {
         }
     }
 
+    @Override
+    public void setOccupancies(Collection<Occupancy> occupancies,
+            boolean append) throws IOException {
+        if (append) {
+            List<String[]> records = new ArrayList<>(occupancies.size());
+            for (Occupancy occupancy : occupancies) {
+                records.add(occupancy.toRecord());
+            }
+            try {
+                for (long recNo : database.createRecords(records)) {
+                    if (recNo < 0) {
+                        throw new IOException("Could not write occupancies");
+                    }
+                }
+            } catch (DuplicateKeyException ex) {
+                throw new IOException("Could not insert occupancies");
+            }
+        } else {
+            long[] addresses = new long[occupancies.size()];
+            int i = 0;
+            for (Occupancy occupancy : occupancies) {
+                addresses[i++] = occupancy.getAddress();
+            }
+            Transaction transaction = begin(addresses);
+            try {
+                for (Occupancy occupancy : occupancies) {
+                    transaction.update(occupancy.getAddress(),
+                            occupancy.toRecord());
+                }
+                transaction.commit();
+            } catch (RecordNotFoundException ex) {
+                throw new IOException("Could not find occupancies");
+            } finally {
+                transaction.rollback();
+            }
+        }
+    }
+
+    @Override
+    public void bookOccupancies(Collection<Long> addresses, String customerId)
+            throws IOException {
+        long[] recNos = new long[addresses.size()];
+        int i = 0;
+        for (long address : addresses) {
+            recNos[i++] = address;
+        }
+        Transaction transaction = begin(recNos);
+        try {
+            for (long recNo : recNos) {
+                Occupancy occupancy
+                        = new Occupancy(recNo, transaction.read(recNo));
+                if (occupancy.hasOwner()) {
+                    throw new IOException("Occupancy already booked");
+                }
+                occupancy.setOwner(customerId);
+                transaction.update(recNo, occupancy.toRecord());
+            }
+            transaction.commit();
+        } catch (RecordNotFoundException ex) {
+            throw new IOException("Could not find occupancy");
+        } finally {
+            transaction.rollback();
+        }
+    }
+
+    @Override
+    public boolean bookIfAvailable(long address, String customerId)
+            throws IOException {
+        return changeOwner(address, "", customerId);
+    }
+
+    @Override
+    public boolean releaseIfOwner(long address, String customerId)
+            throws IOException {
+        return changeOwner(address, customerId, "");
+    }
+
+    /**
+     * Changes the customer holding an occupancy if it is the expected one,
+     * holding the record lock from the check to the update.
+     *
+     * @param address the record address of the occupancy
+     * @param expected the customer id the occupancy must have
+     * @param owner the new customer id
+     * @return true if the occupancy was changed
+     * @throws IOException if the occupancy cannot be found or written
+     */
+    private boolean changeOwner(long address, String expected, String owner)
+            throws IOException {
+        long lockCookie;
+        try {
+            lockCookie = database.lockRecord(address);
+        } catch (RecordNotFoundException ex) {
+            throw new IOException("Could not find occupancy");
+        }
+        try {
+            Occupancy occupancy = new Occupancy(address,
+                    database.readLockedRecord(address, lockCookie));
+            if (!occupancy.getOwner().equals(expected.trim())) {
+                return false;
+            }
+            occupancy.setOwner(owner);
+            database.updateRecord(address, occupancy.toRecord(), lockCookie);
+            return true;
+        } catch (RecordNotFoundException ex) {
+            throw new IOException("Could not find occupancy");
+        } finally {
+            database.unlock(address, lockCookie);
+        }
+    }
+
+    /**
+     * Begins a transaction over a set of records.
+     *
+     * @param recNos the record addresses
+     * @return the transaction
+     * @throws IOException if the records cannot be locked
+     */
+    private Transaction begin(long[] recNos) throws IOException {
+        try {
+            return database.begin(recNos);
+        } catch (RecordNotFoundException ex) {
+            throw new IOException("Could not lock occupancies");
+        }
+    }
+
     @Override
     public Collection<Occupancy> getOccupancies() {
         return searchOccupancies(); // returns nothing
@@ -76,15 +272,172 @@ public class URLyBirdData implements URLyBirdDBAccess {
 
     @Override
     public Collection<Occupancy> searchOccupancies(String... params) {
+        return searchOccupancies(false, params);
+    }
+
+    /**
+     * Finds the occupancies matching search parameters.
+     *
+     * @param withLocked true to also return the occupancies whose records are
+     * locked, as they were before being locked
+     * @param params the search parameters, or null for every occupancy
+     * @return the occupancies found
+     */
+    Collection<Occupancy> searchOccupancies(boolean withLocked,
+            String... params) {
+        if (params == null) {
+            params = new String[]{null};
+        }
+        long stamp = occupancies.getStamp();
+        Map<Long, String[]> result = database.search(withLocked, params);
+        List<Occupancy> found = new LinkedList<>();
+        for (Map.Entry<Long, String[]> record : result.entrySet()) {
+            Occupancy occupancy = occupancies.get(record.getKey());
+            if (occupancy == null) {
+                occupancy = new Occupancy(record.getKey(), record.getValue());
+                occupancies.put(occupancy, stamp);
+            }
+            found.add(occupancy);
+        }
+        return found;
+    }
+
+    @Override
+    public OccupancyDelta searchOccupanciesSince(long version,
+            String... params) throws IOException {
+        if (params == null) {
+            params = new String[]{null};
+        }
+        // picks up changes made by other processes, resetting the history
+        database.revalidate();
+        OccupancyDelta delta = history.since(version, params);
+        if (delta == null) {
+            // read first, so changes made during the search are sent again;
+            // locked records are included, as an unlock without a change
+            // would never be sent
+            long current = history.getVersion();
+            delta = new OccupancyDelta(current, true,
+                    searchOccupancies(true, params), new long[0]);
+        }
+        return delta;
+    }
+
+    @Override
+    public Collection<Occupancy> searchOccupanciesByRate(int minRate,
+            int maxRate, String... params) {
+        List<Occupancy> found = new ArrayList<>();
+        if (params == null && rates.isReady()) {
+            // every record, so only those in a narrow range need be read
+            database.revalidate();
+            long[] recNos = rates.range(minRate, maxRate);
+            if (recNos.length <= rates.size() / SELECTIVE_RANGE) {
+                for (long recNo : recNos) {
+                    try {
+                        found.add(new Occupancy(recNo,
+                                database.readRecord(recNo)));
+                    } catch (RecordNotFoundException ex) {
+                        // deleted or locked since, as in a search
+                    }
+                }
+                return found;
+            }
+        }
+        if (params == null) {
+            params = new String[]{null};
+        }
+        // sorts by the rate in the high half and the position in the low
+        List<Long> keys = new ArrayList<>();
+        for (Map.Entry<Long, String[]> record
+                : database.search(params).entrySet()) {
+            int rate = rates.rateOf(record.getKey(), record.getValue());
+            if (rate != RateCodec.INVALID && rate >= minRate
+                    && rate <= maxRate) {
+                keys.add((long) rate << Integer.SIZE | found.size());
+                found.add(new Occupancy(record.getKey(), record.getValue()));
+            }
+        }
+        Collections.sort(keys);
+        List<Occupancy> sorted = new ArrayList<>(found.size());
+        for (long key : keys) {
+            sorted.add(found.get((int) key));
+        }
+        return sorted;
+    }
+
+    @Override
+    public int[] getRateRange(String... params) {
+        if (params == null && rates.isReady()) {
+            database.revalidate();
+            return rates.getRange();
+        }
+        if (params == null) {
+            params = new String[]{null};
+        }
+        int[] range = null;
+        for (Map.Entry<Long, String[]> record
+                : database.search(params).entrySet()) {
+            range = RateIndex.widen(range,
+                    rates.rateOf(record.getKey(), record.getValue()));
+        }
+        return range;
+    }
+
+    @Override
+    public int countAvailableByLocation(String location, String date)
+            throws IOException {
+        database.revalidate();
+        return availability.getFreeByLocation(location, date);
+    }
+
+    @Override
+    public int countAvailableByName(String name, String date)
+            throws IOException {
+        database.revalidate();
+        return availability.getFreeByName(name, date);
+    }
+
+    /**
+     * Moves the occupancies dated before a day out of the database into its
+     * archive file, so searches only walk bookable inventory.
+     *
+     * @param date the first day to keep, as stored in the database records
+     * (yyyy/mm/dd)
+     * @return the number of occupancies archived
+     * @throws IOException if the database or the archive cannot be written
+     */
+    public int archiveBefore(String date) throws IOException {
+        return archiver.archiveBefore(date);
+    }
+
+    /**
+     * Searches the occupancies moved to the archive file. The parameters work
+     * the same way as in <code>searchOccupancies</code>. Archived occupancies
+     * are no longer in the database, so their address is -1.
+     *
+     * @param params the search criteria, with record fields in matching order
+     * @return Collection of archived occupancy records that match criteria
+     * @throws IOException if the archive cannot be read
+     */
+    public Collection<Occupancy> searchArchive(String... params)
+            throws IOException {
         if (params == null) {
             params = new String[]{null};
         }
-        Map<Long, String[]> result = database.search(params);
-        List<Occupancy> occupancies = new LinkedList<>();
-        for (Long recNo : result.keySet()) {
-            occupancies.add(new Occupancy(recNo, result.get(recNo)));
+        List<Occupancy> found = new LinkedList<>();
+        for (String[] record : archiver.search(params)) {
+            found.add(new Occupancy(-1, record));
         }
-        return occupancies;
+        return found;
+    }
+
+    /**
+     * Get how far the database has got building its indexes and the free room
+     * counts in the background. Requests are served in the meantime.
+     *
+     * @return the percentage of the work done, 100 when ready
+     */
+    public int getWarmupProgress() {
+        return database.getWarmupProgress();
     }
 
 }
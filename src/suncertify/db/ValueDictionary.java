@@ -0,0 +1,365 @@
+package suncertify.db;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of the distinct values of one field of a format v2 database file.
+ * Records store the code of their value, its position in the dictionary,
+ * instead of the value itself. The dictionary is kept in a fixed-size region
+ * of the file header, and values are only ever appended to it, so a code
+ * never changes its meaning.
+ *
+ * <p>
+ * The region holds its capacity (in bytes), the number of values, the number
+ * of bytes used, then each value as its length followed by its bytes, without
+ * trailing padding.
+ *
+ * @author Emmanuel
+ */
+class ValueDictionary {
+
+    /**
+     * The length of the fixed part of the region: the capacity, the number of
+     * values and the number of bytes used.
+     */
+    static final int HEADER_LENGTH = 12;
+
+    /**
+     * The length (in bytes) of a code in a record.
+     */
+    static final int CODE_LENGTH = 2;
+
+    /**
+     * The most values a dictionary can hold, the number of distinct codes.
+     */
+    static final int MAX_VALUES = 1 << (CODE_LENGTH * Byte.SIZE);
+
+    /**
+     * The length of the length prefix of each value.
+     */
+    private static final int VALUE_HEADER_LENGTH = 2;
+
+    /**
+     * The location of the region in the file.
+     */
+    private final long offset;
+
+    /**
+     * The number of bytes available for values.
+     */
+    private final int capacity;
+
+    /**
+     * The length of the field, which values are padded to.
+     */
+    private final int fieldLength;
+
+    /**
+     * The character encoding of the values.
+     */
+    private final Charset encoding;
+
+    /**
+     * The padded values, by code.
+     */
+    private final List<String> values;
+
+    /**
+     * The codes, by padded value.
+     */
+    private final Map<String, Integer> codes;
+
+    /**
+     * The number of bytes of the region used by values.
+     */
+    private int used;
+
+    /**
+     * Creates an empty dictionary for a region of a file.
+     *
+     * @param offset the location of the region in the file
+     * @param capacity the number of bytes available for values
+     * @param fieldLength the length of the field, which values are padded to
+     * @param encoding the character encoding of the values
+     */
+    private ValueDictionary(long offset, int capacity, int fieldLength,
+            Charset encoding) {
+        this.offset = offset;
+        this.capacity = capacity;
+        this.fieldLength = fieldLength;
+        this.encoding = encoding;
+        values = new ArrayList<>();
+        codes = new HashMap<>();
+    }
+
+    /**
+     * Reads the dictionary in a region of a file.
+     *
+     * @param channel the database file
+     * @param offset the location of the region in the file
+     * @param fieldLength the length of the field, which values are padded to
+     * @param encoding the character encoding of the values
+     * @return the dictionary
+     * @throws IOException if the region cannot be read
+     */
+    static ValueDictionary read(FileChannel channel, long offset,
+            int fieldLength, Charset encoding) throws IOException {
+        ByteBuffer buf = readFully(channel, offset, 4);
+        ValueDictionary dictionary = new ValueDictionary(offset, buf.getInt(),
+                fieldLength, encoding);
+        dictionary.reload(channel);
+        return dictionary;
+    }
+
+    /**
+     * Reads bytes at a position of a file, without moving its file pointer so
+     * it is safe alongside other readers.
+     *
+     * @param channel the file
+     * @param position the location to read from
+     * @param length the number of bytes to read
+     * @return a buffer holding the bytes, ready to be read
+     * @throws IOException if the file ends before the bytes
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Dictionary region truncated");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads the values added to the region since it was last read, by this
+     * or another instance.
+     *
+     * @param channel the database file
+     * @throws IOException if the region cannot be read
+     */
+    synchronized void reload(FileChannel channel) throws IOException {
+        ByteBuffer head = readFully(channel, offset + 4, 8);
+        int count = head.getInt();
+        int newUsed = head.getInt();
+        if (count <= values.size()) {
+            return;
+        }
+        ByteBuffer buf = readFully(channel,
+                offset + HEADER_LENGTH + used, newUsed - used);
+        while (values.size() < count) {
+            byte[] value = new byte[buf.getShort() & 0xffff];
+            buf.get(value);
+            append(new String(value, encoding));
+        }
+        used = newUsed;
+    }
+
+    /**
+     * Adds a value read from the region to the in-memory tables.
+     *
+     * @param value the value, without padding
+     */
+    private void append(String value) {
+        String padded = pad(value);
+        codes.put(padded, values.size());
+        values.add(padded);
+    }
+
+    /**
+     * Pads a value with spaces to the field length.
+     *
+     * @param value the value
+     * @return the padded value, or the value itself if it is long enough
+     */
+    private String pad(String value) {
+        if (value.length() >= fieldLength) {
+            return value;
+        }
+        StringBuilder padded = new StringBuilder(fieldLength).append(value);
+        while (padded.length() < fieldLength) {
+            padded.append(' ');
+        }
+        return padded.toString();
+    }
+
+    /**
+     * Get the value of a code.
+     *
+     * @param code the code
+     * @return the value padded to the field length, or null if the code is
+     * not in the dictionary, which may mean it was added by another instance
+     */
+    synchronized String decode(int code) {
+        return code < values.size() ? values.get(code) : null;
+    }
+
+    /**
+     * Get the code of a value.
+     *
+     * @param value the value, padded or not
+     * @return the code, or -1 if the value is not in the dictionary
+     */
+    synchronized int encode(String value) {
+        Integer code = codes.get(pad(value));
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Appends a value to the region and the in-memory tables. The entry is
+     * written before the count, so a value is never visible half written.
+     * Callers must hold the exclusive database lock and should have reloaded
+     * the dictionary under it.
+     *
+     * @param value the value, padded or not
+     * @param channel the database file
+     * @return the code of the value
+     * @throws IOException if the dictionary is full or cannot be written
+     * @throws IndexOutOfBoundsException if the value is longer than the field
+     */
+    synchronized int add(String value, FileChannel channel)
+            throws IOException {
+        if (value.length() > fieldLength) {
+            throw new IndexOutOfBoundsException("Value too long: " + value);
+        }
+        int existing = encode(value);
+        if (existing >= 0) {
+            return existing;
+        }
+        byte[] bytes = trim(value).getBytes(encoding);
+        int length = VALUE_HEADER_LENGTH + bytes.length;
+        if (values.size() >= MAX_VALUES || used + length > capacity) {
+            throw new IOException("Dictionary full");
+        }
+        ByteBuffer entry = ByteBuffer.allocate(length);
+        entry.putShort((short) bytes.length).put(bytes).flip();
+        write(channel, entry, offset + HEADER_LENGTH + used);
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(values.size() + 1).putInt(used + length).flip();
+        write(channel, head, offset + 4);
+        used += length;
+        append(trim(value));
+        return values.size() - 1;
+    }
+
+    /**
+     * Writes bytes at a position of a file.
+     *
+     * @param channel the file
+     * @param buf the bytes to write
+     * @param position the location to write to
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+
+    /**
+     * Finds the codes of the values starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @return the codes whose padded value starts with the prefix
+     */
+    synchronized BitSet startingWith(String prefix) {
+        BitSet matches = new BitSet(values.size());
+        for (int code = 0; code < values.size(); code++) {
+            if (values.get(code).startsWith(prefix)) {
+                matches.set(code);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the number of values in the dictionary
+     */
+    synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * @return the length (in bytes) of the region in the file
+     */
+    long getRegionLength() {
+        return regionLength(capacity);
+    }
+
+    /**
+     * Get the length of a region.
+     *
+     * @param capacity the number of bytes available for values
+     * @return the length (in bytes) of the region in the file
+     */
+    static long regionLength(int capacity) {
+        return HEADER_LENGTH + (long) capacity;
+    }
+
+    /**
+     * Get the number of bytes a value takes in a region.
+     *
+     * @param value the value, padded or not
+     * @param encoding the character encoding of the values
+     * @return the number of bytes taken by the value and its length
+     */
+    static int entryLength(String value, Charset encoding) {
+        return VALUE_HEADER_LENGTH + trim(value).getBytes(encoding).length;
+    }
+
+    /**
+     * Writes a new region holding values, for a file being created.
+     *
+     * @param out the output to write to
+     * @param initial the values, in code order
+     * @param capacity the number of bytes available for values
+     * @param encoding the character encoding of the values
+     * @throws IOException if the values do not fit or cannot be written
+     */
+    static void writeRegion(DataOutput out, List<String> initial,
+            int capacity, Charset encoding) throws IOException {
+        int size = 0;
+        for (String value : initial) {
+            size += entryLength(value, encoding);
+        }
+        if (initial.size() > MAX_VALUES || size > capacity) {
+            throw new IOException("Dictionary full");
+        }
+        out.writeInt(capacity);
+        out.writeInt(initial.size());
+        out.writeInt(size);
+        for (String value : initial) {
+            byte[] bytes = trim(value).getBytes(encoding);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+        out.write(new byte[capacity - size]);
+    }
+
+    /**
+     * Removes the trailing padding of a value.
+     *
+     * @param value the value
+     * @return the value without trailing spaces
+     */
+    static String trim(String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return value.substring(0, end);
+    }
+
+}
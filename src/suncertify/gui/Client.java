@@ -10,6 +10,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JButton;
@@ -25,7 +26,6 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import suncertify.conn.DBConnection;
 import static suncertify.conn.DBConnection.Type.DIRECT;
-import static suncertify.conn.DBConnection.Type.NETWORK;
 import static suncertify.gui.Application.Mode.CLIENT;
 import static suncertify.gui.Application.Mode.STANDALONE;
 
@@ -114,7 +114,9 @@ public class Client extends JFrame {
      * arguments which determine the kind of client to initialise.
      *
      * @param args no argument in the list starts up the network client, while
-     * "alone" as the only argument starts the local client
+     * "alone" as the only argument starts the local client. The network client
+     * uses RMI unless <code>DBConnection.PROTOCOL_PROPERTY</code> asks for the
+     * binary protocol
      */
     public Client(String[] args) {
         super("URLyBird Client");
@@ -124,7 +126,7 @@ public class Client extends JFrame {
         setIconImage(Application.icon);
 
         appMode = args.length > 0 ? STANDALONE : CLIENT;
-        connType = args.length > 0 ? DIRECT : NETWORK;
+        connType = args.length > 0 ? DIRECT : DBConnection.getNetworkType();
         configPanel = new ConfigPanel(appMode);
         do {
             boolean config = getConfig();
@@ -339,10 +341,11 @@ public class Client extends JFrame {
         public void actionPerformed(ActionEvent e) {
             // if there is a selected row
             if (table.getSelectedRow() >= 0) {
-                int rowIdx = table.getSelectedRow();
-                Occupancy o = table.getItem(rowIdx);
-                if (o.hasOwner()) {
-                    controller.unbook(o);
+                List<Occupancy> selected = table.getSelectedItems();
+                if (selected.get(0).hasOwner()) {
+                    for (Occupancy o : selected) {
+                        controller.unbook(o);
+                    }
                 } else {
                     String id;
                     boolean notify = false;
@@ -369,7 +372,8 @@ public class Client extends JFrame {
                     } while (id != null && id.length() != 8);
                     if (id != null) {
                         log.log(Level.INFO, "Book occupancy for customer: {0}", id);
-                        controller.book(o, id);
+                        // all the selected nights are booked together
+                        controller.book(selected, id);
                     }
                 }
                 String hotel = hotelSearchField.getText();
@@ -387,10 +391,15 @@ public class Client extends JFrame {
             // only recognise final changes
             if (!e.getValueIsAdjusting()) {
                 if (table.getSelectedRow() >= 0) {
-                    int rowIdx = table.getSelectedRow();
-                    Occupancy o = table.getItem(rowIdx);
-                    bookButton.setEnabled(!o.hasOwner());
-                    unbookButton.setEnabled(o.hasOwner());
+                    // only allow a selection that is all free or all booked
+                    boolean free = true;
+                    boolean booked = true;
+                    for (Occupancy o : table.getSelectedItems()) {
+                        free &= !o.hasOwner();
+                        booked &= o.hasOwner();
+                    }
+                    bookButton.setEnabled(free);
+                    unbookButton.setEnabled(booked);
                 }
             }
         }
@@ -2,11 +2,18 @@ package suncertify.gui;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import suncertify.conn.DBConnection;
 import suncertify.conn.RemoteDBAccess;
+import suncertify.db.OccupancyDelta;
 import suncertify.db.URLyBirdDBAccess;
-import suncertify.db.URLyBirdData;
 
 /**
  * Class used to send client requests to database object.
@@ -25,6 +32,21 @@ public class Controller {
      */
     private boolean connected;
 
+    /**
+     * The criteria of the last search.
+     */
+    private String[] lastCriteria;
+
+    /**
+     * The database version of the last search result, 0 if there is none.
+     */
+    private long lastVersion;
+
+    /**
+     * The occupancies of the last search result, by record address.
+     */
+    private final Map<Long, Occupancy> lastResult = new TreeMap<>();
+
     /**
      * The Logger instance. All log messages from this class are routed through
      * this member. The Logger namespace is <code>suncertify.db</code>.
@@ -46,11 +68,14 @@ public class Controller {
         switch (connectionType) {
             case DIRECT:
                 try {
-                    db = new URLyBirdData(location);
+                    db = DBConnection.getDatabase(location);
                     connected = true;
                 } catch (IOException ex) {
                     Application.handleException(
                             "Unable to read database file", ex, null);
+                } catch (IllegalArgumentException iae) {
+                    Application.handleException("Location (" + location
+                            + ") error, " + iae.getMessage(), iae, null);
                 }
                 break;
             case NETWORK:
@@ -67,6 +92,18 @@ public class Controller {
                             + iae.getMessage(), iae, null);
                 }
                 break;
+            case NIO:
+                try {
+                    db = DBConnection.getNio(location, port);
+                    connected = true;
+                } catch (IOException ex) {
+                    Application.handleException(
+                            "Unable to connect to server", ex, null);
+                } catch (IllegalArgumentException iae) {
+                    Application.handleException("Port (" + port + ") error, "
+                            + iae.getMessage(), iae, null);
+                }
+                break;
             default:
                 // should never happen
                 Exception e = new IllegalStateException("Unknown connection type");
@@ -96,57 +133,98 @@ public class Controller {
 
     /**
      * Searches and sets up a table with column specifications and data gotten
-     * from searching the database.
+     * from searching the database. When the search is the same as the last
+     * one, only the occupancies changed since are fetched and merged into the
+     * last result.
      *
      * @param hotel the name of the hotel to match
      * @param city the name of the hotel location to match
      * @return OccupancyTable consisting of table specs and search results
      */
     public OccupancyTable searchTable(String hotel, String city) {
+        String[] criteria = {hotel, city};
         try {
-            return new OccupancyTable(db.searchOccupancies(hotel, city));
+            long version = Arrays.equals(criteria, lastCriteria)
+                    ? lastVersion : 0;
+            OccupancyDelta delta = db.searchOccupanciesSince(version, criteria);
+            if (delta.isFull()) {
+                lastResult.clear();
+            }
+            for (long address : delta.getRemoved()) {
+                lastResult.remove(address);
+            }
+            for (Occupancy o : delta.getChanged()) {
+                lastResult.put(o.getAddress(), o);
+            }
+            lastCriteria = criteria;
+            lastVersion = delta.getVersion();
+            log.log(Level.FINE, "Search returned {0} changes, full: {1}",
+                    new Object[]{delta.getChanged().size(), delta.isFull()});
+            return new OccupancyTable(new ArrayList<>(lastResult.values()));
         } catch (IOException ex) {
+            lastVersion = 0;
             Application.handleException("Database connection lost", ex, null);
             return null;
         }
     }
 
     /**
-     * Book an occupancy by setting a customer id.
+     * Book an occupancy by setting a customer id, if no customer holds it.
+     * The check and the update are made by the database in one request.
      *
      * @param o the occupancy to update
      * @param cid the customer id
      */
     public void book(Occupancy o, String cid) {
         try {
-            o = db.getOccupancy(o.getAddress());
-            if (o.hasOwner()) {
+            if (!db.bookIfAvailable(o.getAddress(), cid)) {
                 Application.handleException(
-                        "Occupancy already booked", null, null);
-            } else {
-                o.setOwner(cid);
-                db.setOccupancy(o, false);
+                        "Booking of occupancy failed: Occupancy already booked",
+                        null, null);
             }
         } catch (IOException ex) {
             Application.handleException(
-                    "Booking of occupancy failed", ex, null);
+                    "Booking of occupancy failed: " + ex.getMessage(), ex,
+                    null);
         }
     }
 
     /**
-     * Remove a customer holding an occupancy.
+     * Book several occupancies, such as the nights of a stay, for a customer
+     * in a single transaction. If any of them is already booked none is.
+     *
+     * @param occupancies the occupancies to update
+     * @param cid the customer id
+     */
+    public void book(Collection<Occupancy> occupancies, String cid) {
+        List<Long> addresses = new ArrayList<>(occupancies.size());
+        for (Occupancy o : occupancies) {
+            addresses.add(o.getAddress());
+        }
+        try {
+            db.bookOccupancies(addresses, cid);
+        } catch (IOException ex) {
+            Application.handleException(
+                    "Booking of occupancy failed: " + ex.getMessage(), ex,
+                    null);
+        }
+    }
+
+    /**
+     * Remove a customer holding an occupancy, if it is still the customer
+     * shown. The check and the update are made by the database in one
+     * request.
      *
      * @param o the occupancy to update
      */
     public void unbook(Occupancy o) {
         try {
-            Occupancy dbo = db.getOccupancy(o.getAddress());
-            if (dbo.hasOwner() && !dbo.getOwner().equals(o.getOwner())) {
+            if (db.releaseIfOwner(o.getAddress(), o.getOwner())
+                    || !db.getOccupancy(o.getAddress()).hasOwner()) {
+                o.setOwner("");
+            } else {
                 Application.handleException(
                         "Occupancy booked by another client", null, null);
-            } else {
-                o.setOwner("");
-                db.setOccupancy(o, false);
             }
         } catch (IOException ex) {
             Application.handleException(
@@ -1,6 +1,9 @@
 package suncertify.gui;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -12,9 +15,15 @@ import java.util.logging.Logger;
  * Representation of database record data. Unit of measurement for the
  * size/length is bytes
  *
+ * <p>
+ * Occupancies are sent over the network in a compact binary form written by
+ * <code>writeExternal</code>, rather than with default serialization, which
+ * would also send the descriptors of the fields and of <code>Date</code>. Many
+ * occupancies are best sent in an <code>OccupancyList</code>.
+ *
  * @author Emmanuel
  */
-public class Occupancy implements Serializable {
+public class Occupancy implements Externalizable {
 
     /**
      * The size of the flag that specifies if a record has been deleted.
@@ -72,9 +81,10 @@ public class Occupancy implements Serializable {
     private static final Logger log = Logger.getLogger("suncertify.gui");
 
     /**
-     * Data Address. Store the offset location in the database file.
+     * Data Address. Store the offset location in the database file. Only set
+     * by the constructors and <code>readExternal</code>.
      */
-    private final long address;
+    private long address;
 
     /**
      * Deleted Flag. Store the state of the record.
@@ -124,6 +134,15 @@ public class Occupancy implements Serializable {
      */
     private String owner;
 
+    /**
+     * Creates an empty occupancy, for <code>readExternal</code> to fill when
+     * an occupancy is received over the network.
+     */
+    public Occupancy() {
+        this.address = -1;
+        this.smoking = ' ';
+    }
+
     /**
      * Creates instance of this object with field values in the array.
      *
@@ -192,6 +211,35 @@ public class Occupancy implements Serializable {
         this.deleted = deleted;
     }
 
+    /**
+     * Creates a copy of an occupancy, so that changing one does not change the
+     * other.
+     *
+     * @param other the occupancy to copy
+     */
+    public Occupancy(Occupancy other) {
+        this(other.address, other);
+    }
+
+    /**
+     * Creates a copy of an occupancy at another address, such as the address
+     * of the record in a sharded database.
+     *
+     * @param address the address of the copy
+     * @param other the occupancy to copy
+     */
+    public Occupancy(long address, Occupancy other) {
+        this.address = address;
+        this.name = other.name;
+        this.location = other.location;
+        this.size = other.size;
+        this.smoking = other.smoking;
+        this.rate = other.rate;
+        this.date = other.date == null ? null : new Date(other.date.getTime());
+        this.owner = other.owner;
+        this.deleted = other.deleted;
+    }
+
     /**
      * The address of the record in the database file.
      *
@@ -439,6 +487,73 @@ public class Occupancy implements Serializable {
         return record;
     }
 
+    /**
+     * Writes the fields of the occupancy in a compact binary form.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(address);
+        out.writeByte(deleted);
+        writeString(out, name);
+        writeString(out, location);
+        out.writeInt(size);
+        out.writeChar(smoking);
+        writeString(out, rate);
+        out.writeBoolean(date != null);
+        if (date != null) {
+            out.writeLong(date.getTime());
+        }
+        writeString(out, owner);
+    }
+
+    /**
+     * Reads the fields written by <code>writeExternal</code>.
+     *
+     * @param in the input to read from
+     * @throws IOException if the input cannot be read
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        address = in.readLong();
+        deleted = in.readByte();
+        name = readString(in);
+        location = readString(in);
+        size = in.readInt();
+        smoking = in.readChar();
+        rate = readString(in);
+        date = in.readBoolean() ? new Date(in.readLong()) : null;
+        owner = readString(in);
+    }
+
+    /**
+     * Writes a field value that may be null.
+     *
+     * @param out the output to write to
+     * @param value the value, or null
+     * @throws IOException if the output cannot be written
+     */
+    private static void writeString(ObjectOutput out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a field value written by <code>writeString</code>.
+     *
+     * @param in the input to read from
+     * @return the value, or null
+     * @throws IOException if the input cannot be read
+     */
+    private static String readString(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     /**
      * @return a String representation of the Occupancy class
      */
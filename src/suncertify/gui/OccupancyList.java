@@ -0,0 +1,468 @@
+package suncertify.gui;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of occupancies stored by column, used to send search results over the
+ * network. Hotel names, cities, rates and customer ids repeat across many
+ * occupancies, so the text values are kept once in a table of distinct
+ * values and every occupancy holds their codes. Sending a list costs a few
+ * bytes per occupancy plus the distinct values, instead of the class and
+ * field descriptors and every string of each occupancy.
+ *
+ * <p>
+ * The occupancies are built the first time they are read and the same
+ * objects are returned afterwards, so changes made to them are kept, and
+ * sent if the list is sent again. Occupancies can be added but not removed.
+ *
+ * @author Emmanuel
+ */
+public class OccupancyList extends AbstractList<Occupancy>
+        implements Externalizable {
+
+    /**
+     * The version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of occupancies room is first made for.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The most distinct values whose codes are sent as 2 bytes.
+     */
+    private static final int SHORT_CODES = 1 << 16;
+
+    /**
+     * The date of occupancies without one.
+     */
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * The number of occupancies in the list.
+     */
+    private int count;
+
+    /**
+     * The distinct text values, by code.
+     */
+    private List<String> values;
+
+    /**
+     * The code of each distinct text value, built when the first occupancy
+     * is added.
+     */
+    private Map<String, Integer> codes;
+
+    /**
+     * The record addresses.
+     */
+    private long[] addresses;
+
+    /**
+     * The deleted flags.
+     */
+    private byte[] deleted;
+
+    /**
+     * The codes of the hotel names.
+     */
+    private int[] names;
+
+    /**
+     * The codes of the cities.
+     */
+    private int[] locations;
+
+    /**
+     * The maximum occupancies of the rooms.
+     */
+    private short[] sizes;
+
+    /**
+     * The smoking flags, single byte characters.
+     */
+    private char[] smoking;
+
+    /**
+     * The codes of the rates.
+     */
+    private int[] rates;
+
+    /**
+     * The dates in milliseconds, or <code>NO_DATE</code>.
+     */
+    private long[] dates;
+
+    /**
+     * The codes of the customer ids.
+     */
+    private int[] owners;
+
+    /**
+     * The occupancies already built, by position.
+     */
+    private Occupancy[] rows;
+
+    /**
+     * Creates an empty list.
+     */
+    public OccupancyList() {
+        values = new ArrayList<>();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates a list holding occupancies.
+     *
+     * @param occupancies the occupancies to add
+     */
+    public OccupancyList(Collection<Occupancy> occupancies) {
+        values = new ArrayList<>();
+        allocate(Math.max(INITIAL_CAPACITY, occupancies.size()));
+        addAll(occupancies);
+    }
+
+    /**
+     * Makes room for occupancies, keeping those in the list.
+     *
+     * @param capacity the number of occupancies to make room for
+     */
+    private void allocate(int capacity) {
+        addresses = addresses == null ? new long[capacity]
+                : Arrays.copyOf(addresses, capacity);
+        deleted = deleted == null ? new byte[capacity]
+                : Arrays.copyOf(deleted, capacity);
+        names = names == null ? new int[capacity]
+                : Arrays.copyOf(names, capacity);
+        locations = locations == null ? new int[capacity]
+                : Arrays.copyOf(locations, capacity);
+        sizes = sizes == null ? new short[capacity]
+                : Arrays.copyOf(sizes, capacity);
+        smoking = smoking == null ? new char[capacity]
+                : Arrays.copyOf(smoking, capacity);
+        rates = rates == null ? new int[capacity]
+                : Arrays.copyOf(rates, capacity);
+        dates = dates == null ? new long[capacity]
+                : Arrays.copyOf(dates, capacity);
+        owners = owners == null ? new int[capacity]
+                : Arrays.copyOf(owners, capacity);
+        rows = rows == null ? new Occupancy[capacity]
+                : Arrays.copyOf(rows, capacity);
+    }
+
+    /**
+     * Get the code of a text value, adding it to the table if it is new.
+     *
+     * @param value the text value
+     * @return the code of the value
+     */
+    private int code(String value) {
+        if (codes == null) {
+            codes = new HashMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                codes.put(values.get(i), i);
+            }
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            values.add(value);
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * Stores the fields of an occupancy in the columns.
+     *
+     * @param i the position of the occupancy
+     * @param occupancy the occupancy
+     */
+    private void store(int i, Occupancy occupancy) {
+        addresses[i] = occupancy.getAddress();
+        deleted[i] = occupancy.getDeleted();
+        names[i] = code(occupancy.getName());
+        locations[i] = code(occupancy.getLocation());
+        String size = occupancy.getSize();
+        sizes[i] = size.isEmpty() ? 0 : (short) Integer.parseInt(size);
+        String smokingValue = occupancy.getSmoking();
+        smoking[i] = smokingValue == null ? ' ' : smokingValue.charAt(0);
+        rates[i] = code(occupancy.getRate());
+        Date date = occupancy.getDate();
+        dates[i] = date == null ? NO_DATE : date.getTime();
+        owners[i] = code(occupancy.getOwner());
+    }
+
+    @Override
+    public boolean add(Occupancy occupancy) {
+        if (count == addresses.length) {
+            allocate(count * 2);
+        }
+        store(count, occupancy);
+        rows[count] = occupancy;
+        count++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Occupancy get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + count);
+        }
+        Occupancy occupancy = rows[index];
+        if (occupancy == null) {
+            occupancy = new Occupancy(addresses[index],
+                    values.get(names[index]), values.get(locations[index]),
+                    sizes[index], smoking[index], values.get(rates[index]),
+                    dates[index] == NO_DATE ? null : new Date(dates[index]),
+                    values.get(owners[index]), deleted[index]);
+            rows[index] = occupancy;
+        }
+        return occupancy;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Writes the tables of distinct values, null values included, and of
+     * dates, then the list column by column.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        // pick up changes made to the occupancies already built
+        for (int i = 0; i < count; i++) {
+            if (rows[i] != null) {
+                store(i, rows[i]);
+            }
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            // fields left null, as by the empty constructor of Occupancy
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+        boolean shortCodes = values.size() <= SHORT_CODES;
+        // search results hold few distinct dates, so they are coded too
+        Map<Long, Integer> dateCodes = new HashMap<>();
+        int[] dateColumn = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer code = dateCodes.get(dates[i]);
+            if (code == null) {
+                code = dateCodes.size();
+                dateCodes.put(dates[i], code);
+            }
+            dateColumn[i] = code;
+        }
+        long[] dateValues = new long[dateCodes.size()];
+        for (Map.Entry<Long, Integer> date : dateCodes.entrySet()) {
+            dateValues[date.getValue()] = date.getKey();
+        }
+        out.writeInt(dateValues.length);
+        for (long date : dateValues) {
+            out.writeLong(date);
+        }
+        out.writeInt(count);
+        // addresses mostly ascend by a record length, so send the differences
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, addresses[i] - previous);
+            previous = addresses[i];
+        }
+        out.write(deleted, 0, count);
+        writeCodes(out, names, shortCodes);
+        writeCodes(out, locations, shortCodes);
+        for (int i = 0; i < count; i++) {
+            out.writeShort(sizes[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeByte(smoking[i]);
+        }
+        writeCodes(out, rates, shortCodes);
+        writeCodes(out, dateColumn, dateValues.length <= SHORT_CODES);
+        writeCodes(out, owners, shortCodes);
+    }
+
+    /**
+     * Writes a signed number in as few bytes as its size needs, 7 bits per
+     * byte, with small negative numbers kept small.
+     *
+     * @param out the output to write to
+     * @param value the number
+     * @throws IOException if the output cannot be written
+     */
+    private static void writeVarLong(ObjectOutput out, long value)
+            throws IOException {
+        long bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out.writeByte((int) ((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        out.writeByte((int) bits);
+    }
+
+    /**
+     * Reads a number written by <code>writeVarLong</code>.
+     *
+     * @param in the input to read from
+     * @return the number
+     * @throws IOException if the input cannot be read
+     */
+    private static long readVarLong(ObjectInput in) throws IOException {
+        long bits = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            bits |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    /**
+     * Writes a column of value codes.
+     *
+     * @param out the output to write to
+     * @param column the codes
+     * @param shortCodes true to write each code as 2 bytes
+     * @throws IOException if the output cannot be written
+     */
+    private void writeCodes(ObjectOutput out, int[] column, boolean shortCodes)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (shortCodes) {
+                out.writeShort(column[i]);
+            } else {
+                out.writeInt(column[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a list written by <code>writeExternal</code>. The tables and
+     * columns grow as their elements arrive, so a count read from a
+     * malformed or hostile stream reserves no more memory than the bytes
+     * that actually follow it.
+     *
+     * @param in the input to read from
+     * @throws IOException if the input cannot be read or holds an invalid
+     * count or code
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int numValues = readCount(in);
+        values = new ArrayList<>(Math.min(numValues, INITIAL_CAPACITY));
+        for (int i = 0; i < numValues; i++) {
+            values.add(in.readBoolean() ? in.readUTF() : null);
+        }
+        codes = null;
+        boolean shortCodes = numValues <= SHORT_CODES;
+        int numDates = readCount(in);
+        long[] dateValues = new long[Math.min(numDates, INITIAL_CAPACITY)];
+        for (int i = 0; i < numDates; i++) {
+            if (i == dateValues.length) {
+                dateValues = Arrays.copyOf(dateValues,
+                        (int) Math.min(numDates, 2L * i));
+            }
+            dateValues[i] = in.readLong();
+        }
+        int total = readCount(in);
+        count = 0;
+        addresses = null;
+        deleted = null;
+        names = null;
+        locations = null;
+        sizes = null;
+        smoking = null;
+        rates = null;
+        dates = null;
+        owners = null;
+        rows = null;
+        allocate(INITIAL_CAPACITY);
+        long previous = 0;
+        while (count < total) {
+            if (count == addresses.length) {
+                allocate((int) Math.min(total, 2L * count));
+            }
+            addresses[count] = previous + readVarLong(in);
+            previous = addresses[count++];
+        }
+        in.readFully(deleted, 0, count);
+        readCodes(in, names, shortCodes);
+        readCodes(in, locations, shortCodes);
+        for (int i = 0; i < count; i++) {
+            sizes[i] = in.readShort();
+        }
+        for (int i = 0; i < count; i++) {
+            smoking[i] = (char) in.readUnsignedByte();
+        }
+        readCodes(in, rates, shortCodes);
+        int[] dateColumn = new int[count];
+        readCodes(in, dateColumn, numDates <= SHORT_CODES);
+        for (int i = 0; i < count; i++) {
+            if (dateColumn[i] < 0 || dateColumn[i] >= numDates) {
+                throw new InvalidObjectException("Invalid date code: "
+                        + dateColumn[i]);
+            }
+            dates[i] = dateValues[dateColumn[i]];
+        }
+        readCodes(in, owners, shortCodes);
+    }
+
+    /**
+     * Reads the number of elements of a table or column.
+     *
+     * @param in the input to read from
+     * @return the number of elements
+     * @throws IOException if the input cannot be read or the number is
+     * negative
+     */
+    private static int readCount(ObjectInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new InvalidObjectException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a column of value codes.
+     *
+     * @param in the input to read from
+     * @param column the array to read the codes into
+     * @param shortCodes true if each code is written as 2 bytes
+     * @throws IOException if the input cannot be read
+     */
+    private void readCodes(ObjectInput in, int[] column, boolean shortCodes)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            column[i] = shortCodes ? in.readUnsignedShort() : in.readInt();
+        }
+    }
+
+}
@@ -105,9 +105,9 @@ public class OccupancyTable extends JTable {
         columnModel.getColumn(7).setPreferredWidth(100);
 
         setRowHeight(ROW_HEIGHT);
-        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
-        setToolTipText("Select an occupancy record to book or unbook customer");
+        setToolTipText("Select occupancy records to book or unbook customer");
     }
 
     /**
@@ -152,6 +152,19 @@ public class OccupancyTable extends JTable {
         return data.get(index);
     }
 
+    /**
+     * Returns the occupancy objects of the selected rows.
+     *
+     * @return List of the selected occupancies, in table order
+     */
+    public List<Occupancy> getSelectedItems() {
+        List<Occupancy> selected = new ArrayList<>();
+        for (int index : getSelectedRows()) {
+            selected.add(data.get(index));
+        }
+        return selected;
+    }
+
     /**
      * Prevent cells from being editable.
      *
@@ -11,8 +11,11 @@ import java.rmi.RemoteException;
 import java.util.logging.Logger;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 import suncertify.conn.DBConnection;
+import suncertify.conn.RemoteData;
 
 /**
  * The Server module. This is the GUI a user see when the application is started
@@ -31,6 +34,10 @@ public class Server extends JFrame {
     private static final String EXIT_BUTTON_TEXT = "Exit";
     private static final String EXIT_BUTTON_TOOLTIP
             = "Stops the server as soon as it is safe and exits the application";
+    private static final String WARMUP_STATUS_TEXT = "Building indexes: %d%%";
+    private static final String READY_STATUS_TEXT = "Server ready";
+    // how often the index warm-up progress is shown
+    private static final int WARMUP_POLL_MILLIS = 250;
 
     /**
      * The Logger instance. All log messages from this class are routed through
@@ -43,6 +50,7 @@ public class Server extends JFrame {
     private final JPanel ctrlPanel;
     private final JButton startButton;
     private final JButton exitButton;
+    private final JLabel statusLabel;
     // server status
     private String port;
     private boolean running;
@@ -62,6 +70,7 @@ public class Server extends JFrame {
 
         this.startButton = new JButton(START_BUTTON_TEXT);
         this.exitButton = new JButton(EXIT_BUTTON_TEXT);
+        this.statusLabel = new JLabel();
 
         configPanel = new ConfigPanel(Application.Mode.SERVER);
         this.add(configPanel, BorderLayout.NORTH);
@@ -99,6 +108,7 @@ public class Server extends JFrame {
             }
         });
         panel.add(exitButton);
+        panel.add(statusLabel);
 
         return panel;
     }
@@ -112,6 +122,32 @@ public class Server extends JFrame {
         return running;
     }
 
+    /**
+     * Shows the progress of the index warm-up of a started server until the
+     * database is ready. Clients are served during the warm-up.
+     *
+     * @param remote the registered remote access object
+     */
+    private void showWarmup(final RemoteData remote) {
+        final Timer timer = new Timer(WARMUP_POLL_MILLIS, null);
+        timer.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                int progress = remote.getWarmupProgress();
+                if (progress < 100) {
+                    statusLabel.setText(
+                            String.format(WARMUP_STATUS_TEXT, progress));
+                } else {
+                    statusLabel.setText(READY_STATUS_TEXT);
+                    timer.stop();
+                }
+                pack();
+            }
+        });
+        timer.setInitialDelay(0);
+        timer.start();
+    }
+
     /**
      * Class to handle the action of starting the server.
      */
@@ -146,7 +182,7 @@ public class Server extends JFrame {
                     try {
                         startButton.setEnabled(false);
                         configPanel.setAllFieldsEnabled(false);
-                        DBConnection.register(location, port);
+                        showWarmup(DBConnection.register(location, port));
                         running = true;
                     } catch (RemoteException rex) {
                         Application.handleException(